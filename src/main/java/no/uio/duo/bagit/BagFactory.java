@@ -0,0 +1,237 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates and writes Bags in batches, for jobs which produce many Bags in one JVM.
+ *
+ * Each Bag is written on one of a fixed number of worker threads, so the number of Bags being written at any one
+ * time (and so the memory and file handles in use) is bounded, while the throughput scales with the number of
+ * workers.  The Bags share the factory's format detector and compression policy, and each worker reuses its own
+ * I/O buffers, digests and Deflaters from one Bag to the next rather than allocating new ones for every Bag.
+ *
+ * A failure to write one Bag does not affect the others; the outcome for each Bag is reported in a
+ * {@link BagResult}.
+ *
+ * <pre>
+ * BagFactory factory = new BagFactory(8);
+ * List&lt;BagIt&gt; bags = new ArrayList&lt;BagIt&gt;();
+ * for (...)
+ * {
+ *     BagIt bag = factory.newBag(new File("/path/to/bag.zip"));
+ *     bag.addFinalFile(finalFile);
+ *     bags.add(bag);
+ * }
+ * List&lt;BagResult&gt; results = factory.writeAll(bags);
+ * factory.shutdown();
+ * </pre>
+ */
+public class BagFactory
+{
+    private ExecutorService executor;
+    private boolean ownExecutor;
+
+    private FormatDetector formatDetector = BagIt.DEFAULT_FORMAT_DETECTOR;
+    private CompressionPolicy compressionPolicy = new DefaultCompressionPolicy();
+    private String[] algorithms = null;
+    private String[] bagAlgorithms = null;
+
+    /**
+     * Create a factory which writes Bags on the given number of worker threads
+     *
+     * @param threads   the number of Bags to write at once
+     */
+    public BagFactory(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.ownExecutor = true;
+    }
+
+    /**
+     * Create a factory which writes Bags on the given executor.  The executor is not shut down by
+     * {@link #shutdown()}, and should have a bounded number of threads.
+     *
+     * @param executor
+     */
+    public BagFactory(ExecutorService executor)
+    {
+        this.executor = executor;
+        this.ownExecutor = false;
+    }
+
+    /**
+     * Set the format detector shared by the Bags created by this factory.  The detector must be safe to use from
+     * several threads at once.
+     *
+     * @param detector
+     */
+    public void setFormatDetector(FormatDetector detector)
+    {
+        if (detector == null)
+        {
+            throw new IllegalArgumentException("A format detector is required");
+        }
+        this.formatDetector = detector;
+    }
+
+    /**
+     * Set the compression policy shared by the Bags created by this factory.  The policy must be safe to use from
+     * several threads at once, and should not be changed once Bags are being written.
+     *
+     * @param policy
+     */
+    public void setCompressionPolicy(CompressionPolicy policy)
+    {
+        if (policy == null)
+        {
+            throw new IllegalArgumentException("A compression policy is required");
+        }
+        this.compressionPolicy = policy;
+    }
+
+    /**
+     * Set the manifest algorithms for the Bags created by this factory.  See {@link BagIt#setAlgorithms(String...)}.
+     *
+     * @param algorithms
+     */
+    public void setAlgorithms(String... algorithms)
+    {
+        this.algorithms = algorithms;
+    }
+
+    /**
+     * Set the algorithms for the checksums of the whole of each Bag created by this factory.  See
+     * {@link BagIt#setBagAlgorithms(String...)}.
+     *
+     * @param algorithms
+     */
+    public void setBagAlgorithms(String... algorithms)
+    {
+        this.bagAlgorithms = algorithms;
+    }
+
+    /**
+     * Create a new Bag to be written to the given file, configured with this factory's shared settings.  Files
+     * and metadata are then added to it as usual.  The file must not already exist: a BagIt opened on an existing
+     * file reads it as a Bag rather than starting an empty one, so use a new path, or open the existing Bag with
+     * the BagIt constructor instead.
+     *
+     * @param file  the zip file the Bag will be written to, which must not exist yet
+     * @return  the new, empty Bag
+     * @throws IOException
+     * @throws IllegalArgumentException if the file already exists
+     */
+    public BagIt newBag(File file)
+            throws IOException
+    {
+        if (file.exists())
+        {
+            throw new IllegalArgumentException("Cannot create a new Bag at " + file.getAbsolutePath() + "; the file already exists");
+        }
+
+        BagIt bag = new BagIt(file);
+        bag.setFormatDetector(this.formatDetector);
+        bag.setCompressionPolicy(this.compressionPolicy);
+        if (this.algorithms != null)
+        {
+            bag.setAlgorithms(this.algorithms);
+        }
+        if (this.bagAlgorithms != null)
+        {
+            bag.setBagAlgorithms(this.bagAlgorithms);
+        }
+        return bag;
+    }
+
+    /**
+     * Queue the Bag to be written to its file by one of the workers
+     *
+     * @param bag   the Bag to write
+     * @return  a Future for the result of writing the Bag, which never completes exceptionally
+     */
+    public Future<BagResult> submit(final BagIt bag)
+    {
+        return this.executor.submit(new Callable<BagResult>()
+        {
+            public BagResult call()
+            {
+                return BagFactory.write(bag);
+            }
+        });
+    }
+
+    /**
+     * Write all of the given Bags to their files, and wait for them to finish
+     *
+     * @param bags  the Bags to write
+     * @return  the result for each Bag, in the same order as the Bags were given
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the Bags to be written
+     */
+    public List<BagResult> writeAll(Collection<BagIt> bags)
+            throws InterruptedException
+    {
+        List<Future<BagResult>> futures = new ArrayList<Future<BagResult>>(bags.size());
+        for (BagIt bag : bags)
+        {
+            futures.add(this.submit(bag));
+        }
+
+        List<BagResult> results = new ArrayList<BagResult>(bags.size());
+        for (Future<BagResult> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (ExecutionException e)
+            {
+                // the task reports its own failures in the result, so this cannot happen
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop the workers once the Bags already submitted have been written.  Has no effect if the factory was
+     * given its own executor.
+     */
+    public void shutdown()
+    {
+        if (this.ownExecutor)
+        {
+            this.executor.shutdown();
+        }
+    }
+
+    private static BagResult write(BagIt bag)
+    {
+        BagResult result = new BagResult(bag);
+        long start = System.currentTimeMillis();
+        try
+        {
+            bag.writeToFile();
+            result.setChecksums(new HashMap<String, String>(bag.bagChecksums));
+        }
+        catch (Exception e)
+        {
+            result.setError(e);
+        }
+        result.setElapsed(System.currentTimeMillis() - start);
+        return result;
+    }
+}
@@ -1,10 +1,11 @@
 package no.uio.duo.bagit;
 
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.ParsingException;
 import org.apache.commons.io.FileUtils;
 
-import javax.activation.MimetypesFileTypeMap;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,18 +13,41 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Main class which manages interactions with a StudentWeb formatted BagIt file.
@@ -38,6 +62,7 @@ import java.util.zip.ZipOutputStream;
  * |   bagit.txt
  * |   manifest-md5.txt
  * |   tagmanifest-md5.txt
+ * |   fetch.txt (only if some payload files are fetched rather than held in the Bag)
  * \--- data/
  *      \--- final
  *          |   [final version files]
@@ -53,16 +78,46 @@ import java.util.zip.ZipOutputStream;
  *          |   final.sequence.txt
  *          |   supporting.sequence.txt
  *</pre>
+ *
+ * Once a Bag has been opened from a zip file or directory, it may be read from many threads at once: the
+ * accessors (getSequencedFinals, getSequencedSecondaries, getMetadataFile, getLicenceFile, getSupportingAccess)
+ * and the verify methods can be called concurrently, and every BaggedItem they return has its own input stream
+ * over the content, which only the thread that called them should read.  Lazily opened Bags parse each tag file
+ * once, whichever thread needs it first.  Adding files to a Bag and writing it out are not thread-safe, and must
+ * not happen at the same time as anything else on the same object.
  */
 
 public class BagIt
 {
-    private static String FINAL = "final";
-    private static String SUPPORTING = "supporting";
-    private static String LICENCE = "licence";
-    private static String METADATA = "metadata";
+    static String FINAL = "final";
+    static String SUPPORTING = "supporting";
+    static String LICENCE = "licence";
+    static String METADATA = "metadata";
+
+    private static String BAGIT = "bagit.txt";
+    private static String MANIFEST_PREFIX = "manifest-";
+    private static String TAGMANIFEST_PREFIX = "tagmanifest-";
+
+    /** shared by every Bag which is not given its own detector, so that the MIME type tables are only loaded once */
+    static final FormatDetector DEFAULT_FORMAT_DETECTOR = new DefaultFormatDetector();
+
+    /** the number of bytes from the start of each payload file which are given to the compression policy */
+    private static int SAMPLE = 4096;
+
+    /** XOM Builders are expensive to create but cannot be shared between threads, so each thread keeps its own */
+    private static final ThreadLocal<Builder> BUILDERS = new ThreadLocal<Builder>()
+    {
+        protected Builder initialValue()
+        {
+            return new Builder();
+        }
+    };
 
-    private static final int BUFFER = 8192;
+    static String FORMATS = "formats.txt";
+    static String FINAL_SEQUENCE = "final.sequence.txt";
+    static String SUPPORTING_SEQUENCE = "supporting.sequence.txt";
+    static String SUPPORTING_ACCESS = "supporting.access.txt";
+    static String FETCH = "fetch.txt";
 
     /**
      * Inner class to provide a reference to a file in the Bag.  Since the file in the bag
@@ -80,6 +135,16 @@ public class BagIt
         public int sequence = -1;
         public String format = null;
 
+        // for files read from an existing bag, their path relative to the base directory and their
+        // checksums as given in the bag's manifests, keyed by algorithm
+        public String path = null;
+        public Map<String, String> checksums = new HashMap<String, String>();
+
+        // for payload files which are listed in fetch.txt rather than held in the bag, the URL they are fetched
+        // from and their size, if known.  The file may also be set, if the bag is being built from a local copy
+        public String url = null;
+        public long length = -1;
+
         /**
          * Get an input stream for this file reference
          *
@@ -99,7 +164,7 @@ public class BagIt
             }
             else if (this.metadata != null)
             {
-                return new ByteArrayInputStream(this.metadata.toXML().getBytes());
+                return this.metadata.getInputStream();
             }
             return null;
         }
@@ -117,6 +182,11 @@ public class BagIt
                 String[] bits = path.split("/");
                 return bits[bits.length - 1];
             }
+            else if (this.path != null)
+            {
+                // a fetched file may have been completed from a local copy with a different name
+                return this.path.substring(this.path.lastIndexOf('/') + 1);
+            }
             else if (this.file != null)
             {
                 return this.file.getName();
@@ -128,7 +198,29 @@ public class BagIt
     String baseDir = "";
     File bagFile = null;
     ZipFile zipFile = null;
+    File bagDir = null;
     List<BagFileReference> fileRefs = new ArrayList<BagFileReference>();
+    Map<String, BagFileReference> pathIndex = new HashMap<String, BagFileReference>();
+    // the file references added to the bag since it was read, keyed by the path they will be written to.  These are
+    // kept out of the path index, so that the tag files and manifests of the bag they replace are not applied to them
+    Map<String, BagFileReference> addedIndex = new HashMap<String, BagFileReference>();
+    List<ZipEntry> pendingTagFiles = new ArrayList<ZipEntry>();
+    List<String> algorithms = new ArrayList<String>(Collections.singletonList("md5"));
+    List<String> bagAlgorithms = new ArrayList<String>(Collections.singletonList("md5"));
+    // the checksums of the bag's own file computed as this object last wrote it, and the length and modification
+    // time the file had then, so that they are not given out once the file has been changed by anything else
+    Map<String, String> bagChecksums = null;
+    long bagChecksumsLength = -1;
+    long bagChecksumsModified = -1;
+    CompressionPolicy compressionPolicy = new DefaultCompressionPolicy();
+    FormatDetector formatDetector = BagIt.DEFAULT_FORMAT_DETECTOR;
+    int bufferSize = FileSource.DEFAULT_BUFFER;
+    boolean linkPayload = false;
+    Map<String, Compression> compressionDecisions = new LinkedHashMap<String, Compression>();
+
+    // the metadata parsed by getMetadata(), and the file reference it was parsed from
+    Metadata metadata = null;
+    BagFileReference metadataSource = null;
 
     /**
      * Create a BagIt object around a directory specified at the filePath
@@ -150,14 +242,36 @@ public class BagIt
      */
     public BagIt(File file)
             throws IOException
+    {
+        this(file, false);
+    }
+
+    /**
+     * Create a BagIt object around a file object provided, optionally opening an existing bag lazily.
+     *
+     * When opened lazily only the zip central directory is read up front, and each tag file is parsed the first
+     * time one of the accessors needs it.  This is much cheaper when only the metadata or licence file is wanted,
+     * but a malformed tag file will not be reported until then.
+     *
+     * @param file  File object representing the BagIt structure
+     * @param lazy  whether to defer parsing the tag files of an existing bag until they are needed
+     * @throws IOException
+     */
+    public BagIt(File file, boolean lazy)
+            throws IOException
     {
         this.bagFile = file;
         String[] bits = file.getName().split("\\.");
         this.baseDir = bits[0] + "/";
-        if (file.exists())
+        if (file.isDirectory())
+        {
+            // an unzipped bag
+            this.loadDirectory(file);
+        }
+        else if (file.exists())
         {
             // load the bag
-            this.loadBag(file);
+            this.loadBag(file, lazy);
         }
     }
 
@@ -170,17 +284,35 @@ public class BagIt
      */
     public void loadBag(File file)
             throws IOException
+    {
+        this.loadBag(file, false);
+    }
+
+    /**
+     * Construct the internal state of this BagIt object from the given file.  The file should be a zip file
+     * which conforms to the StudentWeb/Duo bag profile.
+     *
+     * If the bag is loaded lazily only the entries of the zip are indexed, and the tag files are left to be
+     * parsed on demand.
+     *
+     * @param file  The zip file which contains the bag
+     * @param lazy  whether to defer parsing the tag files until they are needed
+     * @throws IOException
+     */
+    public void loadBag(File file, boolean lazy)
+            throws IOException
     {
         // unset the base directory, as when reading the file, the filname may not be the same
         // as the internal base directory
         this.baseDir = null;
 
         this.zipFile = new ZipFile(file);
-        Enumeration e = zipFile.entries();
-        List<ZipEntry> tagEntries = new ArrayList<ZipEntry>();
+        Enumeration<? extends ZipEntry> e = zipFile.entries();
+        Set<String> manifestAlgorithms = new TreeSet<String>();
+        ZipEntry fetchEntry = null;
         while (e.hasMoreElements())
         {
-            ZipEntry entry = (ZipEntry) e.nextElement();
+            ZipEntry entry = e.nextElement();
 
             if (this.baseDir == null)
             {
@@ -195,90 +327,369 @@ public class BagIt
                 }
             }
 
+            String type = null;
             if (entry.getName().startsWith(this.baseDir + "data/final/"))
             {
-                BagFileReference bfr = new BagFileReference();
-                bfr.type = BagIt.FINAL;
-                bfr.zipEntry = entry;
-                this.fileRefs.add(bfr);
+                type = BagIt.FINAL;
             }
             else if (entry.getName().startsWith(this.baseDir + "data/supporting/"))
             {
-                BagFileReference bfr = new BagFileReference();
-                bfr.type = BagIt.SUPPORTING;
-                bfr.zipEntry = entry;
-                this.fileRefs.add(bfr);
+                type = BagIt.SUPPORTING;
             }
             else if (entry.getName().startsWith(this.baseDir + "data/licence/"))
             {
-                BagFileReference bfr = new BagFileReference();
-                bfr.type = BagIt.LICENCE;
-                bfr.zipEntry = entry;
-                this.fileRefs.add(bfr);
+                type = BagIt.LICENCE;
             }
             else if (entry.getName().startsWith(this.baseDir + "data/metadata/"))
+            {
+                type = BagIt.METADATA;
+            }
+            else if (entry.getName().startsWith(this.baseDir + "tagfiles/"))
+            {
+                this.pendingTagFiles.add(entry);
+            }
+            else if (entry.getName().startsWith(this.baseDir + BagIt.MANIFEST_PREFIX) && entry.getName().endsWith(".txt"))
+            {
+                manifestAlgorithms.add(this.getAlgorithm(entry.getName().substring(this.baseDir.length()), BagIt.MANIFEST_PREFIX));
+            }
+            else if (entry.getName().equals(this.baseDir + BagIt.FETCH))
+            {
+                fetchEntry = entry;
+            }
+
+            if (type != null)
             {
                 BagFileReference bfr = new BagFileReference();
-                bfr.type = BagIt.METADATA;
+                bfr.type = type;
                 bfr.zipEntry = entry;
+                bfr.path = entry.getName().substring(this.baseDir.length());
                 this.fileRefs.add(bfr);
+                this.pathIndex.put(bfr.path, bfr);
             }
-            else if (entry.getName().startsWith(this.baseDir + "tagfiles/"))
+        }
+
+        // if the bag is written out again, it should have the same manifests
+        if (!manifestAlgorithms.isEmpty())
+        {
+            this.algorithms = new ArrayList<String>(manifestAlgorithms);
+        }
+
+        // the fetched files need references before any tag file can be applied to them, so fetch.txt is read
+        // even when the bag is opened lazily
+        if (fetchEntry != null)
+        {
+            this.applyFetch(Fetch.parse(this.zipFile.getInputStream(fetchEntry), BagIt.FETCH));
+        }
+
+        if (!lazy)
+        {
+            this.loadTagFiles(FORMATS, FINAL_SEQUENCE, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS);
+        }
+    }
+
+    /**
+     * Construct the internal state of this BagIt object from an unzipped bag in the given directory.  The
+     * payload files are referenced where they are, and their checksums are taken from the bag's manifests so
+     * that they do not need to be computed again if the bag is written out.
+     *
+     * @param dir   The directory which contains the bag
+     * @throws IOException
+     */
+    public void loadDirectory(File dir)
+            throws IOException
+    {
+        this.bagDir = dir;
+        for (String type : new String[] { BagIt.FINAL, BagIt.SUPPORTING, BagIt.LICENCE, BagIt.METADATA })
+        {
+            this.indexDirectory(new File(dir, "data/" + type), "data/" + type + "/", type);
+        }
+
+        File fetchFile = new File(dir, BagIt.FETCH);
+        if (fetchFile.isFile())
+        {
+            this.applyFetch(Fetch.parse(new FileInputStream(fetchFile), BagIt.FETCH));
+        }
+
+        for (String name : new String[] { FORMATS, FINAL_SEQUENCE, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS })
+        {
+            File tagFile = new File(dir, "tagfiles/" + name);
+            if (tagFile.isFile())
+            {
+                this.applyTagFile(name, new FileInputStream(tagFile));
+            }
+        }
+
+        Map<String, Manifest> manifests = this.readManifests();
+        Manifest manifest = null;
+        for (String algorithm : manifests.keySet())
+        {
+            manifest = manifests.get(algorithm);
+            this.applyManifest(algorithm, manifest);
+        }
+        if (!manifests.isEmpty())
+        {
+            this.algorithms = new ArrayList<String>(manifests.keySet());
+        }
+
+        // the directory listing says nothing about the order in which the files were added, but the manifest
+        // does, so keep to that order; a zip of the bag then has the same tag files as the original
+        if (manifest != null)
+        {
+            final Map<String, Integer> order = new HashMap<String, Integer>();
+            for (String path : manifest.getPaths())
+            {
+                order.put(path, order.size());
+            }
+            Collections.sort(this.fileRefs, new Comparator<BagFileReference>()
+            {
+                public int compare(BagFileReference a, BagFileReference b)
+                {
+                    Integer first = order.containsKey(a.path) ? order.get(a.path) : Integer.MAX_VALUE;
+                    Integer second = order.containsKey(b.path) ? order.get(b.path) : Integer.MAX_VALUE;
+                    return first.compareTo(second);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a file reference for each file in the given directory of an unzipped bag, and its sub-directories
+     *
+     * @param dir   the directory to index
+     * @param prefix    the path of the directory relative to the base directory of the bag, ending in "/"
+     * @param type  the type of the files in the directory
+     */
+    private void indexDirectory(File dir, String prefix, String type)
+    {
+        for (File file : this.listFiles(dir))
+        {
+            if (file.isDirectory())
             {
-                tagEntries.add(entry);
+                this.indexDirectory(file, prefix + file.getName() + "/", type);
+                continue;
             }
+
+            BagFileReference bfr = new BagFileReference();
+            bfr.type = type;
+            bfr.file = file;
+            bfr.path = prefix + file.getName();
+            this.fileRefs.add(bfr);
+            this.pathIndex.put(bfr.path, bfr);
         }
+    }
 
-        for (ZipEntry entry : tagEntries)
+    /**
+     * List the files in the directory in name order, so that bags are read the same way on every platform
+     *
+     * @param dir
+     * @return  the files, or an empty array if the directory does not exist
+     */
+    private File[] listFiles(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
         {
-            Map<String, String> entryMap = new HashMap<String, String>();
-            InputStream is = zipFile.getInputStream(entry);
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
 
-            java.util.Scanner s = new java.util.Scanner(is, "UTF-8").useDelimiter("\\A");
-            String content = s.hasNext() ? s.next() : "";
-            if ("".equals(content.trim()))
+    /**
+     * Add a file reference for each payload file listed in the given fetch.txt.  A file which is also held in
+     * the bag (for example because it has been fetched into a directory bag) is left as it is.
+     *
+     * @param fetch the parsed fetch.txt
+     */
+    private void applyFetch(Fetch fetch)
+    {
+        for (FetchItem item : fetch.getItems())
+        {
+            if (this.pathIndex.containsKey(item.getPath()))
             {
-                // this tag file is empty, so carry on
                 continue;
             }
 
-            String[] lines = content.split("\n");
-            for (String line : lines)
+            for (String type : new String[] { BagIt.FINAL, BagIt.SUPPORTING, BagIt.LICENCE, BagIt.METADATA })
             {
-                String[] bits = line.split("\t");
-                if (bits.length < 2)
+                if (item.getPath().startsWith("data/" + type + "/"))
                 {
-                    throw new IOException("Malformed tag file: " + entry.getName() + " - " + content + "; unable to separate line: " + line);
+                    BagFileReference bfr = new BagFileReference();
+                    bfr.type = type;
+                    bfr.url = item.getUrl();
+                    bfr.length = item.getLength();
+                    bfr.path = item.getPath();
+                    this.fileRefs.add(bfr);
+                    this.pathIndex.put(bfr.path, bfr);
+                    break;
                 }
-                entryMap.put(bits[1], bits[0]);
             }
+        }
+    }
 
-            for (BagFileReference bfr : this.fileRefs)
+    /**
+     * Record the checksums in the given manifest against the file references for the paths it lists
+     *
+     * @param algorithm the BagIt name of the manifest's algorithm
+     * @param manifest
+     */
+    private void applyManifest(String algorithm, Manifest manifest)
+    {
+        for (String path : manifest.getPaths())
+        {
+            BagFileReference bfr = this.pathIndex.get(path);
+            if (bfr != null)
+            {
+                bfr.checksums.put(algorithm, manifest.getChecksum(path));
+            }
+        }
+    }
+
+    /**
+     * Get the algorithm from the name of a manifest or tag manifest, e.g. manifest-md5.txt
+     *
+     * @param name  the name of the manifest file
+     * @param prefix    the prefix of the name, i.e. manifest- or tagmanifest-
+     * @return
+     */
+    private String getAlgorithm(String name, String prefix)
+    {
+        return name.substring(prefix.length(), name.length() - ".txt".length());
+    }
+
+    /**
+     * Parse any of the named tag files which have not yet been applied to the file references.  Tag files
+     * are applied in the order in which they appear in the zip, and each one is only ever parsed once.
+     *
+     * This is synchronized so that threads reading a lazily opened bag at the same time parse each tag file
+     * only once, and see the values it sets on the file references.
+     *
+     * @param names the names of the tag files which are required (e.g. formats.txt)
+     * @throws IOException  if a tag file is malformed
+     */
+    private synchronized void loadTagFiles(String... names)
+            throws IOException
+    {
+        Iterator<ZipEntry> pending = this.pendingTagFiles.iterator();
+        while (pending.hasNext())
+        {
+            ZipEntry entry = pending.next();
+            for (String name : names)
             {
-                for (String path : entryMap.keySet())
+                if (entry.getName().endsWith(name))
                 {
-                    if (bfr.zipEntry.getName().equals(this.baseDir + path))
-                    {
-                        if (entry.getName().endsWith("final.sequence.txt"))
-                        {
-                            bfr.sequence = Integer.parseInt(entryMap.get(path));
-                        }
-                        else if (entry.getName().endsWith("formats.txt"))
-                        {
-                            bfr.format = entryMap.get(path);
-                        }
-                        else if (entry.getName().endsWith("supporting.access.txt"))
-                        {
-                            bfr.access = entryMap.get(path);
-                        }
-                        else if (entry.getName().endsWith("supporting.sequence.txt"))
-                        {
-                            bfr.sequence = Integer.parseInt(entryMap.get(path));
-                        }
-                    }
+                    pending.remove();
+                    this.applyTagFile(entry.getName(), this.zipFile.getInputStream(entry));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the given tag file, and apply the value on each of its lines to the file reference
+     * for the path on that line.  Each line is applied with a single lookup in the path index.
+     *
+     * @param name  the name of the tag file
+     * @param is    InputStream over the content of the tag file, which is closed afterwards
+     * @throws IOException  if the tag file is malformed
+     */
+    private void applyTagFile(String name, InputStream is)
+            throws IOException
+    {
+        boolean sequence = name.endsWith(FINAL_SEQUENCE) || name.endsWith(SUPPORTING_SEQUENCE);
+        boolean formats = name.endsWith(FORMATS);
+        boolean access = name.endsWith(SUPPORTING_ACCESS);
+        if (!sequence && !formats && !access)
+        {
+            // not a tag file we know how to interpret
+            is.close();
+            return;
+        }
+
+        Map<String, String> lines = BagIt.readTagFile(is, name);
+        for (Map.Entry<String, String> line : lines.entrySet())
+        {
+            BagFileReference bfr = this.pathIndex.get(line.getKey());
+            if (bfr == null)
+            {
+                continue;
+            }
+
+            if (sequence)
+            {
+                bfr.sequence = BagIt.readSequence(line.getValue(), name, line.getKey());
+            }
+            else if (formats)
+            {
+                bfr.format = line.getValue();
+            }
+            else
+            {
+                bfr.access = line.getValue();
+            }
+        }
+    }
+
+    /**
+     * Read the lines of a tag file, each of which is a value and a path separated by a tab.  The stream is
+     * closed afterwards.
+     *
+     * @param is    InputStream over the UTF-8 encoded tag file
+     * @param name  the name of the tag file, for error reporting
+     * @return  the value for each path, in the order they appear in the file
+     * @throws IOException  if the tag file is malformed
+     */
+    static Map<String, String> readTagFile(InputStream is, String name)
+            throws IOException
+    {
+        Map<String, String> lines = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if ("".equals(line.trim()))
+                {
+                    continue;
                 }
+
+                int tab = line.indexOf('\t');
+                if (tab == -1)
+                {
+                    throw new IOException("Malformed tag file: " + name + "; unable to separate line: " + line);
+                }
+                lines.put(line.substring(tab + 1), line.substring(0, tab));
             }
         }
+        finally
+        {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Parse a sequence number read from one of the sequence tag files
+     *
+     * @param value the value from the tag file
+     * @param name  the name of the tag file, for error reporting
+     * @param path  the path the value belongs to, for error reporting
+     * @return  the sequence number
+     * @throws IOException  if the value is not a number
+     */
+    static int readSequence(String value, String name, String path)
+            throws IOException
+    {
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Malformed tag file: " + name + "; sequence for " + path + " is not a number: " + value, e);
+        }
     }
 
     /**
@@ -323,7 +734,7 @@ public class BagIt
         // calculate the format if necessary
         if (mimeType == null)
         {
-            mimeType = new MimetypesFileTypeMap().getContentType(file);
+            mimeType = this.formatDetector.detect(file);
         }
         bfr.format = mimeType;
 
@@ -335,7 +746,7 @@ public class BagIt
         }
         bfr.sequence = sequence;
 
-        this.fileRefs.add(bfr);
+        this.addFileRef(bfr);
     }
 
     /**
@@ -347,6 +758,7 @@ public class BagIt
      */
     private int getFinalSequenceMax()
     {
+        this.loadAllTagFiles();
         int maxSeq = 0;
         for (BagFileReference bfr : this.fileRefs)
         {
@@ -409,7 +821,7 @@ public class BagIt
         // calculate the format if necessary
         if (mimeType == null)
         {
-            mimeType = new MimetypesFileTypeMap().getContentType(file);
+            mimeType = this.formatDetector.detect(file);
         }
         bfr.format = mimeType;
 
@@ -421,7 +833,90 @@ public class BagIt
         }
         bfr.sequence = sequence;
 
-        this.fileRefs.add(bfr);
+        this.addFileRef(bfr);
+    }
+
+    /**
+     * Add a supporting file to the Bag by reference: it is listed in fetch.txt and the manifests, with its file:
+     * URL and size, but its content is not copied into the Bag.  Its checksums are computed from the file when the
+     * Bag is written, which reads the file but does not copy it.  The Bag can later be verified or completed against
+     * the file with {@link #verifyFetched(FetchResolver)} and {@link #complete(FetchResolver)}.
+     *
+     * @param file  the local file, which must stay where it is
+     * @param mimeType  Mimetype of the file object.  If this is null, we will attempt to guess
+     * @param sequence  position in the sequence of supporting files in the Bag.  If this is -1 we will just add it to the end of the current list
+     * @param access    Access conditions of the item.  Should be "open" or "closed"
+     */
+    public void addSupportingFileReference(File file, String mimeType, int sequence, String access)
+    {
+        if (mimeType == null)
+        {
+            mimeType = this.formatDetector.detect(file);
+        }
+        BagFileReference bfr = this.addSupportingReference(file.getAbsoluteFile().toURI().toASCIIString(), file.length(), null, file.getName(), mimeType, sequence, access);
+        bfr.file = file;
+    }
+
+    /**
+     * Add a supporting file to the Bag by reference: it is listed in fetch.txt with the given URL and size, and in
+     * the manifests with the given checksums, but its content is not held in the Bag and is never read when the Bag
+     * is written.  A checksum must be given for each of the Bag's algorithms (see {@link #setAlgorithms(String...)})
+     * by the time it is written.
+     *
+     * Until the Bag is completed with {@link #complete(FetchResolver)} the BaggedItem for the file which is returned
+     * by {@link #getSequencedSecondaries(String)} has no input stream.
+     *
+     * @param url   the URL the file can be fetched from
+     * @param length    the size of the file in bytes, or -1 if it is not known
+     * @param checksums the checksums of the file, keyed by the BagIt name of the algorithm (e.g. md5)
+     * @param filename  the name of the file in data/supporting/
+     * @param mimeType  Mimetype of the file object.  If this is null, we will attempt to guess from the filename
+     * @param sequence  position in the sequence of supporting files in the Bag.  If this is -1 we will just add it to the end of the current list
+     * @param access    Access conditions of the item.  Should be "open" or "closed"
+     */
+    public void addSupportingFileReference(String url, long length, Map<String, String> checksums, String filename, String mimeType, int sequence, String access)
+    {
+        this.addSupportingReference(url, length, checksums, filename, mimeType, sequence, access);
+    }
+
+    /**
+     * Add a supporting file which is listed in fetch.txt rather than held in the Bag
+     *
+     * @return  the new file reference
+     */
+    private BagFileReference addSupportingReference(String url, long length, Map<String, String> checksums, String filename, String mimeType, int sequence, String access)
+    {
+        BagFileReference bfr = new BagFileReference();
+        bfr.url = url;
+        bfr.length = length;
+        bfr.path = "data/supporting/" + filename;
+        bfr.type = BagIt.SUPPORTING;
+        bfr.access = access;
+        if (checksums != null)
+        {
+            for (Map.Entry<String, String> checksum : checksums.entrySet())
+            {
+                bfr.checksums.put(checksum.getKey().toLowerCase(), checksum.getValue().toLowerCase());
+            }
+        }
+
+        // calculate the format if necessary
+        if (mimeType == null)
+        {
+            mimeType = this.formatDetector.detect(new File(filename));
+        }
+        bfr.format = mimeType;
+
+        // set the correct sequence number
+        if (sequence == -1)
+        {
+            int currentMax = this.getSupportingSequenceMax();
+            sequence = currentMax + 1;
+        }
+        bfr.sequence = sequence;
+
+        this.addFileRef(bfr);
+        return bfr;
     }
 
     /**
@@ -433,6 +928,7 @@ public class BagIt
      */
     private int getSupportingSequenceMax()
     {
+        this.loadAllTagFiles();
         int maxSeq = 0;
         for (BagFileReference bfr : this.fileRefs)
         {
@@ -447,16 +943,106 @@ public class BagIt
     }
 
     /**
-     * Add the provided metadata object to the Bag in the appropriate file format
+     * Add the file reference to the Bag.  A file which the Bag was read with is replaced by one added at the same
+     * path, and its metadata file or licence by a new one, so that a Bag read from a zip file can be corrected and
+     * then written out again with {@link #update()}.  Two added files may not have the same path: the first must be
+     * removed with {@link #removeFile(String)} before the second is added.
      *
-     * @param metadata  Metadata object
+     * @param bfr
+     * @throws IllegalArgumentException if a file has already been added at the same path
      */
-    public void addMetadata(Metadata metadata)
+    private void addFileRef(BagFileReference bfr)
     {
-        BagFileReference bfr = new BagFileReference();
-        bfr.metadata = metadata;
-        bfr.type = BagIt.METADATA;
+        String path = this.getDataPath(bfr);
+        if (this.addedIndex.containsKey(path))
+        {
+            throw new IllegalArgumentException("A file has already been added to the bag at " + path + "; remove it with removeFile() to replace it");
+        }
+
+        // the bag's own file no longer matches the Bag, so its checksums are computed again when next asked for
+        this.bagChecksums = null;
+        this.removeRead(path);
+
+        // there are only ever a few of these, so they are found by looking through the whole Bag
+        if (BagIt.METADATA.equals(bfr.type) || BagIt.LICENCE.equals(bfr.type))
+        {
+            List<String> others = new ArrayList<String>();
+            for (BagFileReference other : this.fileRefs)
+            {
+                if (bfr.type.equals(other.type))
+                {
+                    others.add(this.getDataPath(other));
+                }
+            }
+            for (String other : others)
+            {
+                this.removeRead(other);
+            }
+        }
+
         this.fileRefs.add(bfr);
+        this.addedIndex.put(path, bfr);
+    }
+
+    /**
+     * Remove the file at the given path if it is one the Bag was read with, rather than one added since
+     *
+     * @param path  the path of the file relative to the base directory of the Bag
+     */
+    private void removeRead(String path)
+    {
+        BagFileReference bfr = this.pathIndex.remove(path);
+        if (bfr != null)
+        {
+            this.fileRefs.remove(bfr);
+        }
+    }
+
+    /**
+     * Remove the file at the given path from the Bag
+     *
+     * @param path  the path of the file relative to the base directory of the Bag, e.g. data/final/MainArticle.pdf
+     * @return  true if the file was in the Bag, false if not
+     */
+    public boolean removeFile(String path)
+    {
+        this.bagChecksums = null;
+        BagFileReference bfr = this.addedIndex.remove(path);
+        if (bfr == null)
+        {
+            bfr = this.pathIndex.remove(path);
+        }
+        return bfr != null && this.fileRefs.remove(bfr);
+    }
+
+    /**
+     * Make sure that all of the tag files of a Bag read from a zip file have been applied, so that the
+     * sequences, formats and access conditions of its files are known
+     */
+    private void loadAllTagFiles()
+    {
+        try
+        {
+            this.loadTagFiles(FORMATS, FINAL_SEQUENCE, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS);
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Add the provided metadata object to the Bag in the appropriate file format
+     *
+     * @param metadata  Metadata object
+     */
+    public void addMetadata(Metadata metadata)
+    {
+        BagFileReference bfr = new BagFileReference();
+        bfr.metadata = metadata;
+        bfr.type = BagIt.METADATA;
+        this.addFileRef(bfr);
     }
 
     /**
@@ -469,7 +1055,7 @@ public class BagIt
         BagFileReference bfr = new BagFileReference();
         bfr.file = file;
         bfr.type = BagIt.METADATA;
-        this.fileRefs.add(bfr);
+        this.addFileRef(bfr);
     }
 
     /**
@@ -497,392 +1083,2352 @@ public class BagIt
         // calculate the format if necessary
         if (mimeType == null)
         {
-            mimeType = new MimetypesFileTypeMap().getContentType(file);
+            mimeType = this.formatDetector.detect(file);
         }
         bfr.format = mimeType;
 
-        this.fileRefs.add(bfr);
+        this.addFileRef(bfr);
     }
 
     /**
-     * Write the metadata object to the given path inside the given zip file output stream
+     * Set the checksum algorithms for which manifests are written when the Bag is serialised.  Every algorithm
+     * is computed in the same pass over each file, and written to manifest-[algorithm].txt and
+     * tagmanifest-[algorithm].txt.  The default is md5 alone.
      *
-     * @param metadata  A BagIt Metadata object
-     * @param path  The path within the zip file to store the resulting metadata file
-     * @param out   The ZipOutputStream to write the file to
-     * @return  The MD5 digest of the resulting metadata file
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * @param algorithms    the BagIt names of the algorithms, e.g. "md5", "sha256", "sha512"
+     * @throws IllegalArgumentException if an algorithm is not supported by this JVM
      */
-    private String writeToZip(Metadata metadata, String path, ZipOutputStream out)
-            throws IOException, NoSuchAlgorithmException
+    public void setAlgorithms(String... algorithms)
     {
-        String mdxml = metadata.toXML();
-        ByteArrayInputStream bais = new ByteArrayInputStream(mdxml.getBytes());
-        return this.writeToZip(bais, path, out);
+        if (algorithms.length == 0)
+        {
+            throw new IllegalArgumentException("At least one checksum algorithm is required");
+        }
+        this.algorithms = this.normaliseAlgorithms(Arrays.asList(algorithms));
     }
 
     /**
-     * Write the file referenced by the file handle to the given path inside the given zip output stream
+     * Get the checksum algorithms for which manifests are written when the Bag is serialised
      *
-     * @param file  The file reference
-     * @param path  The path within the zip file to store a copy of the file
-     * @param out   The ZipOutputStream to write the file to
-     * @return  The MD5 digest of the file
-     * @throws FileNotFoundException
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * @return
      */
-    private String writeToZip(File file, String path, ZipOutputStream out)
-            throws FileNotFoundException, IOException, NoSuchAlgorithmException
+    public List<String> getAlgorithms()
     {
-        FileInputStream fi = new FileInputStream(file);
-        return this.writeToZip(fi, path, out);
+        return Collections.unmodifiableList(this.algorithms);
     }
 
     /**
-     * Write a text file containing the supplied string to the given path inside the given zip output stream
+     * Set additional algorithms for the checksum of the whole Bag, which are computed as the zip file is written.
+     * MD5 is always computed, so that {@link #getMD5()} does not have to read the file back.
      *
-     * @param str   The string to write into a file
-     * @param path  The path within the zip file to store the resulting text file
-     * @param out   The ZipOutputStream to write the file to
-     * @return  The MD5 digest of the resulting text file
-     * @throws FileNotFoundException
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * @param algorithms    the BagIt names of the algorithms, e.g. "sha256"
+     * @throws IllegalArgumentException if an algorithm is not supported by this JVM
      */
-    private String writeToZip(String str, String path, ZipOutputStream out)
-            throws FileNotFoundException, IOException, NoSuchAlgorithmException
+    public void setBagAlgorithms(String... algorithms)
     {
-        ByteArrayInputStream bais = new ByteArrayInputStream(str.getBytes());
-        return this.writeToZip(bais, path, out);
+        List<String> list = new ArrayList<String>();
+        list.add("md5");
+        list.addAll(Arrays.asList(algorithms));
+        this.bagAlgorithms = this.normaliseAlgorithms(list);
     }
 
     /**
-     * Write the data from the input stream to the given path inside the given zip output stream
-     * @param fi    InputStream to source data from
-     * @param path  The path within the zip file to store the resulting file
-     * @param out   The ZipOutputStream to write the file to
-     * @return  The MD5 digest of the resulting text file
-     * @throws IOException
-     * @throws NoSuchAlgorithmException
+     * Get the algorithms for the checksum of the whole Bag which are computed when it is written
+     *
+     * @return
      */
-    private String writeToZip(InputStream fi, String path, ZipOutputStream out)
-            throws IOException, NoSuchAlgorithmException
+    public List<String> getBagAlgorithms()
     {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        BufferedInputStream origin = new BufferedInputStream(fi, BUFFER);
-        DigestInputStream dis = new DigestInputStream(origin, md);
+        return Collections.unmodifiableList(this.bagAlgorithms);
+    }
 
-        ZipEntry entry = new ZipEntry(path);
-        out.putNextEntry(entry);
-        int count;
-        byte data[] = new byte[BUFFER];
-        while((count = dis.read(data, 0, BUFFER)) != -1) {
-            out.write(data, 0, count);
+    /**
+     * Set the policy which decides how each payload file is compressed when the Bag is written.  The default is
+     * a {@link DefaultCompressionPolicy}.
+     *
+     * @param policy
+     */
+    public void setCompressionPolicy(CompressionPolicy policy)
+    {
+        if (policy == null)
+        {
+            throw new IllegalArgumentException("A compression policy is required");
         }
-        origin.close();
+        this.compressionPolicy = policy;
+    }
 
-        byte[] b = md.digest();
-        String result = "";
-        for (int i=0; i < b.length; i++)
+    /**
+     * Set the detector used to work out the format of files which are added without a MIME type.  By default
+     * every Bag shares a single {@link DefaultFormatDetector}, which identifies files by their extension.
+     *
+     * @param detector
+     */
+    public void setFormatDetector(FormatDetector detector)
+    {
+        if (detector == null)
         {
-            result += Integer.toString( ( b[i] & 0xff ) + 0x100, 16).substring( 1 );
+            throw new IllegalArgumentException("A format detector is required");
         }
-        return result;
+        this.formatDetector = detector;
     }
 
     /**
-     * Write the current state of the BagIt object out to the file the BagIt object is
-     * constructed over
+     * Set the size of the buffers used to read payload files when the Bag is written, and files on disk when they
+     * are verified or digested.  Files are read through their FileChannel a buffer at a time, so larger buffers
+     * mean fewer system calls on fast storage.
+     * Each thread which writes the Bag keeps its buffers for reuse, so very large buffers cost memory on every
+     * thread.  The default is 256KB.
+     *
+     * @param bufferSize    the buffer size, in bytes
      */
-    public void writeToFile()
+    public void setBufferSize(int bufferSize)
     {
-        try
+        if (bufferSize < Digester.BUFFER)
         {
-            // if this bag was initialised from a zip file, we can't write back to it - just too
-            // complicated.
-            if (this.zipFile != null) {
-                throw new RuntimeException("Cannot re-write a modified bag file.  You should either create a new bag file from the source files, or read in the old zip file and pass the components in here.");
-            }
-
-            // it may be that the bagFile exists - we don't care, we just overwrite
-            FileOutputStream dest = new FileOutputStream(this.bagFile);
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-
-            String formats = "";
-            String finalSequence = "";
-            String supportingAccess = "";
-            String supportingSequence = "";
-            String manifest = "";
-            String tagmanifest = "";
-
-            for (BagFileReference bfr : this.fileRefs)
-            {
-                if (BagIt.FINAL.equals(bfr.type))
-                {
-                    String dataFinal = "data/final/" + bfr.file.getName();
-                    String checksum = this.writeToZip(bfr.file, this.baseDir + dataFinal, out);
-                    if (bfr.format != null)
-                    {
-                        formats = formats + bfr.format + "\t" + dataFinal + "\n";
-                    }
-                    finalSequence = finalSequence + bfr.sequence + "\t" + dataFinal + "\n";
-                    manifest = manifest + checksum + "\t" + dataFinal + "\n";
-                }
-                else if (BagIt.SUPPORTING.equals(bfr.type))
-                {
-                    String dataSupporting = "data/supporting/" + bfr.file.getName();
-                    String checksum = this.writeToZip(bfr.file, this.baseDir + dataSupporting, out);
-                    if (bfr.format != null)
-                    {
-                        formats = formats + bfr.format + "\t" + dataSupporting + "\n";
-                    }
-                    supportingSequence = supportingSequence + bfr.sequence + "\t" + dataSupporting + "\n";
-                    supportingAccess = supportingAccess + bfr.access + "\t" + dataSupporting + "\n";
-                    manifest = manifest + checksum + "\t" + dataSupporting + "\n";
-                }
-                else if (BagIt.LICENCE.equals(bfr.type))
-                {
-                    String dataLicence = "data/licence/" + bfr.file.getName();
-                    String checksum = this.writeToZip(bfr.file, this.baseDir + dataLicence, out);
-                    if (bfr.format != null)
-                    {
-                        formats = formats + bfr.format + "\t" + dataLicence + "\n";
-                    }
-                    manifest = manifest + checksum + "\t" + dataLicence + "\n";
-                }
-                else if (BagIt.METADATA.equals(bfr.type))
-                {
-                    String dataMetadata = "data/metadata/metadata.xml";
-                    String checksum = null;
-                    if (bfr.file != null)
-                    {
-                        checksum = this.writeToZip(bfr.file, this.baseDir + dataMetadata, out);
-                    }
-                    else if (bfr.metadata != null)
-                    {
-                        checksum = this.writeToZip(bfr.metadata, this.baseDir + dataMetadata, out);
-                    }
-                    formats = formats + "text/xml\t" + dataMetadata + "\n";
-                    manifest = manifest + checksum + "\t" + dataMetadata + "\n";
-                }
-            }
-
-            if (!"".equals(formats))
-            {
-                String checksum = this.writeToZip(formats, this.baseDir + "tagfiles/formats.txt", out);
-                tagmanifest = tagmanifest + checksum + "\ttagfiles/formats.txt" + "\n";
-            }
-
-            if (!"".equals(finalSequence))
-            {
-                String checksum = this.writeToZip(finalSequence, this.baseDir + "tagfiles/final.sequence.txt", out);
-                tagmanifest = tagmanifest + checksum + "\ttagfiles/final.sequence.txt" + "\n";
-            }
+            throw new IllegalArgumentException("The buffer size must be at least " + Digester.BUFFER + " bytes");
+        }
+        this.bufferSize = bufferSize;
+    }
 
-            if (!"".equals(supportingSequence))
-            {
-                String checksum = this.writeToZip(supportingSequence, this.baseDir + "tagfiles/supporting.sequence.txt", out);
-                tagmanifest = tagmanifest + checksum + "\ttagfiles/supporting.sequence.txt" + "\n";
-            }
+    /**
+     * Set whether {@link #writeToDirectory(File)} hard links payload files which are on disk into the directory,
+     * rather than copying them.  A link takes no time or space whatever the size of the file, but the Bag then
+     * shares its content with the original, so changing either changes both.  Files which cannot be linked, such
+     * as those on another file system, are copied as usual.  The default is to copy.
+     *
+     * @param linkPayload   true to hard link payload files
+     */
+    public void setLinkPayload(boolean linkPayload)
+    {
+        this.linkPayload = linkPayload;
+    }
 
-            if (!"".equals(supportingAccess))
-            {
-                String checksum = this.writeToZip(supportingAccess, this.baseDir + "tagfiles/supporting.access.txt", out);
-                tagmanifest = tagmanifest + checksum + "\ttagfiles/supporting.access.txt" + "\n";
-            }
+    /**
+     * Get the decisions made by the compression policy the last time the Bag was written, keyed by the path of
+     * each payload file relative to the base directory (e.g. data/final/MainArticle.pdf), in the order the files
+     * were written.
+     *
+     * @return
+     */
+    public Map<String, Compression> getCompressionDecisions()
+    {
+        return Collections.unmodifiableMap(this.compressionDecisions);
+    }
 
-            if (!"".equals(manifest))
+    /**
+     * Lower case and de-duplicate the given algorithm names, making sure that they are all supported
+     *
+     * @param algorithms    the BagIt names of the algorithms
+     * @return
+     * @throws IllegalArgumentException if an algorithm is not supported by this JVM
+     */
+    private List<String> normaliseAlgorithms(List<String> algorithms)
+    {
+        List<String> list = new ArrayList<String>();
+        for (String algorithm : algorithms)
+        {
+            if (!list.contains(algorithm.toLowerCase()))
             {
-                this.writeToZip(manifest, this.baseDir + "manifest-md5.txt", out);
+                list.add(algorithm.toLowerCase());
             }
+        }
+        // fail now rather than when the bag is written
+        Digester.release(Digester.acquire(list));
+        return list;
+    }
 
-            if (!"".equals(tagmanifest))
+    /**
+     * Write the entry for the given file reference to the given path inside the given zip archive.  If the
+     * entry has been prepared in the background it is copied in as it is, otherwise its data is read,
+     * compressed and digested now, as decided by the compression policy.
+     *
+     * @param bfr   The file reference to write
+     * @param path  The path of the file relative to the base directory of the Bag
+     * @param out   The ZipArchiveWriter to write the file to
+     * @param prepared  entries which are being prepared in the background, keyed by file reference
+     * @param original  the zip file this Bag was read from, from which its unchanged files are copied, or null
+     * @return  The digests of the file, keyed by algorithm
+     * @throws IOException
+     */
+    private Map<String, String> writeToZip(BagFileReference bfr, String path, ZipArchiveWriter out, Map<BagFileReference, Future<PreparedEntry>> prepared, ZipArchiveReader original)
+            throws IOException
+    {
+        PreparedEntry entry;
+        Future<PreparedEntry> future = prepared.get(bfr);
+        if (original != null && bfr.zipEntry != null)
+        {
+            entry = this.prepareCopy(bfr, path, original);
+        }
+        else if (future != null)
+        {
+            entry = this.waitFor(future);
+        }
+        else
+        {
+            PushbackInputStream source = new PushbackInputStream(this.openPayload(bfr), BagIt.SAMPLE);
+            Compression compression = this.chooseCompression(this.compressionPolicy, bfr, path, source);
+            List<String> algorithms = this.algorithmsToCompute(bfr);
+            if (!compression.isStored())
             {
-                this.writeToZip(tagmanifest, this.baseDir + "tagmanifest-md5.txt", out);
+                this.compressionDecisions.put(path, compression);
+                return this.withKnownChecksums(bfr, this.writeToZip(source, this.baseDir + path, out, compression.getLevel(), algorithms, this.bufferSize));
             }
 
-            String bagitfile = "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8";
-            this.writeToZip(bagitfile, this.baseDir + "bagit.txt", out);
-
-            out.close();
+            entry = this.prepareStored(bfr, this.baseDir + path, source, algorithms, this.bufferSize);
+            entry.compression = compression;
         }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
-        catch (IOException e)
+
+        try
         {
-            throw new RuntimeException(e);
+            this.compressionDecisions.put(path, entry.compression);
+            out.writePrepared(entry);
+            return this.withKnownChecksums(bfr, entry.checksums);
         }
-        catch (NoSuchAlgorithmException e)
+        finally
         {
-            throw new RuntimeException(e);
+            entry.delete();
         }
     }
 
     /**
-     * Return the list of primary files sorted in sequence
+     * Get the checksums of a payload file which is listed in fetch.txt rather than written into the Bag.  Any which
+     * were not given when it was added are computed from its local copy, if it has one.
      *
-     * @return
+     * @param bfr   the file reference
+     * @param path  the path of the file relative to the base directory of the Bag
+     * @return  the checksums in all of the Bag's algorithms
+     * @throws IOException  if a checksum is missing and there is no local copy to compute it from
      */
-    public TreeMap<Integer, BaggedItem> getSequencedFinals()
+    private Map<String, String> fetchedChecksums(BagFileReference bfr, String path)
+            throws IOException
     {
-        try
+        List<String> algorithms = this.algorithmsToCompute(bfr);
+        Map<String, String> computed = new HashMap<String, String>();
+        if (!algorithms.isEmpty())
         {
-            TreeMap<Integer, BaggedItem> sequencedPrimaries = new TreeMap<Integer, BaggedItem>();
-
-            for (BagFileReference bfr : this.fileRefs)
+            if (bfr.file == null)
             {
-                if (BagIt.FINAL.equals(bfr.type))
-                {
-                    // the bagged item
-                    BaggedItem baggedItem = new BaggedItem();
-
-                    baggedItem.setInputStream(bfr.getInputStream());
-                    baggedItem.setFilename(bfr.getFilename());
-                    baggedItem.setFormat(bfr.format);
-                    baggedItem.setSequence(bfr.sequence);
-
-                    // create the node
-                    sequencedPrimaries.put(bfr.sequence, baggedItem);
-                }
+                throw new IOException("No " + algorithms.get(0) + " checksum was given for the fetched file " + path);
             }
-
-            return sequencedPrimaries;
-        }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
+            computed = FileSource.checksums(bfr.file, algorithms, this.bufferSize);
         }
+        return this.withKnownChecksums(bfr, computed);
     }
 
     /**
-     * Return the list of secondary files sorted in sequence
+     * Prepare an unchanged file of the zip this Bag was read from to be copied into the new zip as it is, with its
+     * CRC.  Its checksums are taken from the manifests, and only computed if the Bag is being written with an
+     * algorithm the original manifests did not have.
      *
-     * @param accessRights  Access rights filter - provide "open" or "closed", to obtain only those with that access right
+     * @param bfr   the file reference
+     * @param path  the path of the file relative to the base directory of the Bag
+     * @param original  the zip file this Bag was read from
      * @return
+     * @throws IOException
      */
-    public TreeMap<Integer, BaggedItem> getSequencedSecondaries(String accessRights)
+    private PreparedEntry prepareCopy(BagFileReference bfr, String path, ZipArchiveReader original)
+            throws IOException
     {
-        try
+        ZipArchiveReader.Entry unchanged = original.getEntry(bfr.zipEntry.getName());
+        if (unchanged == null)
         {
-            TreeMap<Integer, BaggedItem> sequencedSecondaries = new TreeMap<Integer, BaggedItem>();
-
-            for (BagFileReference bfr : this.fileRefs)
-            {
-                if (BagIt.SUPPORTING.equals(bfr.type) && accessRights.equals(bfr.access))
-                {
-                    // the bagged item
-                    BaggedItem baggedItem = new BaggedItem();
-
-                    baggedItem.setInputStream(bfr.getInputStream());
-                    baggedItem.setFilename(bfr.getFilename());
-                    baggedItem.setFormat(bfr.format);
-                    baggedItem.setSequence(bfr.sequence);
+            throw new IOException("Entry " + bfr.zipEntry.getName() + " is missing from " + this.bagFile.getAbsolutePath());
+        }
 
-                    // create the node
-                    sequencedSecondaries.put(bfr.sequence, baggedItem);
-                }
-            }
+        List<String> algorithms = this.algorithmsToCompute(bfr);
+        Map<String, String> computed = new HashMap<String, String>();
+        if (!algorithms.isEmpty())
+        {
+            computed = Digester.checksums(bfr.getInputStream(), algorithms);
+        }
 
-            return sequencedSecondaries;
+        PreparedEntry entry = PreparedEntry.copy(this.baseDir + path, original, unchanged, computed);
+        if (unchanged.method == ZipEntry.STORED)
+        {
+            entry.compression = Compression.stored("unchanged");
         }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
-        catch (IOException e)
+        else
         {
-            throw new RuntimeException(e);
+            entry.compression = Compression.deflated(Deflater.DEFAULT_COMPRESSION, "unchanged");
         }
+        return entry;
     }
 
-
     /**
-     * Get the Metadata file from the Bag
+     * Open the content of the given file reference for writing into the Bag.  Files on disk are read through their
+     * FileChannel.
      *
+     * @param bfr
      * @return
+     * @throws IOException
      */
-    public BaggedItem getMetadataFile()
+    private InputStream openPayload(BagFileReference bfr)
+            throws IOException
     {
-        try
-        {
-            for (BagFileReference bfr : this.fileRefs)
-            {
-                if (BagIt.METADATA.equals(bfr.type))
-                {
-                    BaggedItem metadata = new BaggedItem();
-                    metadata.setInputStream(bfr.getInputStream());
-                    metadata.setFilename("metadata.xml");
-                    metadata.setFormat("text/xml");
-                    return metadata;
-                }
-            }
-            return null;
-        }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
-        catch (IOException e)
+        if (bfr.file != null)
         {
-            throw new RuntimeException(e);
+            return new FileSource(bfr.file);
         }
+        return bfr.getInputStream();
     }
 
-
     /**
-     * Get the licence file from the Bag
+     * Prepare the given payload file to be stored without compression.  The sizes and CRC of a stored entry have to
+     * be known before it is written: a file on disk is scanned for them and read again when it is written, while
+     * any other source is buffered.
      *
+     * @param bfr   the file reference
+     * @param name  the path of the entry inside the zip file
+     * @param source    the content of the file, which is closed
+     * @param algorithms    the BagIt names of the algorithms to compute checksums in
+     * @param bufferSize    the size of the buffer to read the file with
      * @return
+     * @throws IOException
      */
-    public BaggedItem getLicenceFile()
+    private PreparedEntry prepareStored(BagFileReference bfr, String name, InputStream source, List<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        if (bfr.file == null)
+        {
+            return PreparedEntry.prepare(name, source, ZipEntry.STORED, 0, algorithms, bufferSize);
+        }
+        source.close();
+        return PreparedEntry.scan(name, bfr.file, algorithms, bufferSize);
+    }
+
+    /**
+     * Ask the compression policy how to compress the given payload file, giving it a sample from the start of the
+     * file.  The sample is pushed back onto the stream afterwards, so the stream can still be read from the start.
+     *
+     * @param policy    the compression policy
+     * @param bfr   the file reference
+     * @param path  the path of the file relative to the base directory of the Bag
+     * @param source    the content of the file
+     * @return
+     * @throws IOException
+     */
+    private Compression chooseCompression(CompressionPolicy policy, BagFileReference bfr, String path, PushbackInputStream source)
+            throws IOException
+    {
+        byte[] sample = new byte[BagIt.SAMPLE];
+        int length = 0;
+        int count;
+        while (length < sample.length && (count = source.read(sample, length, sample.length - length)) != -1)
+        {
+            length += count;
+        }
+        source.unread(sample, 0, length);
+        return policy.choose(path, bfr.format, sample, length);
+    }
+
+    /**
+     * Write a text file containing the supplied string to the given path inside the given zip archive
+     *
+     * @param str   The string to write into a file
+     * @param path  The path within the zip file to store the resulting text file
+     * @param out   The ZipArchiveWriter to write the file to
+     * @return  The digests of the resulting text file, keyed by algorithm
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    private Map<String, String> writeToZip(String str, String path, ZipArchiveWriter out)
+            throws FileNotFoundException, IOException
+    {
+        ByteArrayInputStream bais = new ByteArrayInputStream(str.getBytes("UTF-8"));
+        return this.writeToZip(bais, path, out);
+    }
+
+    /**
+     * Write the tag file to the given path inside the given zip archive
+     *
+     * @param tagFile   The tag file to write
+     * @param path  The path within the zip file to store the tag file
+     * @param out   The ZipArchiveWriter to write the file to
+     * @return  The digests of the tag file, keyed by algorithm
+     * @throws IOException
+     */
+    private Map<String, String> writeToZip(TagFileWriter tagFile, String path, ZipArchiveWriter out)
+            throws IOException
+    {
+        return this.writeToZip(tagFile.getInputStream(), path, out);
+    }
+
+    /**
+     * Write the data from the input stream to the given path inside the given zip archive
+     * @param fi    InputStream to source data from
+     * @param path  The path within the zip file to store the resulting file
+     * @param out   The ZipArchiveWriter to write the file to
+     * @return  The digests of the resulting file in each of the Bag's algorithms, keyed by algorithm
+     * @throws IOException
+     */
+    private Map<String, String> writeToZip(InputStream fi, String path, ZipArchiveWriter out)
+            throws IOException
+    {
+        return this.writeToZip(fi, path, out, Deflater.DEFAULT_COMPRESSION, this.algorithms, Digester.BUFFER);
+    }
+
+    /**
+     * Write the data from the input stream to the given path inside the given zip archive, deflating it at the
+     * given level
+     *
+     * @param fi    InputStream to source data from
+     * @param path  The path within the zip file to store the resulting file
+     * @param out   The ZipArchiveWriter to write the file to
+     * @param level The deflate level
+     * @param algorithms    The BagIt names of the algorithms to compute digests in
+     * @param bufferSize    The size of the buffer to read the data with
+     * @return  The digests of the resulting file, keyed by algorithm
+     * @throws IOException
+     */
+    private Map<String, String> writeToZip(InputStream fi, String path, ZipArchiveWriter out, int level, List<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        // every algorithm is computed in the same pass as the data is compressed
+        List<MessageDigest> digests = Digester.acquire(algorithms);
+        byte data[] = Digester.acquireBuffer(bufferSize);
+        Map<String, String> checksums = null;
+        try
+        {
+            out.putNextEntry(path, ZipEntry.DEFLATED, level);
+            int count;
+            while((count = fi.read(data, 0, data.length)) != -1) {
+                for (MessageDigest md : digests)
+                {
+                    md.update(data, 0, count);
+                }
+                out.write(data, 0, count);
+            }
+            out.closeEntry();
+            checksums = Digester.complete(algorithms, digests);
+            return checksums;
+        }
+        finally
+        {
+            // complete() gives the digests back itself
+            if (checksums == null)
+            {
+                Digester.release(digests);
+            }
+            Digester.releaseBuffer(data);
+            fi.close();
+        }
+    }
+
+    /**
+     * Get the algorithms in which the checksum of the given file still has to be computed, because it was not
+     * given in the manifests of the bag the file was read from
+     *
+     * @param bfr
+     * @return
+     */
+    private List<String> algorithmsToCompute(BagFileReference bfr)
+    {
+        List<String> algorithms = new ArrayList<String>();
+        for (String algorithm : this.algorithms)
+        {
+            if (!bfr.checksums.containsKey(algorithm))
+            {
+                algorithms.add(algorithm);
+            }
+        }
+        return algorithms;
+    }
+
+    /**
+     * Combine the computed checksums of the given file with those which were already known from a manifest
+     *
+     * @param bfr
+     * @param computed  the checksums which were computed, keyed by algorithm
+     * @return  the checksums in all of the Bag's algorithms
+     */
+    private Map<String, String> withKnownChecksums(BagFileReference bfr, Map<String, String> computed)
+    {
+        if (bfr.checksums.isEmpty())
+        {
+            return computed;
+        }
+        Map<String, String> checksums = new HashMap<String, String>(bfr.checksums);
+        checksums.putAll(computed);
+        return checksums;
+    }
+
+    /**
+     * Get the path, relative to the base directory of the Bag, at which the given file reference will be written
+     *
+     * @param bfr   the file reference
+     * @return  the path, or null if the reference is of an unknown type
+     */
+    private String getDataPath(BagFileReference bfr)
+    {
+        if (bfr.path != null)
+        {
+            return bfr.path;
+        }
+        else if (BagIt.FINAL.equals(bfr.type))
+        {
+            return "data/final/" + bfr.file.getName();
+        }
+        else if (BagIt.SUPPORTING.equals(bfr.type))
+        {
+            return "data/supporting/" + bfr.file.getName();
+        }
+        else if (BagIt.LICENCE.equals(bfr.type))
+        {
+            return "data/licence/" + bfr.file.getName();
+        }
+        else if (BagIt.METADATA.equals(bfr.type))
+        {
+            return "data/metadata/metadata.xml";
+        }
+        return null;
+    }
+
+    /**
+     * Write the current state of the BagIt object out to the file the BagIt object is
+     * constructed over
+     */
+    public void writeToFile()
+    {
+        this.writeToFile((ExecutorService) null);
+    }
+
+    /**
+     * Write the current state of the BagIt object out to the file the BagIt object is
+     * constructed over, compressing and digesting the files on the given number of threads
+     *
+     * @param threads   number of threads to prepare the entries of the zip file with
+     */
+    public void writeToFile(int threads)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            this.writeToFile(executor);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Write the current state of the BagIt object out to the file the BagIt object is
+     * constructed over.
+     *
+     * If an executor is supplied, every file is compressed and digested as a separate task into its own
+     * buffer (in memory, or a temporary file for large entries), and the results are then written into the
+     * zip file in the same order as they would be on a single thread.  The executor is not shut down
+     * by this method.
+     *
+     * @param executor  executor on which to prepare the entries, or null to write everything on the calling thread
+     */
+    public void writeToFile(ExecutorService executor)
+    {
+        // if this bag was initialised from a zip file, we can't write back to it - just too
+        // complicated.
+        this.checkWritable();
+        if (this.bagDir != null)
+        {
+            throw new RuntimeException("This bag was read from the directory " + this.bagDir.getAbsolutePath() + ".  Use writeTo() to zip it, or writeToDirectory() to copy it.");
+        }
+
+        FileOutputStream dest = null;
+        Map<String, String> checksums = null;
+        try
+        {
+            // it may be that the bagFile exists - we don't care, we just overwrite
+            this.bagChecksums = null;
+            dest = new FileOutputStream(this.bagFile);
+            checksums = this.write(dest, executor);
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            if (dest != null)
+            {
+                try
+                {
+                    dest.close();
+                }
+                catch (IOException e)
+                {
+                    // the zip file has either been closed already, or we are failing anyway
+                }
+            }
+        }
+        this.keepChecksums(checksums);
+    }
+
+    /**
+     * Replace the zip file this Bag was read from with a copy containing the changes made since it was read (files
+     * added, replaced with {@link #addMetadata(Metadata)}, {@link #addLicenceFile(File)} and so on, or removed with
+     * {@link #removeFile(String)}).
+     *
+     * Files which have not changed are copied into the new zip file as they are stored in the old one, without
+     * being decompressed, and their CRCs and the checksums in the old manifests are reused.  Only new files and the
+     * tag files and manifests are read and digested, so correcting the metadata of a very large Bag is quick.
+     *
+     * The new zip file is written alongside the old one and then moved over it, after which the Bag is read from
+     * it again.
+     *
+     * @throws IOException  if the Bag was not read from a zip file, or could not be written.  If the new zip file
+     *                      could not be moved into place it is left where it was written, and the exception says where.
+     */
+    public void update()
+            throws IOException
+    {
+        if (this.zipFile == null)
+        {
+            throw new IOException("Only a bag read from a zip file can be updated.  Use writeToFile() instead.");
+        }
+
+        File target = this.bagFile.getAbsoluteFile();
+        File temp = File.createTempFile("bagit", ".update", target.getParentFile());
+        Map<String, String> checksums = null;
+        boolean written = false;
+        try
+        {
+            FileOutputStream dest = new FileOutputStream(temp);
+            try
+            {
+                checksums = this.write(dest, null);
+            }
+            finally
+            {
+                dest.close();
+            }
+            written = true;
+        }
+        finally
+        {
+            if (!written)
+            {
+                temp.delete();
+            }
+        }
+
+        this.zipFile.close();
+        this.zipFile = null;
+
+        // some platforms will not rename over an existing file
+        if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target)))
+        {
+            throw new IOException("Unable to replace " + target.getAbsolutePath() + "; the updated bag is at " + temp.getAbsolutePath());
+        }
+
+        // read the new zip file, keeping the checksums computed as it was written
+        this.fileRefs = new ArrayList<BagFileReference>();
+        this.pathIndex = new HashMap<String, BagFileReference>();
+        this.addedIndex = new HashMap<String, BagFileReference>();
+        this.pendingTagFiles = new ArrayList<ZipEntry>();
+        this.metadata = null;
+        this.metadataSource = null;
+        this.loadBag(target, true);
+        this.keepChecksums(checksums);
+    }
+
+    /**
+     * Keep the checksums computed while writing the bag's own file, along with the file's length and modification
+     * time, for {@link #getChecksum(String)}
+     *
+     * @param checksums
+     */
+    private void keepChecksums(Map<String, String> checksums)
+    {
+        this.bagChecksums = checksums;
+        this.bagChecksumsLength = this.bagFile.length();
+        this.bagChecksumsModified = this.bagFile.lastModified();
+    }
+
+    /**
+     * Write the current state of the BagIt object as a zip file to the given output stream, such as the body
+     * of an HTTP request, rather than to the file the BagIt object is constructed over.  The output stream is
+     * flushed but not closed.
+     *
+     * A Bag read from a zip file can be written out in this way, with any changes made to it; its unchanged files
+     * are copied as they are, as described for {@link #update()}.
+     *
+     * The checksums of the zip file written to the stream are returned, rather than kept for {@link #getMD5()},
+     * which gives the checksums of the file the BagIt object is constructed over.
+     *
+     * @param os    OutputStream to write the zip file to
+     * @return  the checksums of the zip file as written, in each of the {@link #getBagAlgorithms()}
+     * @throws IOException
+     */
+    public Map<String, String> writeTo(OutputStream os)
+            throws IOException
+    {
+        return this.writeTo(os, null);
+    }
+
+    /**
+     * Write the current state of the BagIt object as a zip file to the given channel.  The channel is not closed.
+     *
+     * @param channel   WritableByteChannel to write the zip file to
+     * @return  the checksums of the zip file as written, in each of the {@link #getBagAlgorithms()}
+     * @throws IOException
+     */
+    public Map<String, String> writeTo(WritableByteChannel channel)
+            throws IOException
+    {
+        return this.writeTo(Channels.newOutputStream(channel), null);
+    }
+
+    /**
+     * Write the current state of the BagIt object as a zip file to the given output stream, which is flushed
+     * but not closed.  The executor is used in the same way as by {@link #writeToFile(ExecutorService)}.
+     *
+     * @param os    OutputStream to write the zip file to
+     * @param executor  executor on which to prepare the entries, or null to write everything on the calling thread
+     * @return  the checksums of the zip file as written, in each of the {@link #getBagAlgorithms()}
+     * @throws IOException
+     */
+    public Map<String, String> writeTo(OutputStream os, ExecutorService executor)
+            throws IOException
+    {
+        // the checksums are of this copy of the bag, not of the file it is constructed over, so are not kept
+        return this.write(os, executor);
+    }
+
+    /**
+     * Write the current state of the BagIt object as a zip file to the given output stream, as described for
+     * {@link #writeTo(OutputStream, ExecutorService)}.
+     *
+     * @param os    OutputStream to write the zip file to
+     * @param executor  executor on which to prepare the entries, or null to write everything on the calling thread
+     * @return  the checksums of the zip file as written, in each of the {@link #getBagAlgorithms()}
+     * @throws IOException
+     */
+    private Map<String, String> write(OutputStream os, ExecutorService executor)
+            throws IOException
+    {
+        // a bag read from a zip needs all of its tag files, and the checksums from its manifests; its unchanged
+        // files are then copied from the zip as they are
+        ZipArchiveReader original = null;
+        if (this.zipFile != null)
+        {
+            this.loadTagFiles(FORMATS, FINAL_SEQUENCE, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS);
+            this.loadManifestChecksums();
+            original = new ZipArchiveReader(this.bagFile);
+        }
+
+        Map<BagFileReference, Future<PreparedEntry>> prepared = new HashMap<BagFileReference, Future<PreparedEntry>>();
+
+        // the manifests are accumulated line by line as the payload is written
+        Map<String, TagFileWriter> manifests = new LinkedHashMap<String, TagFileWriter>();
+        Map<String, TagFileWriter> tagmanifests = new LinkedHashMap<String, TagFileWriter>();
+        for (String algorithm : this.algorithms)
+        {
+            manifests.put(algorithm, new TagFileWriter());
+            tagmanifests.put(algorithm, new TagFileWriter());
+        }
+
+        Map<String, TagFileWriter> tagFiles = new HashMap<String, TagFileWriter>();
+        this.compressionDecisions.clear();
+
+        // the checksums of the whole zip are computed as it is written, rather than by reading it back
+        Map<String, String> bagChecksums = null;
+        List<String> bagAlgorithms = new ArrayList<String>(this.bagAlgorithms);
+        List<MessageDigest> bagDigests = Digester.acquire(bagAlgorithms);
+        ZipArchiveWriter out = null;
+
+        try
+        {
+            // in parallel mode, compress and digest the files in the background, a bounded window of them ahead of
+            // the one being written, so that the prepared entries waiting in memory or temporary files do not
+            // grow with the size of the bag
+            List<BagFileReference> toPrepare = new ArrayList<BagFileReference>();
+            if (executor != null)
+            {
+                for (BagFileReference bfr : this.fileRefs)
+                {
+                    String dataPath = this.getDataPath(bfr);
+                    if (dataPath != null && bfr.url == null && (original == null || bfr.zipEntry == null))
+                    {
+                        toPrepare.add(bfr);
+                    }
+                }
+            }
+            Iterator<BagFileReference> unprepared = toPrepare.iterator();
+            int window = BagIt.preparedWindow(executor);
+            this.prepareAhead(unprepared, prepared, executor, window);
+
+            OutputStream tee = os;
+            for (MessageDigest md : bagDigests)
+            {
+                tee = new DigestOutputStream(tee, md);
+            }
+            out = new ZipArchiveWriter(tee);
+            out.setBufferSize(this.bufferSize);
+
+            // the tag files only depend on what we already know about each file, so they go in ahead of the
+            // payload; this means that a streaming reader can deliver each payload file as soon as it arrives
+            tagFiles = this.createTagFiles();
+            for (String path : tagFiles.keySet())
+            {
+                if (!tagFiles.get(path).isEmpty())
+                {
+                    Map<String, String> checksums = this.writeToZip(tagFiles.get(path), this.baseDir + path, out);
+                    this.addToManifests(tagmanifests, checksums, path);
+                }
+            }
+
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                String path = this.getDataPath(bfr);
+                if (path == null)
+                {
+                    continue;
+                }
+                Map<String, String> checksums;
+                if (bfr.url != null)
+                {
+                    checksums = this.fetchedChecksums(bfr, path);
+                }
+                else
+                {
+                    checksums = this.writeToZip(bfr, path, out, prepared, original);
+
+                    // the files are prepared in the order they are written, so this was the oldest in the window
+                    if (prepared.remove(bfr) != null)
+                    {
+                        this.prepareAhead(unprepared, prepared, executor, window);
+                    }
+                }
+                this.addToManifests(manifests, checksums, path);
+            }
+
+            for (String algorithm : this.algorithms)
+            {
+                if (!manifests.get(algorithm).isEmpty())
+                {
+                    this.writeToZip(manifests.get(algorithm), this.baseDir + BagIt.MANIFEST_PREFIX + algorithm + ".txt", out);
+                }
+            }
+
+            for (String algorithm : this.algorithms)
+            {
+                if (!tagmanifests.get(algorithm).isEmpty())
+                {
+                    this.writeToZip(tagmanifests.get(algorithm), this.baseDir + BagIt.TAGMANIFEST_PREFIX + algorithm + ".txt", out);
+                }
+            }
+
+            String bagitfile = "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8";
+            this.writeToZip(bagitfile, this.baseDir + "bagit.txt", out);
+
+            out.finish();
+            bagChecksums = Digester.complete(bagAlgorithms, bagDigests);
+            return bagChecksums;
+        }
+        finally
+        {
+            if (bagChecksums == null)
+            {
+                Digester.release(bagDigests);
+            }
+            if (out != null)
+            {
+                // a zip which was abandoned part way through still has the writer's pooled Deflater
+                out.release();
+            }
+            this.discard(prepared);
+            this.discard(tagFiles.values());
+            this.discard(manifests.values());
+            this.discard(tagmanifests.values());
+            if (original != null)
+            {
+                original.close();
+            }
+        }
+    }
+
+    /**
+     * Write the current state of the BagIt object out as an unzipped bag in the given directory, which is created
+     * if necessary.  The directory gets the same payload, tag files and manifests as the zip written by
+     * {@link #writeToFile()}.
+     *
+     * Payload files are copied with FileChannel.transferTo, so their content does not pass through the JVM.  Any
+     * checksums which are already known from the manifests of the bag this one was read from are reused rather
+     * than computed again, so a zipped bag can be unpacked to a directory (and a directory bag zipped with
+     * {@link #writeTo(OutputStream)}) without digesting the payload.
+     *
+     * @param dir   the directory to write the bag to
+     * @throws IOException  if the bag cannot be written, or has a path which would be written outside the
+     *                      directory, in which case nothing is written
+     */
+    public void writeToDirectory(File dir)
+            throws IOException
+    {
+        if (this.bagDir != null && this.bagDir.getCanonicalFile().equals(dir.getCanonicalFile()))
+        {
+            throw new IOException("Cannot write a directory bag over itself: " + dir.getAbsolutePath());
+        }
+
+        // a bag read from a zip needs all of its tag files, and the checksums from its manifests
+        if (this.zipFile != null)
+        {
+            this.loadTagFiles(FORMATS, FINAL_SEQUENCE, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS);
+            this.loadManifestChecksums();
+        }
+
+        Map<String, TagFileWriter> tagFiles = new HashMap<String, TagFileWriter>();
+        Map<String, TagFileWriter> manifests = new LinkedHashMap<String, TagFileWriter>();
+        Map<String, TagFileWriter> tagmanifests = new LinkedHashMap<String, TagFileWriter>();
+        for (String algorithm : this.algorithms)
+        {
+            manifests.put(algorithm, new TagFileWriter());
+            tagmanifests.put(algorithm, new TagFileWriter());
+        }
+
+        try
+        {
+            // every payload path is checked before anything is written, so a bag with a path which would escape
+            // the directory writes nothing at all
+            Map<BagFileReference, File> targets = new HashMap<BagFileReference, File>();
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                String path = this.getDataPath(bfr);
+                if (path != null)
+                {
+                    targets.put(bfr, this.target(dir, path));
+                }
+            }
+
+            tagFiles = this.createTagFiles();
+            for (String path : tagFiles.keySet())
+            {
+                if (!tagFiles.get(path).isEmpty())
+                {
+                    Map<String, String> checksums = this.copy(tagFiles.get(path).getInputStream(), new File(dir, path), this.algorithms);
+                    this.addToManifests(tagmanifests, checksums, path);
+                }
+            }
+
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                String path = this.getDataPath(bfr);
+                if (path == null)
+                {
+                    continue;
+                }
+                Map<String, String> checksums;
+                if (bfr.url != null)
+                {
+                    checksums = this.fetchedChecksums(bfr, path);
+                }
+                else
+                {
+                    checksums = this.copy(bfr, targets.get(bfr));
+                }
+                this.addToManifests(manifests, checksums, path);
+            }
+
+            List<String> none = Collections.emptyList();
+            for (String algorithm : this.algorithms)
+            {
+                if (!manifests.get(algorithm).isEmpty())
+                {
+                    this.copy(manifests.get(algorithm).getInputStream(), new File(dir, BagIt.MANIFEST_PREFIX + algorithm + ".txt"), none);
+                }
+            }
+
+            for (String algorithm : this.algorithms)
+            {
+                if (!tagmanifests.get(algorithm).isEmpty())
+                {
+                    this.copy(tagmanifests.get(algorithm).getInputStream(), new File(dir, BagIt.TAGMANIFEST_PREFIX + algorithm + ".txt"), none);
+                }
+            }
+
+            String bagitfile = "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8";
+            this.copy(new ByteArrayInputStream(bagitfile.getBytes("UTF-8")), new File(dir, "bagit.txt"), none);
+        }
+        finally
+        {
+            this.discard(tagFiles.values());
+            this.discard(manifests.values());
+            this.discard(tagmanifests.values());
+        }
+    }
+
+    /**
+     * Record the checksums from the manifests of the zip file this bag was read from against its file references
+     *
+     * @throws IOException
+     */
+    private synchronized void loadManifestChecksums()
+            throws IOException
+    {
+        Map<String, Manifest> manifests = this.readManifests(this.zipFile, BagIt.MANIFEST_PREFIX);
+        for (String algorithm : manifests.keySet())
+        {
+            this.applyManifest(algorithm, manifests.get(algorithm));
+        }
+    }
+
+    /**
+     * Copy the given payload file to the destination, returning its checksums
+     *
+     * @param bfr   the file reference to copy
+     * @param dest  the file to copy it to
+     * @return  the checksums of the file in each of the Bag's algorithms
+     * @throws IOException
+     */
+    private Map<String, String> copy(BagFileReference bfr, File dest)
+            throws IOException
+    {
+        List<String> algorithms = this.algorithmsToCompute(bfr);
+        if (bfr.file == null)
+        {
+            return this.withKnownChecksums(bfr, this.copy(bfr.getInputStream(), dest, algorithms));
+        }
+
+        this.makeParent(dest);
+        if (!this.linkPayload || !this.link(bfr.file, dest))
+        {
+            FileInputStream fis = new FileInputStream(bfr.file);
+            FileOutputStream fos = new FileOutputStream(dest);
+            try
+            {
+                // let the OS move the data from one file to the other
+                FileChannel source = fis.getChannel();
+                FileChannel target = fos.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size)
+                {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+            finally
+            {
+                fis.close();
+                fos.close();
+            }
+        }
+
+        // any checksums we still need are read from the source, which is now in the page cache
+        Map<String, String> computed = new HashMap<String, String>();
+        if (!algorithms.isEmpty())
+        {
+            computed = FileSource.checksums(bfr.file, algorithms, this.bufferSize);
+        }
+        return this.withKnownChecksums(bfr, computed);
+    }
+
+    /**
+     * Hard link the destination to the source file, replacing anything already at the destination
+     *
+     * @param source    the existing file
+     * @param dest  the new link
+     * @return  true if the link was made, false if the file system cannot link the two, so the file must be copied
+     * @throws IOException  if the destination cannot be replaced
+     */
+    private boolean link(File source, File dest)
+            throws IOException
+    {
+        Files.deleteIfExists(dest.toPath());
+        try
+        {
+            Files.createLink(dest.toPath(), source.toPath());
+            return true;
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return false;
+        }
+        catch (FileSystemException e)
+        {
+            // e.g. the two are on different file systems, or the file system has no hard links
+            return false;
+        }
+    }
+
+    /**
+     * Copy the input stream to the destination file, computing checksums in the given algorithms as it goes.
+     * The input stream is closed afterwards.
+     *
+     * @param is    InputStream to copy
+     * @param dest  the file to copy it to
+     * @param algorithms    the BagIt names of the algorithms to compute
+     * @return  the checksums, keyed by algorithm
+     * @throws IOException
+     */
+    private Map<String, String> copy(InputStream is, File dest, List<String> algorithms)
+            throws IOException
+    {
+        this.makeParent(dest);
+        List<MessageDigest> digests = Digester.acquire(algorithms);
+        byte[] data = Digester.acquireBuffer();
+        FileOutputStream fos = null;
+        Map<String, String> checksums = null;
+        try
+        {
+            fos = new FileOutputStream(dest);
+            int count;
+            while ((count = is.read(data, 0, data.length)) != -1)
+            {
+                for (MessageDigest md : digests)
+                {
+                    md.update(data, 0, count);
+                }
+                fos.write(data, 0, count);
+            }
+            fos.close();
+            checksums = Digester.complete(algorithms, digests);
+            return checksums;
+        }
+        finally
+        {
+            if (checksums == null)
+            {
+                Digester.release(digests);
+            }
+            Digester.releaseBuffer(data);
+            is.close();
+            if (fos != null)
+            {
+                fos.close();
+            }
+        }
+    }
+
+    /**
+     * Get the file a path in the Bag is written to under the given directory.  The paths of a Bag read from a zip
+     * or fetch.txt come from outside, so an absolute path, a path with a .. segment, or one which otherwise
+     * resolves to somewhere outside the directory (e.g. through a symbolic link) is refused.
+     *
+     * @param dir   the directory the Bag is written to
+     * @param path  the path of the file relative to the base directory of the Bag
+     * @return  the file to write
+     * @throws IOException  if the path would be written outside the directory
+     */
+    private File target(File dir, String path)
+            throws IOException
+    {
+        boolean parent = false;
+        for (String segment : path.split("[/\\\\]"))
+        {
+            parent = parent || "..".equals(segment);
+        }
+        if (parent || path.startsWith("/") || path.startsWith("\\") || new File(path).isAbsolute())
+        {
+            throw new IOException("The path " + path + " in the bag is not a relative path within it");
+        }
+
+        File file = new File(dir, path);
+        String root = dir.getCanonicalPath();
+        if (!file.getCanonicalPath().startsWith(root.endsWith(File.separator) ? root : root + File.separator))
+        {
+            throw new IOException("The path " + path + " in the bag is outside the directory " + dir.getAbsolutePath());
+        }
+        return file;
+    }
+
+    private void makeParent(File file)
+            throws IOException
+    {
+        // another thread may be creating the same directory
+        File parent = file.getParentFile();
+        if (!parent.mkdirs() && !parent.isDirectory())
+        {
+            throw new IOException("Unable to create directory " + parent.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Create the tag files for the current state of the Bag, which only depend on what is already known
+     * about each file
+     *
+     * @return  the tag files, keyed by their path relative to the base directory
+     * @throws IOException
+     */
+    private Map<String, TagFileWriter> createTagFiles()
+            throws IOException
+    {
+        TagFileWriter formats = new TagFileWriter();
+        TagFileWriter finalSequence = new TagFileWriter();
+        TagFileWriter supportingSequence = new TagFileWriter();
+        TagFileWriter supportingAccess = new TagFileWriter();
+        TagFileWriter fetch = new TagFileWriter();
+        Map<String, TagFileWriter> tagFiles = new LinkedHashMap<String, TagFileWriter>();
+        tagFiles.put(BagIt.FETCH, fetch);
+        tagFiles.put("tagfiles/" + FORMATS, formats);
+        tagFiles.put("tagfiles/" + FINAL_SEQUENCE, finalSequence);
+        tagFiles.put("tagfiles/" + SUPPORTING_SEQUENCE, supportingSequence);
+        tagFiles.put("tagfiles/" + SUPPORTING_ACCESS, supportingAccess);
+
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            String path = this.getDataPath(bfr);
+            if (path == null)
+            {
+                continue;
+            }
+
+            if (bfr.url != null)
+            {
+                // fetch.txt separates its fields with whitespace, so the tab written before the path will do
+                fetch.addLine(bfr.url + " " + (bfr.length < 0 ? "-" : String.valueOf(bfr.length)), path);
+            }
+
+            if (BagIt.FINAL.equals(bfr.type))
+            {
+                if (bfr.format != null)
+                {
+                    formats.addLine(bfr.format, path);
+                }
+                finalSequence.addLine(String.valueOf(bfr.sequence), path);
+            }
+            else if (BagIt.SUPPORTING.equals(bfr.type))
+            {
+                if (bfr.format != null)
+                {
+                    formats.addLine(bfr.format, path);
+                }
+                supportingSequence.addLine(String.valueOf(bfr.sequence), path);
+                if (bfr.access != null)
+                {
+                    supportingAccess.addLine(bfr.access, path);
+                }
+            }
+            else if (BagIt.LICENCE.equals(bfr.type))
+            {
+                if (bfr.format != null)
+                {
+                    formats.addLine(bfr.format, path);
+                }
+            }
+            else if (BagIt.METADATA.equals(bfr.type))
+            {
+                formats.addLine("text/xml", path);
+            }
+        }
+
+        return tagFiles;
+    }
+
+    /**
+     * Make sure that this bag can be written.  If it was initialised from a zip file, we can't write it
+     * back out.
+     */
+    private void checkWritable()
+    {
+        if (this.zipFile != null) {
+            throw new RuntimeException("Cannot re-write a bag file over itself.  Use update() to replace it with a modified copy, or writeTo() to write the modified bag somewhere else.");
+        }
+    }
+
+    /**
+     * Add a line for the given path to each of the manifests, using the checksum computed in the
+     * corresponding algorithm
+     *
+     * @param manifests the manifests being written, keyed by algorithm
+     * @param checksums the checksums of the file, keyed by algorithm
+     * @param path  path of the file relative to the base directory of the Bag
+     * @throws IOException
+     */
+    private void addToManifests(Map<String, TagFileWriter> manifests, Map<String, String> checksums, String path)
+            throws IOException
+    {
+        for (String algorithm : this.algorithms)
+        {
+            manifests.get(algorithm).addLine(checksums.get(algorithm), path);
+        }
+    }
+
+    /**
+     * Throw away the given tag files, removing any temporary files they used
+     *
+     * @param tagFiles  the tag files
+     */
+    private void discard(Collection<TagFileWriter> tagFiles)
+    {
+        for (TagFileWriter tagFile : tagFiles)
+        {
+            tagFile.delete();
+        }
+    }
+
+    /**
+     * Throw away any prepared entries which were not written, for example because writing the bag failed
+     *
+     * @param prepared  the prepared entries, keyed by file reference
+     */
+    /**
+     * Get the number of payload files which may be prepared ahead of the one being written: twice the number of
+     * threads of the executor, so that every thread has a file to work on while the finished ones are written.
+     *
+     * @param executor  the executor the files are prepared on, or null if they are not prepared in parallel
+     * @return  the number of files to prepare ahead
+     */
+    private static int preparedWindow(ExecutorService executor)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (executor instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executor).getCorePoolSize() > 0)
+        {
+            threads = ((ThreadPoolExecutor) executor).getCorePoolSize();
+        }
+        return 2 * threads;
+    }
+
+    /**
+     * Submit payload files to be compressed and digested in the background, until there are as many in flight
+     * (or prepared and waiting to be written) as the window allows
+     *
+     * @param unprepared    the files still to be prepared, in the order they are written
+     * @param prepared  the files in flight, which this adds to
+     * @param executor  executor on which to prepare the files
+     * @param window    the most files to have in flight at once
+     */
+    private void prepareAhead(Iterator<BagFileReference> unprepared, Map<BagFileReference, Future<PreparedEntry>> prepared, ExecutorService executor, int window)
+    {
+        while (prepared.size() < window && unprepared.hasNext())
+        {
+            final BagFileReference bfr = unprepared.next();
+            final String dataPath = this.getDataPath(bfr);
+            final String path = this.baseDir + dataPath;
+            final List<String> algorithms = this.algorithmsToCompute(bfr);
+            final CompressionPolicy policy = this.compressionPolicy;
+            final int bufferSize = this.bufferSize;
+            prepared.put(bfr, executor.submit(new Callable<PreparedEntry>()
+            {
+                public PreparedEntry call() throws Exception
+                {
+                    PushbackInputStream source = new PushbackInputStream(BagIt.this.openPayload(bfr), BagIt.SAMPLE);
+                    Compression compression = BagIt.this.chooseCompression(policy, bfr, dataPath, source);
+                    PreparedEntry entry;
+                    if (compression.isStored())
+                    {
+                        entry = BagIt.this.prepareStored(bfr, path, source, algorithms, bufferSize);
+                    }
+                    else
+                    {
+                        entry = PreparedEntry.prepare(path, source, compression.getMethod(), compression.getLevel(), algorithms, bufferSize);
+                    }
+                    entry.compression = compression;
+                    return entry;
+                }
+            }));
+        }
+    }
+
+    private void discard(Map<BagFileReference, Future<PreparedEntry>> prepared)
+    {
+        for (Future<PreparedEntry> future : prepared.values())
+        {
+            if (!future.cancel(true) && !future.isCancelled())
+            {
+                try
+                {
+                    future.get().delete();
+                }
+                catch (Exception e)
+                {
+                    // the entry failed to prepare, so there is nothing to clean up
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the list of primary files sorted in sequence
+     *
+     * @return
+     */
+    public TreeMap<Integer, BaggedItem> getSequencedFinals()
+    {
+        try
+        {
+            this.loadTagFiles(FORMATS, FINAL_SEQUENCE);
+            TreeMap<Integer, BaggedItem> sequencedPrimaries = new TreeMap<Integer, BaggedItem>();
+
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                if (BagIt.FINAL.equals(bfr.type))
+                {
+                    // the bagged item
+                    BaggedItem baggedItem = new BaggedItem();
+
+                    baggedItem.setInputStream(bfr.getInputStream());
+                    baggedItem.setFilename(bfr.getFilename());
+                    baggedItem.setFormat(bfr.format);
+                    baggedItem.setSequence(bfr.sequence);
+
+                    // create the node
+                    sequencedPrimaries.put(bfr.sequence, baggedItem);
+                }
+            }
+
+            return sequencedPrimaries;
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Return the list of secondary files sorted in sequence
+     *
+     * @param accessRights  Access rights filter - provide "open" or "closed", to obtain only those with that access right
+     * @return
+     */
+    public TreeMap<Integer, BaggedItem> getSequencedSecondaries(String accessRights)
+    {
+        try
+        {
+            this.loadTagFiles(FORMATS, SUPPORTING_SEQUENCE, SUPPORTING_ACCESS);
+            TreeMap<Integer, BaggedItem> sequencedSecondaries = new TreeMap<Integer, BaggedItem>();
+
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                if (BagIt.SUPPORTING.equals(bfr.type) && accessRights.equals(bfr.access))
+                {
+                    // the bagged item
+                    BaggedItem baggedItem = new BaggedItem();
+
+                    baggedItem.setInputStream(bfr.getInputStream());
+                    baggedItem.setFilename(bfr.getFilename());
+                    baggedItem.setFormat(bfr.format);
+                    baggedItem.setSequence(bfr.sequence);
+
+                    // create the node
+                    sequencedSecondaries.put(bfr.sequence, baggedItem);
+                }
+            }
+
+            return sequencedSecondaries;
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Get the Metadata file from the Bag
+     *
+     * @return
+     */
+    public BaggedItem getMetadataFile()
+    {
+        try
+        {
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                if (BagIt.METADATA.equals(bfr.type))
+                {
+                    BaggedItem metadata = new BaggedItem();
+                    metadata.setInputStream(bfr.getInputStream());
+                    metadata.setFilename("metadata.xml");
+                    metadata.setFormat("text/xml");
+                    return metadata;
+                }
+            }
+            return null;
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Get the Bag's metadata as a Metadata object.  For a Bag being built with {@link #addMetadata(Metadata)} this
+     * is the object that was added; otherwise the metadata file is parsed the first time it is asked for, and the
+     * same object is returned after that.  Changes made to the returned object are not written back to the Bag's
+     * metadata file.
+     *
+     * @return  the metadata, or null if the Bag has none
+     * @throws IOException  if the metadata file cannot be read or is not well-formed XML
+     */
+    public synchronized Metadata getMetadata()
+            throws IOException
+    {
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            if (!BagIt.METADATA.equals(bfr.type))
+            {
+                continue;
+            }
+
+            if (bfr.metadata != null)
+            {
+                return bfr.metadata;
+            }
+            if (this.metadataSource != bfr)
+            {
+                InputStream is = bfr.getInputStream();
+                try
+                {
+                    Document doc = BagIt.BUILDERS.get().build(is);
+                    this.metadata = new Metadata(doc.getRootElement());
+                    this.metadataSource = bfr;
+                }
+                catch (ParsingException e)
+                {
+                    throw new IOException("Unable to parse metadata: " + e.getMessage(), e);
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+            return this.metadata;
+        }
+        return null;
+    }
+
+    /**
+     * Read the first value of each of the given metadata fields, without parsing the whole of the metadata file.
+     * Reading stops as soon as all of the fields have been found.  See {@link MetadataExtractor}.
+     *
+     * @param fieldNames    the fields to read; recommended to use the static constants on {@link Metadata}
+     * @return  the value of each field which was found, keyed by field name.  Empty if the Bag has no metadata.
+     * @throws IOException
+     */
+    public Map<String, String> getMetadataFields(String... fieldNames)
+            throws IOException
+    {
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            if (BagIt.METADATA.equals(bfr.type))
+            {
+                return MetadataExtractor.extract(bfr.getInputStream(), fieldNames);
+            }
+        }
+        return new HashMap<String, String>();
+    }
+
+
+    /**
+     * Get the licence file from the Bag
+     *
+     * @return
+     */
+    public BaggedItem getLicenceFile()
+    {
+        try
+        {
+            for (BagFileReference bfr : this.fileRefs)
+            {
+                if (BagIt.LICENCE.equals(bfr.type))
+                {
+                    BaggedItem licence = new BaggedItem();
+                    licence.setInputStream(bfr.getInputStream());
+                    licence.setFilename("licence.txt");
+                    licence.setFormat("text/plain");
+                    return licence;
+                }
+            }
+            return null;
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Obtain the access privilege for the specified filename
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public String getSupportingAccess(String filename)
+            throws IOException
+    {
+        this.loadTagFiles(SUPPORTING_ACCESS);
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            if (BagIt.SUPPORTING.equals(bfr.type) && bfr.getFilename().equals(filename))
+            {
+                return bfr.access;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extract every payload file of an opened Bag into the given directory, verifying each one against the
+     * manifests as it is written.  The work is spread over as many threads as there are processors.
+     *
+     * @param dir   the directory to extract to; files are written to their paths in the Bag, e.g. dir/data/final/MainArticle.pdf
+     * @return  the result of verifying the extracted files
+     * @throws IOException
+     */
+    public VerificationResult extractTo(File dir)
+            throws IOException
+    {
+        return this.extractTo(dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Extract every payload file of an opened Bag into the given directory, as for {@link #extractTo(File)}.  The
+     * files are written through java.io, so the directory must be on the default file system.
+     *
+     * @param dir   the directory to extract to
+     * @return  the result of verifying the extracted files
+     * @throws IOException
+     */
+    public VerificationResult extractTo(Path dir)
+            throws IOException
+    {
+        return this.extractTo(dir.toFile());
+    }
+
+    /**
+     * Extract the payload files of an opened Bag which are accepted by the filter into the given directory, as for
+     * {@link #extractTo(File, ExecutorService, PayloadFilter)}.  The directory must be on the default file system.
+     *
+     * @param dir   the directory to extract to
+     * @param executor  executor on which to run the extraction tasks
+     * @param filter    chooses the files to extract, or null for all of them
+     * @return  the result of verifying the extracted files
+     * @throws IOException
+     */
+    public VerificationResult extractTo(Path dir, ExecutorService executor, PayloadFilter filter)
+            throws IOException
+    {
+        return this.extractTo(dir.toFile(), executor, filter);
+    }
+
+    /**
+     * Extract every payload file of an opened Bag into the given directory, verifying each one against the
+     * manifests as it is written, on the given number of threads
+     *
+     * @param dir   the directory to extract to
+     * @param threads   number of threads to extract with
+     * @return  the result of verifying the extracted files
+     * @throws IOException
+     */
+    public VerificationResult extractTo(File dir, int threads)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            return this.extractTo(dir, executor, null);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Extract the payload files of an opened Bag which are accepted by the filter into the given directory, using
+     * the supplied executor.  Each file is copied as a separate task, and its checksums are computed from the data
+     * as it is written, so extraction and verification take a single read of the Bag.
+     *
+     * Files are extracted even if they do not match the manifest; they are reported as mismatched (or as extra, if
+     * they are not listed at all) in the result.  Files which are listed in the manifest but are not in the Bag are
+     * reported as missing, except for those listed in fetch.txt, which are not extracted.  The executor is not shut
+     * down by this method.
+     *
+     * @param dir   the directory to extract to
+     * @param executor  executor on which to run the extraction tasks
+     * @param filter    chooses the files to extract, or null for all of them
+     * @return  the result of verifying the extracted files
+     * @throws IOException  if the Bag cannot be read, or has a path which would be extracted outside the directory,
+     *                      in which case nothing is extracted
+     */
+    public VerificationResult extractTo(File dir, ExecutorService executor, PayloadFilter filter)
+            throws IOException
+    {
+        if (this.zipFile == null && this.bagDir == null)
+        {
+            throw new IOException("Only a bag which has been opened from a zip file or directory can be extracted");
+        }
+
+        this.loadTagFiles(SUPPORTING_ACCESS);
+        VerificationResult result = new VerificationResult();
+        final Map<String, Manifest> manifests = this.readManifests();
+
+        // the paths come from the zip, so they are all checked before any file is written
+        Map<BagFileReference, File> targets = new LinkedHashMap<BagFileReference, File>();
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            String path = this.getDataPath(bfr);
+            if (bfr.url != null || (filter != null && !filter.accept(path, bfr.type, bfr.access)))
+            {
+                continue;
+            }
+            targets.put(bfr, this.target(dir, path));
+        }
+
+        Map<String, Future<Map<String, String>>> checksums = new LinkedHashMap<String, Future<Map<String, String>>>();
+        for (Map.Entry<BagFileReference, File> target : targets.entrySet())
+        {
+            final BagFileReference bfr = target.getKey();
+            final File file = target.getValue();
+            checksums.put(this.getDataPath(bfr), executor.submit(new Callable<Map<String, String>>()
+            {
+                public Map<String, String> call() throws Exception
+                {
+                    List<String> algorithms = new ArrayList<String>(manifests.keySet());
+                    return BagIt.this.copy(bfr.getInputStream(), file, algorithms);
+                }
+            }));
+        }
+
+        for (String path : this.listedPaths(manifests))
+        {
+            if (!this.pathIndex.containsKey(path))
+            {
+                result.addMissing(path);
+            }
+        }
+
+        try
+        {
+            for (Map.Entry<String, Future<Map<String, String>>> checksum : checksums.entrySet())
+            {
+                String path = checksum.getKey();
+                Map<String, String> computed = this.waitFor(checksum.getValue());
+                if (!this.isListed(path, manifests))
+                {
+                    result.addExtra(path);
+                }
+                else if (!this.matches(path, manifests, computed))
+                {
+                    result.addMismatched(path);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            for (Future<Map<String, String>> future : checksums.values())
+            {
+                future.cancel(true);
+            }
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Verify the Bag against its manifest
+     *
+     * @return
+     */
+    public boolean verifyPayloadManifest()
+    {
+        try
+        {
+            return this.verifyPayload().isValid();
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Verify every payload file in the Bag against its manifest, using one thread per available processor
+     *
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyPayload()
+            throws IOException
+    {
+        return this.verifyPayload(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Verify every payload file in the Bag against its manifest, spreading the work over the
+     * given number of threads
+     *
+     * @param threads   number of threads to compute checksums with
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyPayload(int threads)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            return this.verifyPayload(executor);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify every payload file in the Bag against its manifest, using the supplied executor to compute
+     * the checksums.  Each entry under data/ is streamed out of the zip file (or each file under data/, for a Bag
+     * read from a directory) and digested as a separate task, so large Bags are verified in parallel.  The executor
+     * is not shut down by this method.
+     *
+     * Files which are listed in fetch.txt are not in the zip file, so they are not reported as missing; they are
+     * verified against their local copies with {@link #verifyFetched(FetchResolver)}.
+     *
+     * @param executor  executor on which to run the checksum tasks
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyPayload(ExecutorService executor)
+            throws IOException
+    {
+        if (this.bagDir != null)
+        {
+            return this.verifyDirectoryPayload(executor);
+        }
+
+        boolean close = this.zipFile == null;
+        final ZipFile zip = this.openZipFile();
+        try
+        {
+            VerificationResult result = new VerificationResult();
+
+            // a bag with no payload is written without a manifest, so a missing manifest
+            // just means that any payload we find is extra
+            final Map<String, Manifest> manifests = this.readManifests(zip, BagIt.MANIFEST_PREFIX);
+            Fetch fetch = this.readFetch(zip);
+
+            // submit a checksum task for every payload entry which is in the manifests, which
+            // computes all of the algorithms in a single read
+            Map<String, Future<Map<String, String>>> checksums = new LinkedHashMap<String, Future<Map<String, String>>>();
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements())
+            {
+                final ZipEntry entry = e.nextElement();
+                if (entry.isDirectory() || !entry.getName().startsWith(this.baseDir + "data/"))
+                {
+                    continue;
+                }
+
+                String path = entry.getName().substring(this.baseDir.length());
+                if (!this.isListed(path, manifests))
+                {
+                    result.addExtra(path);
+                    continue;
+                }
+
+                checksums.put(path, executor.submit(new Callable<Map<String, String>>()
+                {
+                    public Map<String, String> call() throws Exception
+                    {
+                        return Digester.checksums(zip.getInputStream(entry), manifests.keySet());
+                    }
+                }));
+            }
+
+            this.checkPayload(result, manifests, fetch, checksums);
+            return result;
+        }
+        finally
+        {
+            if (close)
+            {
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * Verify every payload file of a Bag read from a directory against its manifest, as for
+     * {@link #verifyPayload(ExecutorService)}
+     *
+     * @param executor  executor on which to run the checksum tasks
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    private VerificationResult verifyDirectoryPayload(ExecutorService executor)
+            throws IOException
+    {
+        VerificationResult result = new VerificationResult();
+        final Map<String, Manifest> manifests = this.readManifests(this.bagDir, BagIt.MANIFEST_PREFIX);
+        final int bufferSize = this.bufferSize;
+        File fetchFile = new File(this.bagDir, BagIt.FETCH);
+        Fetch fetch = fetchFile.isFile() ? Fetch.parse(new FileInputStream(fetchFile), BagIt.FETCH) : new Fetch();
+
+        Map<String, Future<Map<String, String>>> checksums = new LinkedHashMap<String, Future<Map<String, String>>>();
+        List<String> paths = new ArrayList<String>();
+        this.listTree(new File(this.bagDir, "data"), "data/", paths);
+        for (String path : paths)
+        {
+            if (!this.isListed(path, manifests))
+            {
+                result.addExtra(path);
+                continue;
+            }
+
+            final File file = new File(this.bagDir, path);
+            checksums.put(path, executor.submit(new Callable<Map<String, String>>()
+            {
+                public Map<String, String> call() throws Exception
+                {
+                    return FileSource.checksums(file, manifests.keySet(), bufferSize);
+                }
+            }));
+        }
+
+        this.checkPayload(result, manifests, fetch, checksums);
+        return result;
+    }
+
+    /**
+     * Record the payload files which are listed in the manifests but not in the Bag (or its fetch.txt) as missing,
+     * and then wait for the checksum of each file in the Bag and record those which do not match as mismatched
+     *
+     * @param result    the result to record the problems in
+     * @param manifests the payload manifests, keyed by algorithm
+     * @param fetch the Bag's fetch.txt
+     * @param checksums the checksum task for each payload file in the Bag, keyed by path
+     * @throws IOException
+     */
+    private void checkPayload(VerificationResult result, Map<String, Manifest> manifests, Fetch fetch, Map<String, Future<Map<String, String>>> checksums)
+            throws IOException
+    {
+        for (String path : this.listedPaths(manifests))
+        {
+            if (!checksums.containsKey(path) && fetch.getItem(path) == null)
+            {
+                result.addMissing(path);
+            }
+        }
+
+        try
+        {
+            for (Map.Entry<String, Future<Map<String, String>>> checksum : checksums.entrySet())
+            {
+                String path = checksum.getKey();
+                if (!this.matches(path, manifests, this.waitFor(checksum.getValue())))
+                {
+                    result.addMismatched(path);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            // don't leave the remaining tasks reading from a bag which may be about to be closed or deleted
+            for (Future<Map<String, String>> future : checksums.values())
+            {
+                future.cancel(true);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * List the paths of every file in the given directory and its sub-directories
+     *
+     * @param dir   the directory to list
+     * @param prefix    the path of the directory relative to the base directory of the bag, ending in "/"
+     * @param paths the list to add the paths to
+     */
+    private void listTree(File dir, String prefix, List<String> paths)
+    {
+        for (File file : this.listFiles(dir))
+        {
+            if (file.isDirectory())
+            {
+                this.listTree(file, prefix + file.getName() + "/", paths);
+            }
+            else
+            {
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Get the payload files which are listed in the Bag's fetch.txt rather than held in the Bag
+     *
+     * @return  the items, in the order the files were added to the Bag
+     */
+    public List<FetchItem> getFetchItems()
+    {
+        List<FetchItem> items = new ArrayList<FetchItem>();
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            if (bfr.url != null)
+            {
+                items.add(new FetchItem(bfr.url, bfr.length, this.getDataPath(bfr)));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Verify the local copies of the files listed in fetch.txt, using one thread per available processor
+     *
+     * @param resolver  finds the local copy of each file
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyFetched(FetchResolver resolver)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            return this.verifyFetched(resolver, executor);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify the local copies of the files listed in fetch.txt against the sizes in fetch.txt and the checksums in
+     * the manifests.  Files which the resolver cannot find are reported as missing, and those of the wrong size or
+     * with the wrong checksums as mismatched.  Files for which the manifests have no checksum are reported as
+     * unverified, since a matching size alone does not show that the local copy is the right file.  Each file is digested as a separate task on the given executor,
+     * which is not shut down by this method.
+     *
+     * @param resolver  finds the local copy of each file
+     * @param executor  executor on which to run the checksum tasks
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyFetched(FetchResolver resolver, ExecutorService executor)
+            throws IOException
+    {
+        return this.checkFetched(resolver, executor, new HashMap<BagFileReference, File>());
+    }
+
+    /**
+     * Complete a holey Bag from the local copies of the files listed in its fetch.txt.  The local copies are
+     * verified as by {@link #verifyFetched(FetchResolver)}, and only if all of them are valid do they become
+     * ordinary payload files of the Bag, which are written into it by {@link #update()}, {@link #writeTo(OutputStream)}
+     * or {@link #writeToDirectory(File)}; the Bag is then written without a fetch.txt.  If any of them is not
+     * valid the Bag is left as it was.
+     *
+     * @param resolver  finds the local copy of each file
+     * @return  the result of verifying the local copies
+     * @throws IOException
+     */
+    public VerificationResult complete(FetchResolver resolver)
+            throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            Map<BagFileReference, File> resolved = new HashMap<BagFileReference, File>();
+            VerificationResult result = this.checkFetched(resolver, executor, resolved);
+            if (result.isValid())
+            {
+                this.bagChecksums = null;
+                for (Map.Entry<BagFileReference, File> local : resolved.entrySet())
+                {
+                    // the checksums have just been verified, so they are kept for writing the manifests
+                    BagFileReference bfr = local.getKey();
+                    bfr.file = local.getValue();
+                    bfr.url = null;
+                    bfr.length = -1;
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify the local copies of the files listed in fetch.txt, recording the local copy of each one which is valid
+     *
+     * @param resolver  finds the local copy of each file
+     * @param executor  executor on which to run the checksum tasks
+     * @param resolved  the map to record the valid local copies in, keyed by file reference
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    private VerificationResult checkFetched(FetchResolver resolver, ExecutorService executor, Map<BagFileReference, File> resolved)
+            throws IOException
     {
+        // the expected checksums of a bag read from a zip are in its manifests
+        if (this.zipFile != null)
+        {
+            this.loadManifestChecksums();
+        }
+
+        VerificationResult result = new VerificationResult();
+        Map<BagFileReference, Future<Map<String, String>>> checksums = new LinkedHashMap<BagFileReference, Future<Map<String, String>>>();
+        for (BagFileReference bfr : this.fileRefs)
+        {
+            if (bfr.url == null)
+            {
+                continue;
+            }
+
+            String path = this.getDataPath(bfr);
+            final File file = resolver.resolve(new FetchItem(bfr.url, bfr.length, path));
+            if (file == null || !file.isFile())
+            {
+                result.addMissing(path);
+                continue;
+            }
+            if (bfr.length >= 0 && file.length() != bfr.length)
+            {
+                result.addMismatched(path);
+                continue;
+            }
+            if (bfr.checksums.isEmpty())
+            {
+                result.addUnverified(path);
+                continue;
+            }
+
+            resolved.put(bfr, file);
+            final List<String> algorithms = new ArrayList<String>(bfr.checksums.keySet());
+            final int bufferSize = this.bufferSize;
+            checksums.put(bfr, executor.submit(new Callable<Map<String, String>>()
+            {
+                public Map<String, String> call() throws Exception
+                {
+                    return FileSource.checksums(file, algorithms, bufferSize);
+                }
+            }));
+        }
+
         try
         {
-            for (BagFileReference bfr : this.fileRefs)
+            for (Map.Entry<BagFileReference, Future<Map<String, String>>> checksum : checksums.entrySet())
             {
-                if (BagIt.LICENCE.equals(bfr.type))
+                BagFileReference bfr = checksum.getKey();
+                Map<String, String> computed = this.waitFor(checksum.getValue());
+                for (String algorithm : computed.keySet())
                 {
-                    BaggedItem licence = new BaggedItem();
-                    licence.setInputStream(bfr.getInputStream());
-                    licence.setFilename("licence.txt");
-                    licence.setFormat("text/plain");
-                    return licence;
+                    if (!computed.get(algorithm).equalsIgnoreCase(bfr.checksums.get(algorithm)))
+                    {
+                        result.addMismatched(this.getDataPath(bfr));
+                        resolved.remove(bfr);
+                        break;
+                    }
                 }
             }
-            return null;
         }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
         catch (IOException e)
         {
-            throw new RuntimeException(e);
+            for (Future<Map<String, String>> future : checksums.values())
+            {
+                future.cancel(true);
+            }
+            throw e;
         }
+
+        return result;
     }
 
     /**
-     * Obtain the access privilege for the specified filename
+     * Read the fetch.txt of the Bag in the given zip file
+     *
+     * @param zip   the zip file containing the Bag
+     * @return  the parsed fetch.txt, which is empty if the Bag does not have one
+     * @throws IOException
+     */
+    private Fetch readFetch(ZipFile zip)
+            throws IOException
+    {
+        ZipEntry entry = zip.getEntry(this.baseDir + BagIt.FETCH);
+        if (entry == null)
+        {
+            return new Fetch();
+        }
+        return Fetch.parse(zip.getInputStream(entry), BagIt.FETCH);
+    }
+
+    /**
+     * Get a zip file to read the serialised Bag from.  This is the zip file the Bag was loaded from
+     * if there is one, otherwise a new ZipFile over the file this Bag was written to, which the caller
+     * is responsible for closing.
      *
-     * @param filename
      * @return
+     * @throws IOException  if the Bag has not been serialised
+     */
+    private ZipFile openZipFile()
+            throws IOException
+    {
+        if (this.zipFile != null)
+        {
+            return this.zipFile;
+        }
+        if (!this.bagFile.exists())
+        {
+            throw new IOException("The bag has not been written to " + this.bagFile.getAbsolutePath() + " so cannot be read");
+        }
+        return new ZipFile(this.bagFile);
+    }
+
+    /**
+     * Read the payload manifests of an opened Bag, whether it is a zip file or a directory
+     *
+     * @return  the manifests, keyed by algorithm
      * @throws IOException
      */
-    public String getSupportingAccess(String filename)
+    private Map<String, Manifest> readManifests()
             throws IOException
     {
-        for (BagFileReference bfr : this.fileRefs)
+        if (this.zipFile != null)
         {
-            if (BagIt.SUPPORTING.equals(bfr.type) && bfr.getFilename().equals(filename))
+            return this.readManifests(this.zipFile, BagIt.MANIFEST_PREFIX);
+        }
+        return this.readManifests(this.bagDir, BagIt.MANIFEST_PREFIX);
+    }
+
+    /**
+     * Read all of the manifests in the directory with the given prefix (i.e. manifest- or tagmanifest-)
+     *
+     * @param dir   the directory containing the Bag
+     * @param prefix    the prefix of the manifest file names
+     * @return  the manifests keyed by the name of their checksum algorithm (e.g. md5, sha256)
+     * @throws IOException
+     */
+    private Map<String, Manifest> readManifests(File dir, String prefix)
+            throws IOException
+    {
+        Map<String, Manifest> manifests = new TreeMap<String, Manifest>();
+        for (File file : this.listFiles(dir))
+        {
+            if (file.isFile() && file.getName().startsWith(prefix) && file.getName().endsWith(".txt"))
             {
-                return bfr.access;
+                manifests.put(this.getAlgorithm(file.getName(), prefix), Manifest.parse(new FileInputStream(file), file.getName()));
             }
         }
-        return null;
+        return manifests;
     }
 
     /**
-     * Verify the Bag against its manifest
+     * Read all of the manifests in the zip file with the given prefix (i.e. manifest- or tagmanifest-)
+     *
+     * @param zip   the zip file containing the Bag
+     * @param prefix    the prefix of the manifest file names
+     * @return  the manifests keyed by the name of their checksum algorithm (e.g. md5, sha256)
+     * @throws IOException
+     */
+    private Map<String, Manifest> readManifests(ZipFile zip, String prefix)
+            throws IOException
+    {
+        Map<String, Manifest> manifests = new TreeMap<String, Manifest>();
+        Enumeration<? extends ZipEntry> e = zip.entries();
+        while (e.hasMoreElements())
+        {
+            ZipEntry entry = e.nextElement();
+            if (!entry.getName().startsWith(this.baseDir + prefix))
+            {
+                continue;
+            }
+            String name = entry.getName().substring(this.baseDir.length());
+            if (name.endsWith(".txt") && name.indexOf("/") == -1)
+            {
+                String algorithm = this.getAlgorithm(name, prefix);
+                manifests.put(algorithm, Manifest.parse(zip.getInputStream(entry), name));
+            }
+        }
+        return manifests;
+    }
+
+    /**
+     * Is the given path listed in any of the manifests?  A path which is not listed at all is extra.  The BagIt
+     * specification requires every file to be listed in every manifest, but a path which is missing from only some
+     * of them is a file of the Bag whose checksums do not match, so it is left to {@link #matches(String, Map, Map)}
+     * to report it once, as mismatched.
      *
+     * @param path  path relative to the base directory of the Bag
+     * @param manifests manifests keyed by algorithm
      * @return
      */
-    public boolean verifyPayloadManifest()
+    private boolean isListed(String path, Map<String, Manifest> manifests)
+    {
+        for (Manifest manifest : manifests.values())
+        {
+            if (manifest.getChecksum(path) != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get every path which is listed in any of the manifests
+     *
+     * @param manifests manifests keyed by algorithm
+     * @return
+     */
+    private Set<String> listedPaths(Map<String, Manifest> manifests)
+    {
+        Set<String> paths = new LinkedHashSet<String>();
+        for (Manifest manifest : manifests.values())
+        {
+            paths.addAll(manifest.getPaths());
+        }
+        return paths;
+    }
+
+    /**
+     * Do the computed checksums for the given path match all of the manifests?  A manifest which does not list
+     * the path does not match.
+     *
+     * @param path  path relative to the base directory of the Bag
+     * @param manifests manifests keyed by algorithm
+     * @param checksums computed checksums keyed by algorithm
+     * @return
+     */
+    private boolean matches(String path, Map<String, Manifest> manifests, Map<String, String> checksums)
     {
+        for (String algorithm : manifests.keySet())
+        {
+            String expected = manifests.get(algorithm).getChecksum(path);
+            if (expected == null || !expected.equalsIgnoreCase(checksums.get(algorithm)))
+            {
+                return false;
+            }
+        }
         return true;
-        //return theBag.verifyPayloadManifests().isSuccess();
+    }
+
+    /**
+     * Wait for the given background task to complete, and unwrap any exception it threw
+     *
+     * @param future    the background task
+     * @return  the result of the task
+     * @throws IOException
+     */
+    private <T> T waitFor(Future<T> future)
+            throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for background task: " + e.getMessage());
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
     }
 
     /**
@@ -892,8 +3438,213 @@ public class BagIt
      */
     public boolean verifyTagManifest()
     {
-        return true;
-        // return theBag.verifyTagManifests().isSuccess();
+        try
+        {
+            return this.verifyTags().isValid();
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Verify the structure of the Bag and its tag files against the tag manifest.  This checks that bagit.txt
+     * is present and well-formed, and then that every file under tagfiles/ (and any other file listed in the
+     * tag manifest) matches its checksum.  Tag files are small, so this runs on the calling thread and returns
+     * as soon as the structure of the bag is found to be broken, without decompressing any of the payload.
+     *
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    public VerificationResult verifyTags()
+            throws IOException
+    {
+        if (this.bagDir != null)
+        {
+            return this.verifyDirectoryTags();
+        }
+
+        boolean close = this.zipFile == null;
+        ZipFile zip = this.openZipFile();
+        try
+        {
+            VerificationResult result = new VerificationResult();
+
+            ZipEntry bagitEntry = zip.getEntry(this.baseDir + BagIt.BAGIT);
+            if (bagitEntry == null)
+            {
+                result.addError("The bag has no " + BagIt.BAGIT);
+                return result;
+            }
+            String error = this.checkBagItDeclaration(zip.getInputStream(bagitEntry));
+            if (error != null)
+            {
+                result.addError(error);
+                return result;
+            }
+
+            // as with the payload manifest, a bag with no tag files is written without a tag manifest
+            Map<String, Manifest> manifests = this.readManifests(zip, BagIt.TAGMANIFEST_PREFIX);
+
+            for (String path : this.listedPaths(manifests))
+            {
+                ZipEntry entry = zip.getEntry(this.baseDir + path);
+                if (entry == null)
+                {
+                    result.addMissing(path);
+                }
+                else if (!this.matches(path, manifests, Digester.checksums(zip.getInputStream(entry), manifests.keySet())))
+                {
+                    result.addMismatched(path);
+                }
+            }
+
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements())
+            {
+                ZipEntry entry = e.nextElement();
+                if (entry.isDirectory() || !entry.getName().startsWith(this.baseDir + "tagfiles/"))
+                {
+                    continue;
+                }
+                String path = entry.getName().substring(this.baseDir.length());
+                if (!this.isListed(path, manifests))
+                {
+                    result.addExtra(path);
+                }
+            }
+
+            return result;
+        }
+        finally
+        {
+            if (close)
+            {
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * Verify the structure and tag files of a Bag read from a directory against its tag manifest, as for
+     * {@link #verifyTags()}
+     *
+     * @return  the result of the verification
+     * @throws IOException
+     */
+    private VerificationResult verifyDirectoryTags()
+            throws IOException
+    {
+        VerificationResult result = new VerificationResult();
+
+        File bagitFile = new File(this.bagDir, BagIt.BAGIT);
+        if (!bagitFile.isFile())
+        {
+            result.addError("The bag has no " + BagIt.BAGIT);
+            return result;
+        }
+        String error = this.checkBagItDeclaration(new FileInputStream(bagitFile));
+        if (error != null)
+        {
+            result.addError(error);
+            return result;
+        }
+
+        Map<String, Manifest> manifests = this.readManifests(this.bagDir, BagIt.TAGMANIFEST_PREFIX);
+
+        for (String path : this.listedPaths(manifests))
+        {
+            File file = new File(this.bagDir, path);
+            if (!file.isFile())
+            {
+                result.addMissing(path);
+            }
+            else if (!this.matches(path, manifests, Digester.checksums(new FileInputStream(file), manifests.keySet())))
+            {
+                result.addMismatched(path);
+            }
+        }
+
+        List<String> paths = new ArrayList<String>();
+        this.listTree(new File(this.bagDir, "tagfiles"), "tagfiles/", paths);
+        for (String path : paths)
+        {
+            if (!this.isListed(path, manifests))
+            {
+                result.addExtra(path);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Verify the whole Bag: first its structure and tag files, and then, only if those are valid, its payload.
+     * A broken bag is therefore rejected before any of the payload is decompressed.
+     *
+     * @param executor  executor on which to run the payload checksum tasks
+     * @return  the result of the tag verification if it failed, otherwise the result of the payload verification
+     * @throws IOException
+     */
+    public VerificationResult verify(ExecutorService executor)
+            throws IOException
+    {
+        VerificationResult result = this.verifyTags();
+        if (!result.isValid())
+        {
+            return result;
+        }
+        return this.verifyPayload(executor);
+    }
+
+    /**
+     * Check that the bagit.txt declaration has the form required by the BagIt specification:
+     *
+     * <pre>
+     * BagIt-Version: M.N
+     * Tag-File-Character-Encoding: ENCODING
+     * </pre>
+     *
+     * @param is    InputStream containing bagit.txt, which will be closed
+     * @return  a description of the problem, or null if the declaration is well-formed
+     * @throws IOException
+     */
+    private String checkBagItDeclaration(InputStream is)
+            throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!"".equals(line.trim()))
+                {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if (lines.size() != 2)
+        {
+            return "Malformed " + BagIt.BAGIT + ": expected 2 lines but found " + lines.size();
+        }
+        if (!lines.get(0).matches("BagIt-Version:\\s*\\d+\\.\\d+"))
+        {
+            return "Malformed " + BagIt.BAGIT + ": bad version declaration: " + lines.get(0);
+        }
+        if (!lines.get(1).matches("Tag-File-Character-Encoding:\\s*\\S+"))
+        {
+            return "Malformed " + BagIt.BAGIT + ": bad encoding declaration: " + lines.get(1);
+        }
+        return null;
     }
 
     /**
@@ -919,45 +3670,42 @@ public class BagIt
     }
 
     /**
-     * Get the MD5 for the whole Bag
+     * Get the MD5 for the whole Bag.  If the Bag was written by this object, and neither the Bag nor its file has
+     * changed since, the checksum computed while writing is returned, otherwise the file is read to compute it.
      *
      * @return
      */
     public String getMD5()
     {
+        return this.getChecksum("md5");
+    }
+
+    /**
+     * Get the checksum of the whole Bag in the given algorithm.  If the Bag was written by this object with the
+     * algorithm as one of the {@link #getBagAlgorithms()}, and neither the Bag nor its file (by its length and
+     * modification time) has changed since, the checksum computed while writing is returned, otherwise the file
+     * is read to compute it.
+     *
+     * @param algorithm the BagIt name of the algorithm, e.g. "md5"
+     * @return
+     */
+    public String getChecksum(String algorithm)
+    {
+        Map<String, String> checksums = this.bagChecksums;
+        if (checksums != null && checksums.containsKey(algorithm.toLowerCase())
+                && this.bagFile.length() == this.bagChecksumsLength && this.bagFile.lastModified() == this.bagChecksumsModified)
+        {
+            return checksums.get(algorithm.toLowerCase());
+        }
         try
         {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            InputStream is = this.getFile();
-            int numRead;
-            byte[] buffer = new byte[1024];
-            do {
-                numRead = is.read(buffer);
-                if (numRead > 0)
-                {
-                    md.update(buffer, 0, numRead);
-                }
-            } while (numRead != -1);
-
-            is.close();
-
-            byte[] b = md.digest();
-            String result = "";
-            for (int i=0; i < b.length; i++)
-            {
-                result += Integer.toString( ( b[i] & 0xff ) + 0x100, 16).substring( 1 );
-            }
-            return result;
+            return FileSource.checksums(this.bagFile, Collections.singletonList(algorithm.toLowerCase()), this.bufferSize).get(algorithm.toLowerCase());
         }
         // we need to conform to the old interface, so can only throw RuntimeExceptions
         catch (IOException e)
         {
             throw new RuntimeException(e);
         }
-        catch (NoSuchAlgorithmException e)
-        {
-            throw new RuntimeException(e);
-        }
     }
 
     /**
@@ -0,0 +1,21 @@
+package no.uio.duo.bagit;
+
+import java.io.IOException;
+
+/**
+ * Callback through which a {@link BagReader} delivers each payload file of a Bag as it is read.
+ */
+public interface BagItemHandler
+{
+    /**
+     * Handle a payload file from the Bag.  The item's input stream is only valid until this method returns,
+     * and does not need to be read to the end or closed.
+     *
+     * @param type  the type of the file: "final", "supporting", "licence" or "metadata"
+     * @param access    the access condition of a supporting file ("open" or "closed"), or null
+     * @param item  the filename, format, sequence number and content of the file
+     * @throws IOException
+     */
+    void handle(String type, String access, BaggedItem item)
+            throws IOException;
+}
@@ -0,0 +1,305 @@
+package no.uio.duo.bagit;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a Bag in a single pass from an InputStream, such as the body of an upload, without first saving it
+ * to a file.
+ *
+ * Each payload file is passed to a {@link BagItemHandler} once the tag files which describe it (the sequence
+ * files and supporting.access.txt) have been read.  A file need not have a format, so formats.txt is not waited
+ * for: the format is given if formats.txt has been read by then.  Bags written by this library put their tag
+ * files ahead of the payload, with formats.txt first, so each file is handed over straight from the stream as
+ * it arrives.  If a
+ * payload file turns up before its tag files it is held back: in memory up to a fixed total, and in temporary
+ * files beyond that.  Anything still held back at the end of the stream is delivered then, with whatever tag
+ * information was found.
+ *
+ * <pre>
+ * BagReader reader = new BagReader(request.getInputStream());
+ * reader.read(new BagItemHandler() { ... });
+ * </pre>
+ */
+public class BagReader
+{
+    /** the default number of bytes of held back payload to keep in memory */
+    public static final int DEFAULT_SPILL_MEMORY = 16 * 1024 * 1024;
+
+    /**
+     * A payload file which arrived before the tag files which describe it
+     */
+    private static class HeldEntry
+    {
+        String path;
+        String type;
+        SpillBuffer data;
+    }
+
+    private InputStream in;
+    private int spillMemory = DEFAULT_SPILL_MEMORY;
+
+    private String baseDir = null;
+    private Map<String, String> formats = null;
+    private Map<String, String> finalSequence = null;
+    private Map<String, String> supportingSequence = null;
+    private Map<String, String> supportingAccess = null;
+    private List<HeldEntry> held = new ArrayList<HeldEntry>();
+    private long heldInMemory = 0;
+
+    /**
+     * Create a reader over the given stream of a zipped Bag.  The stream is read to the end of the zip, but
+     * is not closed.
+     *
+     * @param in
+     */
+    public BagReader(InputStream in)
+    {
+        this.in = in;
+    }
+
+    /**
+     * Set the number of bytes of payload which may be held in memory while waiting for the tag files which
+     * describe it.  Beyond this, held payload goes to temporary files.
+     *
+     * @param spillMemory
+     */
+    public void setSpillMemory(int spillMemory)
+    {
+        this.spillMemory = spillMemory;
+    }
+
+    /**
+     * Read the Bag, passing each payload file to the handler
+     *
+     * @param handler
+     * @throws IOException  if the stream cannot be read, a tag file is malformed, or the handler fails
+     */
+    public void read(BagItemHandler handler)
+            throws IOException
+    {
+        ZipInputStream zis = new ZipInputStream(new CloseShieldInputStream(this.in));
+        try
+        {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null)
+            {
+                if (entry.isDirectory())
+                {
+                    continue;
+                }
+                if (this.baseDir == null)
+                {
+                    this.baseDir = entry.getName().substring(0, entry.getName().indexOf('/') + 1);
+                }
+                if (!entry.getName().startsWith(this.baseDir))
+                {
+                    continue;
+                }
+                String path = entry.getName().substring(this.baseDir.length());
+
+                if (path.startsWith("tagfiles/"))
+                {
+                    this.readTagFile(path, zis);
+                    this.deliverHeld(handler, false);
+                    continue;
+                }
+
+                String type = this.getType(path);
+                if (type == null)
+                {
+                    // manifests and bagit.txt say nothing about the payload
+                    continue;
+                }
+
+                if (this.isDescribed(path, type))
+                {
+                    this.deliver(handler, path, type, new CloseShieldInputStream(zis));
+                }
+                else
+                {
+                    this.hold(path, type, zis);
+                }
+            }
+
+            this.deliverHeld(handler, true);
+        }
+        finally
+        {
+            for (HeldEntry held : this.held)
+            {
+                held.data.delete();
+            }
+            this.held.clear();
+            zis.close();
+        }
+    }
+
+    private void readTagFile(String path, InputStream is)
+            throws IOException
+    {
+        Map<String, String> lines = BagIt.readTagFile(new CloseShieldInputStream(is), path);
+        if (path.endsWith(BagIt.FORMATS))
+        {
+            this.formats = lines;
+        }
+        else if (path.endsWith(BagIt.FINAL_SEQUENCE))
+        {
+            this.finalSequence = lines;
+        }
+        else if (path.endsWith(BagIt.SUPPORTING_SEQUENCE))
+        {
+            this.supportingSequence = lines;
+        }
+        else if (path.endsWith(BagIt.SUPPORTING_ACCESS))
+        {
+            this.supportingAccess = lines;
+        }
+    }
+
+    private String getType(String path)
+    {
+        for (String type : new String[] { BagIt.FINAL, BagIt.SUPPORTING, BagIt.LICENCE, BagIt.METADATA })
+        {
+            if (path.startsWith("data/" + type + "/"))
+            {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Have the tag files which list this path been read?  Its format is not waited for, as it may not have one.
+     */
+    private boolean isDescribed(String path, String type)
+    {
+        if (BagIt.FINAL.equals(type))
+        {
+            return listed(this.finalSequence, path);
+        }
+        else if (BagIt.SUPPORTING.equals(type))
+        {
+            // a file with no access condition is not listed, but each tag file is read whole, so once it has been
+            // read there is nothing more to wait for
+            return listed(this.supportingSequence, path) && this.supportingAccess != null;
+        }
+        // the licence and metadata have fixed names and formats
+        return true;
+    }
+
+    private static boolean listed(Map<String, String> tagFile, String path)
+    {
+        return tagFile != null && tagFile.containsKey(path);
+    }
+
+    private void hold(String path, String type, InputStream is)
+            throws IOException
+    {
+        HeldEntry held = new HeldEntry();
+        held.path = path;
+        held.type = type;
+        held.data = new SpillBuffer((int) Math.max(0, this.spillMemory - this.heldInMemory));
+        this.held.add(held);
+
+        byte[] data = Digester.acquireBuffer();
+        try
+        {
+            int count;
+            while ((count = is.read(data, 0, data.length)) != -1)
+            {
+                held.data.write(data, 0, count);
+            }
+            held.data.close();
+        }
+        finally
+        {
+            Digester.releaseBuffer(data);
+        }
+
+        if (!held.data.isSpilled())
+        {
+            this.heldInMemory += held.data.size();
+        }
+    }
+
+    /**
+     * Deliver any held entries which are now described by the tag files, or all of them at the end of the Bag
+     */
+    private void deliverHeld(BagItemHandler handler, boolean all)
+            throws IOException
+    {
+        Iterator<HeldEntry> i = this.held.iterator();
+        while (i.hasNext())
+        {
+            HeldEntry held = i.next();
+            if (!all && !this.isDescribed(held.path, held.type))
+            {
+                continue;
+            }
+
+            i.remove();
+            try
+            {
+                this.deliver(handler, held.path, held.type, held.data.getInputStream());
+            }
+            finally
+            {
+                if (!held.data.isSpilled())
+                {
+                    this.heldInMemory -= held.data.size();
+                }
+                held.data.delete();
+            }
+        }
+    }
+
+    private void deliver(BagItemHandler handler, String path, String type, InputStream content)
+            throws IOException
+    {
+        BaggedItem item = new BaggedItem();
+        item.setInputStream(content);
+        item.setFilename(path.substring(path.lastIndexOf('/') + 1));
+
+        String access = null;
+        if (BagIt.METADATA.equals(type))
+        {
+            item.setFormat("text/xml");
+        }
+        else if (BagIt.LICENCE.equals(type))
+        {
+            item.setFormat(this.formats != null && this.formats.containsKey(path) ? this.formats.get(path) : "text/plain");
+        }
+        else
+        {
+            item.setFormat(this.formats == null ? null : this.formats.get(path));
+            Map<String, String> sequences = BagIt.FINAL.equals(type) ? this.finalSequence : this.supportingSequence;
+            if (sequences != null && sequences.containsKey(path))
+            {
+                String name = BagIt.FINAL.equals(type) ? BagIt.FINAL_SEQUENCE : BagIt.SUPPORTING_SEQUENCE;
+                item.setSequence(BagIt.readSequence(sequences.get(path), name, path));
+            }
+            if (BagIt.SUPPORTING.equals(type) && this.supportingAccess != null)
+            {
+                access = this.supportingAccess.get(path);
+            }
+        }
+
+        try
+        {
+            handler.handle(type, access, item);
+        }
+        finally
+        {
+            content.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class representing the outcome of writing one Bag in a batch run by a {@link BagFactory}.
+ *
+ * A failure to write one Bag does not stop the others, so rather than throwing, each Bag's result records
+ * either the checksums of the zip file that was written, or the exception which prevented it from being written.
+ */
+public class BagResult
+{
+    private BagIt bag;
+    private Exception error = null;
+    private Map<String, String> checksums = new HashMap<String, String>();
+    private long elapsed = 0;
+
+    BagResult(BagIt bag)
+    {
+        this.bag = bag;
+    }
+
+    /**
+     * Was the Bag written successfully?
+     *
+     * @return
+     */
+    public boolean isSuccess()
+    {
+        return this.error == null;
+    }
+
+    /**
+     * Get the Bag this is the result for
+     *
+     * @return
+     */
+    public BagIt getBag()
+    {
+        return bag;
+    }
+
+    /**
+     * Get the zip file the Bag was written to
+     *
+     * @return
+     */
+    public File getFile()
+    {
+        return this.bag.bagFile;
+    }
+
+    /**
+     * Get the exception which prevented the Bag from being written
+     *
+     * @return  the exception, or null if the Bag was written successfully
+     */
+    public Exception getError()
+    {
+        return error;
+    }
+
+    void setError(Exception error)
+    {
+        this.error = error;
+    }
+
+    /**
+     * Get the checksums of the whole zip file, computed as it was written, keyed by the BagIt name of the
+     * algorithm (e.g. md5).  Empty if the Bag was not written.
+     *
+     * @return
+     */
+    public Map<String, String> getChecksums()
+    {
+        return checksums;
+    }
+
+    void setChecksums(Map<String, String> checksums)
+    {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Get the time taken to write the Bag, in milliseconds
+     *
+     * @return
+     */
+    public long getElapsed()
+    {
+        return elapsed;
+    }
+
+    void setElapsed(long elapsed)
+    {
+        this.elapsed = elapsed;
+    }
+}
@@ -0,0 +1,95 @@
+package no.uio.duo.bagit;
+
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Class representing the way in which a single entry is compressed in the zip file of a Bag, as decided
+ * by a {@link CompressionPolicy}, along with the reason for the decision.
+ */
+public class Compression
+{
+    private int method;
+    private int level;
+    private String reason;
+
+    /**
+     * The entry is stored without compression
+     *
+     * @param reason    why the entry is stored
+     * @return
+     */
+    public static Compression stored(String reason)
+    {
+        return new Compression(ZipEntry.STORED, 0, reason);
+    }
+
+    /**
+     * The entry is deflated at the given level
+     *
+     * @param level the deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION
+     * @param reason    why the entry is deflated
+     * @return
+     */
+    public static Compression deflated(int level, String reason)
+    {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION))
+        {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        return new Compression(ZipEntry.DEFLATED, level, reason);
+    }
+
+    private Compression(int method, int level, String reason)
+    {
+        this.method = method;
+        this.level = level;
+        this.reason = reason;
+    }
+
+    /**
+     * Get the zip method for the entry
+     *
+     * @return  ZipEntry.STORED or ZipEntry.DEFLATED
+     */
+    public int getMethod()
+    {
+        return this.method;
+    }
+
+    /**
+     * Get the deflate level for the entry.  This is only meaningful if the method is DEFLATED.
+     *
+     * @return
+     */
+    public int getLevel()
+    {
+        return this.level;
+    }
+
+    /**
+     * Is the entry stored without compression?
+     *
+     * @return
+     */
+    public boolean isStored()
+    {
+        return this.method == ZipEntry.STORED;
+    }
+
+    /**
+     * Get the reason given for the decision
+     *
+     * @return
+     */
+    public String getReason()
+    {
+        return this.reason;
+    }
+
+    public String toString()
+    {
+        String decision = this.isStored() ? "stored" : "deflated (level " + this.level + ")";
+        return this.reason == null ? decision : decision + ": " + this.reason;
+    }
+}
@@ -0,0 +1,21 @@
+package no.uio.duo.bagit;
+
+/**
+ * Interface for deciding how each payload file is compressed when a Bag is written.
+ *
+ * Implementations are consulted once per file, possibly from several threads at the same time when the Bag is
+ * written in parallel, so they must be thread-safe.
+ */
+public interface CompressionPolicy
+{
+    /**
+     * Decide how to compress the given payload file
+     *
+     * @param path  the path of the file relative to the base directory of the Bag (e.g. data/final/MainArticle.pdf)
+     * @param format    the MIME type of the file, or null if it is not known
+     * @param sample    the first bytes of the file
+     * @param length    the number of bytes in the sample which are valid; this is less than the sample size for small files
+     * @return  the compression to use for the file
+     */
+    Compression choose(String path, String format, byte[] sample, int length);
+}
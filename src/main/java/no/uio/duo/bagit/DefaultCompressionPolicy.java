@@ -0,0 +1,182 @@
+package no.uio.duo.bagit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The compression policy used by default when a Bag is written.
+ *
+ * Files whose format or extension shows that they are already compressed (JPEG and PNG images, PDFs, ODF and
+ * OOXML documents, archives, audio and video) are stored, as deflating them again costs a lot of CPU for almost
+ * no reduction in size.  For anything else, the first block of the file is sampled, and if its byte entropy is
+ * close to 8 bits per byte the data is assumed to be compressed or encrypted and is stored.  Everything else is
+ * deflated at the configured level.
+ *
+ * Formats ending in "/" or "." are treated as prefixes, so that (for example) "video/" matches every video type.
+ */
+public class DefaultCompressionPolicy implements CompressionPolicy
+{
+    /** samples shorter than this are too small for their entropy to mean anything */
+    private static final int MIN_SAMPLE = 1024;
+
+    private static final String[] STORED_FORMATS = {
+        "image/jpeg", "image/png", "image/gif", "image/jp2", "application/pdf",
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+        "application/x-7z-compressed", "application/x-rar-compressed", "application/epub+zip",
+        "application/vnd.oasis.opendocument.", "application/vnd.openxmlformats-officedocument.",
+        "audio/mpeg", "audio/mp4", "audio/ogg", "video/"
+    };
+
+    private static final String[] STORED_EXTENSIONS = {
+        "jpg", "jpeg", "png", "gif", "jp2", "pdf", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "epub",
+        "odt", "ods", "odp", "odg", "docx", "xlsx", "pptx", "mp3", "m4a", "ogg", "mp4", "m4v", "mov", "avi", "mkv", "webm"
+    };
+
+    private Set<String> storedFormats = new HashSet<String>();
+    private List<String> storedFormatPrefixes = new ArrayList<String>();
+    private Set<String> storedExtensions = new HashSet<String>(Arrays.asList(STORED_EXTENSIONS));
+    private double entropyThreshold = 7.5;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    public DefaultCompressionPolicy()
+    {
+        for (String format : STORED_FORMATS)
+        {
+            this.addStoredFormat(format);
+        }
+    }
+
+    /**
+     * Store files of the given MIME type without compression.  A type which ends in "/" or "." matches every
+     * type which starts with it.
+     *
+     * @param format
+     */
+    public void addStoredFormat(String format)
+    {
+        format = format.toLowerCase();
+        if (format.endsWith("/") || format.endsWith("."))
+        {
+            this.storedFormatPrefixes.add(format);
+        }
+        else
+        {
+            this.storedFormats.add(format);
+        }
+    }
+
+    /**
+     * Store files with the given extension without compression
+     *
+     * @param extension the extension, without the leading "."
+     */
+    public void addStoredExtension(String extension)
+    {
+        this.storedExtensions.add(extension.toLowerCase());
+    }
+
+    /**
+     * Set the entropy, in bits per byte, above which a sampled file is stored rather than deflated.  Use a
+     * value above 8 to disable sampling.
+     *
+     * @param entropyThreshold
+     */
+    public void setEntropyThreshold(double entropyThreshold)
+    {
+        this.entropyThreshold = entropyThreshold;
+    }
+
+    /**
+     * Set the deflate level used for files which are compressed
+     *
+     * @param level
+     */
+    public void setLevel(int level)
+    {
+        // validate the level
+        Compression.deflated(level, null);
+        this.level = level;
+    }
+
+    public Compression choose(String path, String format, byte[] sample, int length)
+    {
+        if (format != null && this.isStoredFormat(format.toLowerCase()))
+        {
+            return Compression.stored("format " + format);
+        }
+
+        int dot = path.lastIndexOf('.');
+        if (dot != -1 && dot > path.lastIndexOf('/'))
+        {
+            String extension = path.substring(dot + 1).toLowerCase();
+            if (this.storedExtensions.contains(extension))
+            {
+                return Compression.stored("extension ." + extension);
+            }
+        }
+
+        if (length >= MIN_SAMPLE)
+        {
+            double entropy = DefaultCompressionPolicy.entropy(sample, length);
+            if (entropy > this.entropyThreshold)
+            {
+                return Compression.stored(String.format("entropy %.2f bits/byte", entropy));
+            }
+        }
+
+        return Compression.deflated(this.level, null);
+    }
+
+    private boolean isStoredFormat(String format)
+    {
+        // ignore any parameters, e.g. "text/plain; charset=UTF-8"
+        int semicolon = format.indexOf(';');
+        if (semicolon != -1)
+        {
+            format = format.substring(0, semicolon).trim();
+        }
+        if (this.storedFormats.contains(format))
+        {
+            return true;
+        }
+        for (String prefix : this.storedFormatPrefixes)
+        {
+            if (format.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculate the Shannon entropy of the sample, in bits per byte
+     *
+     * @param sample
+     * @param length    the number of bytes of the sample to use
+     * @return  a value from 0 (every byte is the same) to 8 (every byte value is equally likely)
+     */
+    static double entropy(byte[] sample, int length)
+    {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++)
+        {
+            counts[sample[i] & 0xff]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts)
+        {
+            if (count > 0)
+            {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+}
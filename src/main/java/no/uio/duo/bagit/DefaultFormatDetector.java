@@ -0,0 +1,220 @@
+package no.uio.duo.bagit;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The format detector used by default when files are added to a Bag.
+ *
+ * Formats are looked up by file extension in the javax.activation mime.types tables.  Those tables are loaded once,
+ * rather than for every file, and the type for each extension is cached.  Optionally, files whose extension is not
+ * recognised can be identified by sniffing the first bytes of their content for the signatures of common formats
+ * (PDF, ODF and other zip based documents, images, XML); the result of sniffing is remembered for each file's path,
+ * size and modification time, so the same file is not normally read again.  The file is not locked while it is read,
+ * so threads which sniff the same file at the same time may each read it.
+ *
+ * This class is thread-safe, and a single instance may be shared by any number of Bags.
+ */
+public class DefaultFormatDetector implements FormatDetector
+{
+    /** the type given to files whose format is not known */
+    public static final String UNKNOWN = "application/octet-stream";
+
+    /** the number of bytes read from the start of a file when sniffing its content */
+    private static final int SNIFF = 128;
+
+    /** the most sniffing results to remember */
+    private static final int SNIFF_CACHE_SIZE = 10000;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private final MimetypesFileTypeMap mimeTypes = new MimetypesFileTypeMap();
+    private final Map<String, String> extensions = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> sniffed = new SniffCache();
+    private volatile boolean sniffing = false;
+
+    /**
+     * Create a detector which identifies files by extension only
+     */
+    public DefaultFormatDetector()
+    {
+    }
+
+    /**
+     * Create a detector which optionally sniffs the content of files whose extension is not recognised
+     *
+     * @param sniffing
+     */
+    public DefaultFormatDetector(boolean sniffing)
+    {
+        this.sniffing = sniffing;
+    }
+
+    /**
+     * Set whether the content of files whose extension is not recognised should be sniffed
+     *
+     * @param sniffing
+     */
+    public void setSniffing(boolean sniffing)
+    {
+        this.sniffing = sniffing;
+    }
+
+    public String detect(File file)
+    {
+        String format = this.detectByExtension(file.getName());
+        if (UNKNOWN.equals(format) && this.sniffing && file.isFile())
+        {
+            String sniffed = this.sniff(file);
+            if (sniffed != null)
+            {
+                format = sniffed;
+            }
+        }
+        return format;
+    }
+
+    /**
+     * Look up the format for the extension of the given filename
+     *
+     * @param filename
+     * @return
+     */
+    String detectByExtension(String filename)
+    {
+        int dot = filename.lastIndexOf('.');
+        String extension = dot == -1 ? "" : filename.substring(dot + 1).toLowerCase();
+
+        String format = this.extensions.get(extension);
+        if (format == null)
+        {
+            // MimetypesFileTypeMap synchronizes its lookups, so only go to it on a cache miss
+            format = dot == -1 ? UNKNOWN : this.mimeTypes.getContentType("file." + extension);
+            this.extensions.put(extension, format);
+        }
+        return format;
+    }
+
+    /**
+     * Identify the file from its first bytes, remembering the result for its path, size and modification time
+     *
+     * @param file
+     * @return  the format, or null if it is not recognised
+     */
+    private String sniff(File file)
+    {
+        String key = file.getAbsolutePath() + "\u0000" + file.length() + "\u0000" + file.lastModified();
+        synchronized (this.sniffed)
+        {
+            if (this.sniffed.containsKey(key))
+            {
+                return this.sniffed.get(key);
+            }
+        }
+
+        String format;
+        try
+        {
+            byte[] head = new byte[SNIFF];
+            int length = 0;
+            InputStream is = new FileInputStream(file);
+            try
+            {
+                int count;
+                while (length < head.length && (count = is.read(head, length, head.length - length)) != -1)
+                {
+                    length += count;
+                }
+            }
+            finally
+            {
+                is.close();
+            }
+            format = DefaultFormatDetector.sniff(head, length);
+        }
+        catch (IOException e)
+        {
+            // an unreadable file is simply of unknown format; don't remember it, as it may be readable later
+            return null;
+        }
+
+        synchronized (this.sniffed)
+        {
+            this.sniffed.put(key, format);
+        }
+        return format;
+    }
+
+    /**
+     * Identify a format from the signature at the start of its content
+     *
+     * @param head  the first bytes of the content
+     * @param length    the number of valid bytes in head
+     * @return  the format, or null if it is not recognised
+     */
+    static String sniff(byte[] head, int length)
+    {
+        String ascii = new String(head, 0, length, LATIN1);
+        if (ascii.startsWith("%PDF-"))
+        {
+            return "application/pdf";
+        }
+        else if (ascii.startsWith("PK\u0003\u0004"))
+        {
+            // ODF (and EPUB) documents begin with an uncompressed entry called mimetype which holds their type
+            if (length > 38 && ascii.startsWith("mimetype", 30))
+            {
+                int method = (head[8] & 0xff) | (head[9] & 0xff) << 8;
+                int size = (head[18] & 0xff) | (head[19] & 0xff) << 8 | (head[20] & 0xff) << 16 | (head[21] & 0xff) << 24;
+                if (method == 0 && size > 0 && 38 + size <= length)
+                {
+                    return ascii.substring(38, 38 + size).trim();
+                }
+            }
+            return "application/zip";
+        }
+        else if (ascii.startsWith("\u0089PNG"))
+        {
+            return "image/png";
+        }
+        else if (ascii.startsWith("\u00ff\u00d8\u00ff"))
+        {
+            return "image/jpeg";
+        }
+        else if (ascii.startsWith("GIF87a") || ascii.startsWith("GIF89a"))
+        {
+            return "image/gif";
+        }
+        else if (ascii.startsWith("<?xml") || ascii.startsWith("\u00ef\u00bb\u00bf<?xml"))
+        {
+            return "text/xml";
+        }
+        return null;
+    }
+
+    /**
+     * The sniffing results, in access order, dropping the least recently used once there are more than
+     * SNIFF_CACHE_SIZE of them.  This is not thread-safe; callers synchronize on it.
+     */
+    private static class SniffCache extends LinkedHashMap<String, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        SniffCache()
+        {
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return this.size() > SNIFF_CACHE_SIZE;
+        }
+    }
+}
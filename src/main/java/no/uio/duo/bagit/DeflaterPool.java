@@ -0,0 +1,60 @@
+package no.uio.duo.bagit;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of Deflaters, so that writing many Bags (or many entries) does not create and destroy a Deflater, with its
+ * native zlib state, for every one of them.
+ *
+ * This works in the same way as the digests and buffers held by {@link Digester}: each thread keeps a few
+ * Deflaters for reuse, and anything acquired must be released by the code which acquired it.  A Deflater which is
+ * not returned to the pool is ended when it is released.
+ */
+class DeflaterPool
+{
+    /** the most Deflaters that a thread will keep for reuse */
+    private static final int POOL_SIZE = 4;
+
+    private static final ThreadLocal<Deque<Deflater>> deflaters = new ThreadLocal<Deque<Deflater>>()
+    {
+        protected Deque<Deflater> initialValue()
+        {
+            return new ArrayDeque<Deflater>();
+        }
+    };
+
+    /**
+     * Borrow a Deflater producing raw deflate data (with no zlib header), as used in zip files
+     *
+     * @param level the deflate level
+     * @return
+     */
+    public static Deflater acquire(int level)
+    {
+        Deque<Deflater> pool = deflaters.get();
+        Deflater deflater = pool.isEmpty() ? new Deflater(level, true) : pool.pop();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Give a Deflater back to the pool.  Any data it holds is discarded.
+     *
+     * @param deflater
+     */
+    public static void release(Deflater deflater)
+    {
+        Deque<Deflater> pool = deflaters.get();
+        if (pool.size() < POOL_SIZE)
+        {
+            deflater.reset();
+            pool.push(deflater);
+        }
+        else
+        {
+            deflater.end();
+        }
+    }
+}
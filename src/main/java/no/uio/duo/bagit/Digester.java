@@ -0,0 +1,285 @@
+package no.uio.duo.bagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared component through which all of the hashing in the library is done.
+ *
+ * Creating a MessageDigest and an I/O buffer for every file, and building hex strings one substring at a
+ * time, generates a lot of garbage when thousands of Bags are created or verified in one JVM.  Instead,
+ * digests and buffers are borrowed from a small pool held by the current thread and given back once they
+ * have been used, and checksums are hex encoded with a lookup table.
+ *
+ * Anything acquired from this class must be released by the code which acquired it, ideally in a finally
+ * block.  Objects may be released on a different thread to the one that acquired them, in which case they
+ * join that thread's pool.
+ */
+class Digester
+{
+    static final int BUFFER = 8192;
+
+    /** the most digests of any one algorithm, and the most buffers, that a thread will keep for reuse */
+    private static final int POOL_SIZE = 4;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Map<String, Deque<MessageDigest>>> digests = new ThreadLocal<Map<String, Deque<MessageDigest>>>()
+    {
+        protected Map<String, Deque<MessageDigest>> initialValue()
+        {
+            return new HashMap<String, Deque<MessageDigest>>();
+        }
+    };
+
+    private static final ThreadLocal<Deque<byte[]>> buffers = new ThreadLocal<Deque<byte[]>>()
+    {
+        protected Deque<byte[]> initialValue()
+        {
+            return new ArrayDeque<byte[]>();
+        }
+    };
+
+    /**
+     * Borrow a MessageDigest for the given algorithm, ready to use
+     *
+     * @param algorithm the BagIt name of the algorithm (e.g. md5, sha256)
+     * @return
+     * @throws IllegalArgumentException if the algorithm is not supported by this JVM
+     */
+    public static MessageDigest acquire(String algorithm)
+    {
+        String name = Digester.javaAlgorithm(algorithm);
+        Deque<MessageDigest> pool = digests.get().get(name);
+        if (pool != null && !pool.isEmpty())
+        {
+            return pool.pop();
+        }
+
+        try
+        {
+            return MessageDigest.getInstance(name);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * Borrow a MessageDigest for each of the given algorithms
+     *
+     * @param algorithms    the BagIt names of the algorithms
+     * @return  the digests, in the same order as the algorithms
+     */
+    public static List<MessageDigest> acquire(Collection<String> algorithms)
+    {
+        List<MessageDigest> acquired = new ArrayList<MessageDigest>(algorithms.size());
+        for (String algorithm : algorithms)
+        {
+            acquired.add(Digester.acquire(algorithm));
+        }
+        return acquired;
+    }
+
+    /**
+     * Give a digest back to the pool.  Any state it holds is discarded.
+     *
+     * @param md
+     */
+    public static void release(MessageDigest md)
+    {
+        md.reset();
+        Map<String, Deque<MessageDigest>> pools = digests.get();
+        Deque<MessageDigest> pool = pools.get(md.getAlgorithm());
+        if (pool == null)
+        {
+            pool = new ArrayDeque<MessageDigest>();
+            pools.put(md.getAlgorithm(), pool);
+        }
+        if (pool.size() < POOL_SIZE)
+        {
+            pool.push(md);
+        }
+    }
+
+    /**
+     * Give the digests back to the pool
+     *
+     * @param mds
+     */
+    public static void release(List<MessageDigest> mds)
+    {
+        for (MessageDigest md : mds)
+        {
+            Digester.release(md);
+        }
+    }
+
+    /**
+     * Borrow an I/O buffer of {@link #BUFFER} bytes
+     *
+     * @return
+     */
+    public static byte[] acquireBuffer()
+    {
+        return Digester.acquireBuffer(BUFFER);
+    }
+
+    /**
+     * Borrow an I/O buffer of the given size
+     *
+     * @param size  the length of the buffer, in bytes
+     * @return
+     */
+    public static byte[] acquireBuffer(int size)
+    {
+        Deque<byte[]> pool = buffers.get();
+        Iterator<byte[]> iterator = pool.iterator();
+        while (iterator.hasNext())
+        {
+            byte[] buffer = iterator.next();
+            if (buffer.length == size)
+            {
+                iterator.remove();
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Give an I/O buffer back to the pool.  If the pool is full, the least recently used buffer is dropped.
+     *
+     * @param buffer
+     */
+    public static void releaseBuffer(byte[] buffer)
+    {
+        Deque<byte[]> pool = buffers.get();
+        pool.push(buffer);
+        if (pool.size() > POOL_SIZE)
+        {
+            pool.removeLast();
+        }
+    }
+
+    /**
+     * Complete the given digests, encode them as hex strings and release them
+     *
+     * @param algorithms    the BagIt names of the algorithms
+     * @param mds   the digests, in the same order as the algorithms
+     * @return  the hex encoded checksums, keyed by algorithm
+     */
+    public static Map<String, String> complete(Collection<String> algorithms, List<MessageDigest> mds)
+    {
+        Map<String, String> results = new LinkedHashMap<String, String>();
+        int i = 0;
+        for (String algorithm : algorithms)
+        {
+            MessageDigest md = mds.get(i++);
+            results.put(algorithm, Digester.hex(md.digest()));
+            Digester.release(md);
+        }
+        return results;
+    }
+
+    /**
+     * Read the input stream to the end and return its checksum as a hex string.  The stream is closed
+     * afterwards.
+     *
+     * @param is    InputStream to digest
+     * @param algorithm the BagIt name of the algorithm to use (e.g. md5)
+     * @return  the hex encoded checksum
+     * @throws IOException
+     */
+    public static String checksum(InputStream is, String algorithm)
+            throws IOException
+    {
+        return Digester.checksums(is, Collections.singletonList(algorithm)).get(algorithm);
+    }
+
+    /**
+     * Read the input stream to the end and return its checksum in each of the given algorithms, all
+     * computed in the same pass.  The stream is closed afterwards.
+     *
+     * @param is    InputStream to digest
+     * @param algorithms    the BagIt names of the algorithms to use (e.g. md5, sha256)
+     * @return  the hex encoded checksums, keyed by algorithm
+     * @throws IOException
+     */
+    public static Map<String, String> checksums(InputStream is, Collection<String> algorithms)
+            throws IOException
+    {
+        List<MessageDigest> mds = Digester.acquire(algorithms);
+        byte[] data = Digester.acquireBuffer();
+        Map<String, String> checksums = null;
+        try
+        {
+            int count;
+            while ((count = is.read(data, 0, data.length)) != -1)
+            {
+                for (MessageDigest md : mds)
+                {
+                    md.update(data, 0, count);
+                }
+            }
+            checksums = Digester.complete(algorithms, mds);
+            return checksums;
+        }
+        finally
+        {
+            if (checksums == null)
+            {
+                Digester.release(mds);
+            }
+            Digester.releaseBuffer(data);
+            is.close();
+        }
+    }
+
+    /**
+     * Encode the given digest as a lower case hex string
+     *
+     * @param b the digest
+     * @return
+     */
+    public static String hex(byte[] b)
+    {
+        char[] chars = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++)
+        {
+            chars[i * 2] = HEX[(b[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Convert the BagIt name of a checksum algorithm, as used in the names of manifest files (e.g. md5, sha256),
+     * into the name used by MessageDigest (e.g. MD5, SHA-256)
+     *
+     * @param algorithm the BagIt name of the algorithm
+     * @return
+     */
+    public static String javaAlgorithm(String algorithm)
+    {
+        String name = algorithm.toUpperCase();
+        if (name.startsWith("SHA") && !name.startsWith("SHA-"))
+        {
+            name = "SHA-" + name.substring(3);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,95 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class representing the contents of a BagIt fetch.txt, which lists the payload files that are not held in the Bag.
+ *
+ * Each line consists of a URL, the length of the file in bytes (or "-" if it is not known) and the path of the file
+ * relative to the base directory of the Bag, separated by whitespace.  The path may itself contain spaces, so it is
+ * everything after the second field.
+ */
+class Fetch
+{
+    private Map<String, FetchItem> items = new LinkedHashMap<String, FetchItem>();
+
+    /**
+     * Parse fetch.txt from the given input stream, which will be read to the end and closed
+     *
+     * @param is    InputStream containing fetch.txt, encoded as UTF-8
+     * @param name  name of the file, for use in error messages
+     * @return  the parsed fetch file
+     * @throws IOException  if the stream cannot be read, or a line is malformed
+     */
+    public static Fetch parse(InputStream is, String name)
+            throws IOException
+    {
+        Fetch fetch = new Fetch();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if ("".equals(line))
+                {
+                    continue;
+                }
+
+                String[] bits = line.split("\\s+", 3);
+                if (bits.length < 3)
+                {
+                    throw new IOException("Malformed fetch file: " + name + "; unable to separate line: " + line);
+                }
+
+                long length = -1;
+                if (!"-".equals(bits[1]))
+                {
+                    try
+                    {
+                        length = Long.parseLong(bits[1]);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new IOException("Malformed fetch file: " + name + "; bad length on line: " + line);
+                    }
+                }
+                fetch.items.put(bits[2], new FetchItem(bits[0], length, bits[2]));
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return fetch;
+    }
+
+    /**
+     * Get the item for the given path
+     *
+     * @param path  path relative to the base directory of the Bag
+     * @return  the item, or null if the path is not in the fetch file
+     */
+    public FetchItem getItem(String path)
+    {
+        return this.items.get(path);
+    }
+
+    /**
+     * Get all of the items in the fetch file, in the order in which they appear in the file
+     *
+     * @return
+     */
+    public List<FetchItem> getItems()
+    {
+        return new ArrayList<FetchItem>(this.items.values());
+    }
+}
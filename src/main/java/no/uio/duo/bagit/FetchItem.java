@@ -0,0 +1,59 @@
+package no.uio.duo.bagit;
+
+/**
+ * Class representing one line of a Bag's fetch.txt: a payload file which is listed in the manifests but is not
+ * held in the Bag itself, and the URL it can be fetched from.
+ */
+public class FetchItem
+{
+    private String url;
+    private long length;
+    private String path;
+
+    /**
+     * @param url   the URL the file can be fetched from
+     * @param length    the size of the file in bytes, or -1 if it is not known
+     * @param path  the path of the file relative to the base directory of the Bag, e.g. data/supporting/dataset.tar
+     */
+    public FetchItem(String url, long length, String path)
+    {
+        this.url = url;
+        this.length = length;
+        this.path = path;
+    }
+
+    /**
+     * Get the URL the file can be fetched from
+     *
+     * @return
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * Get the size of the file in bytes
+     *
+     * @return  the size, or -1 if it is not known
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Get the path of the file relative to the base directory of the Bag
+     *
+     * @return
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    public String toString()
+    {
+        return this.url + " " + (this.length < 0 ? "-" : String.valueOf(this.length)) + " " + this.path;
+    }
+}
@@ -0,0 +1,101 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the local copies of the files listed in a Bag's fetch.txt, so that a holey Bag can be verified or completed
+ * against the filesystem with {@link BagIt#verifyFetched(FetchResolver)} and {@link BagIt#complete(FetchResolver)}.
+ *
+ * file: URLs are resolved to the file they name.  Other URLs are resolved through locations registered with
+ * {@link #addLocation(String, File)}, each of which maps a URL prefix onto a local directory: with the location
+ * "http://data.example.org/theses/" mapped onto /mnt/theses, the URL http://data.example.org/theses/1234/data.tar
+ * resolves to /mnt/theses/1234/data.tar.  Subclasses may override {@link #resolve(FetchItem)} to find files some
+ * other way.
+ */
+public class FetchResolver
+{
+    private Map<String, File> locations = new LinkedHashMap<String, File>();
+
+    /**
+     * Resolve URLs which start with the given prefix to files under the given directory
+     *
+     * @param urlPrefix the start of the URLs, e.g. http://data.example.org/theses/
+     * @param dir   the local directory which holds the files under that prefix
+     */
+    public void addLocation(String urlPrefix, File dir)
+    {
+        this.locations.put(urlPrefix, dir);
+    }
+
+    /**
+     * Get the local file for the given item
+     *
+     * @param item  the item from fetch.txt
+     * @return  the local file, which may not exist, or null if the URL cannot be resolved
+     */
+    public File resolve(FetchItem item)
+    {
+        String url = item.getUrl();
+        if (url.startsWith("file:"))
+        {
+            try
+            {
+                return new File(URI.create(url));
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+
+        // the longest matching prefix wins
+        String prefix = null;
+        for (String candidate : this.locations.keySet())
+        {
+            if (url.startsWith(candidate) && (prefix == null || candidate.length() > prefix.length()))
+            {
+                prefix = candidate;
+            }
+        }
+        if (prefix == null)
+        {
+            return null;
+        }
+
+        File file = this.locations.get(prefix);
+        for (String segment : url.substring(prefix.length()).split("/"))
+        {
+            if ("".equals(segment))
+            {
+                continue;
+            }
+            segment = this.decode(segment);
+            if (".".equals(segment) || "..".equals(segment))
+            {
+                // never resolve outside of the location
+                return null;
+            }
+            file = new File(file, segment);
+        }
+        return file;
+    }
+
+    private String decode(String segment)
+    {
+        try
+        {
+            // URLDecoder is for form data, so keep any "+" as it is
+            return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+}
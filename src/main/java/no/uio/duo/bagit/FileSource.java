@@ -0,0 +1,215 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a payload file through its FileChannel, for the paths which write payload files into a Bag.
+ *
+ * FileInputStream allocates a fresh native buffer for every read of more than a few KB, and BufferedInputStream
+ * limits reads to its own buffer size, so large files were read a few KB at a time.  A FileChannel reads the whole
+ * of the caller's buffer in one system call, so a Bag can use buffers of whatever size suits its storage (see
+ * {@link BagIt#setBufferSize(int)}).  The InputStream methods read into the caller's array, which the JDK still
+ * fills through its own cached direct buffer, so the data is copied once on the way in.
+ *
+ * {@link #scan(File, List, int)} computes the CRC and checksums of a file in the same pass.  CRC32 only accepts
+ * arrays before Java 8, so it reads into an array.  {@link #checksums(File, Collection, int)}, for the paths which
+ * only need checksums, reads into a direct buffer instead, which MessageDigest accepts as it is, so the data is not
+ * copied into the Java heap first.
+ */
+class FileSource extends InputStream
+{
+    /** the default size of the buffers used to read payload files */
+    static final int DEFAULT_BUFFER = 256 * 1024;
+
+    /** each thread's direct buffer for {@link #checksums(File, Collection, int)}, which is costly to allocate */
+    private static final ThreadLocal<ByteBuffer> direct = new ThreadLocal<ByteBuffer>();
+
+    private FileInputStream stream;
+    private FileChannel channel;
+    private byte[] single = new byte[1];
+
+    /**
+     * The outcome of scanning a file
+     */
+    static class Scan
+    {
+        long size;
+        long modified;
+        long crc;
+        Map<String, String> checksums;
+    }
+
+    /**
+     * Open the given file for reading
+     *
+     * @param file
+     * @throws IOException
+     */
+    public FileSource(File file)
+            throws IOException
+    {
+        this.stream = new FileInputStream(file);
+        this.channel = this.stream.getChannel();
+    }
+
+    public int read()
+            throws IOException
+    {
+        int count = this.read(this.single, 0, 1);
+        return count == -1 ? -1 : this.single[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        int count;
+        do
+        {
+            count = this.channel.read(buffer);
+        }
+        while (count == 0);
+        return count;
+    }
+
+    public long skip(long n)
+            throws IOException
+    {
+        long skipped = Math.max(0, Math.min(n, this.channel.size() - this.channel.position()));
+        this.channel.position(this.channel.position() + skipped);
+        return skipped;
+    }
+
+    public int available()
+            throws IOException
+    {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, this.channel.size() - this.channel.position()));
+    }
+
+    public void close()
+            throws IOException
+    {
+        this.stream.close();
+    }
+
+    /**
+     * Compute the size, CRC and checksums of the given file in one pass, reading it through its channel in chunks
+     * of the given size.  The modification time of the file is recorded too, so that a file which changes before
+     * it is read again can be detected.
+     *
+     * CRC32 only accepts arrays before Java 8, so the file is read into an array rather than mapped.
+     *
+     * @param file  the file to scan
+     * @param algorithms    the BagIt names of the algorithms to compute checksums in
+     * @param bufferSize    the size of the chunks in which the file is read and digested
+     * @return
+     * @throws IOException
+     */
+    public static Scan scan(File file, List<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        Scan scan = new Scan();
+        scan.modified = file.lastModified();
+        CRC32 crc = new CRC32();
+        List<MessageDigest> digests = Digester.acquire(algorithms);
+        byte[] data = Digester.acquireBuffer(bufferSize);
+        FileSource source = new FileSource(file);
+        try
+        {
+            int count;
+            while ((count = source.read(data, 0, data.length)) != -1)
+            {
+                FileSource.update(crc, digests, data, count);
+                scan.size += count;
+            }
+
+            scan.crc = crc.getValue();
+            scan.checksums = Digester.complete(algorithms, digests);
+            return scan;
+        }
+        finally
+        {
+            if (scan.checksums == null)
+            {
+                Digester.release(digests);
+            }
+            Digester.releaseBuffer(data);
+            source.close();
+        }
+    }
+
+    /**
+     * Compute the checksums of the given file in one pass, reading it through its channel into a direct buffer of
+     * the given size, which is handed to each digest as it is
+     *
+     * @param file  the file to digest
+     * @param algorithms    the BagIt names of the algorithms to compute checksums in
+     * @param bufferSize    the size of the chunks in which the file is read and digested
+     * @return  the hex encoded checksums, keyed by algorithm
+     * @throws IOException
+     */
+    public static Map<String, String> checksums(File file, Collection<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        ByteBuffer buffer = direct.get();
+        if (buffer == null || buffer.capacity() != bufferSize)
+        {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            direct.set(buffer);
+        }
+
+        List<MessageDigest> digests = Digester.acquire(algorithms);
+        Map<String, String> checksums = null;
+        FileInputStream stream = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = stream.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                for (MessageDigest md : digests)
+                {
+                    // each digest reads the buffer from its position to its limit, so it is rewound for the next
+                    buffer.mark();
+                    md.update(buffer);
+                    buffer.reset();
+                }
+                buffer.clear();
+            }
+            checksums = Digester.complete(algorithms, digests);
+            return checksums;
+        }
+        finally
+        {
+            if (checksums == null)
+            {
+                Digester.release(digests);
+            }
+            stream.close();
+        }
+    }
+
+    private static void update(CRC32 crc, List<MessageDigest> digests, byte[] data, int count)
+    {
+        crc.update(data, 0, count);
+        for (MessageDigest md : digests)
+        {
+            md.update(data, 0, count);
+        }
+    }
+}
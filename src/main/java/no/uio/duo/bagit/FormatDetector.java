@@ -0,0 +1,20 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+
+/**
+ * Interface for working out the MIME type of a file which is added to a Bag without one.
+ *
+ * A single detector may be shared by many Bags, and used from several threads at once, so implementations
+ * must be thread-safe.
+ */
+public interface FormatDetector
+{
+    /**
+     * Detect the format of the given file
+     *
+     * @param file  the file to examine
+     * @return  the MIME type of the file; application/octet-stream if it cannot be determined
+     */
+    String detect(File file);
+}
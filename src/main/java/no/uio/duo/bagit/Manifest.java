@@ -0,0 +1,82 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class representing the contents of a BagIt manifest or tag manifest file, which maps
+ * each path in the Bag onto its checksum.
+ *
+ * Each line of a manifest consists of a checksum followed by whitespace and then the path
+ * of the file relative to the base directory of the Bag.  This library writes the two fields
+ * separated by a tab, but other BagIt tools use spaces, so either is accepted when reading.
+ */
+class Manifest
+{
+    private Map<String, String> checksums = new LinkedHashMap<String, String>();
+
+    /**
+     * Parse the manifest from the given input stream, which will be read to the end and closed
+     *
+     * @param is    InputStream containing the manifest, encoded as UTF-8
+     * @param name  name of the manifest, for use in error messages
+     * @return  the parsed manifest
+     * @throws IOException  if the stream cannot be read, or a line of the manifest is malformed
+     */
+    public static Manifest parse(InputStream is, String name)
+            throws IOException
+    {
+        Manifest manifest = new Manifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if ("".equals(line))
+                {
+                    continue;
+                }
+
+                String[] bits = line.split("\\s+", 2);
+                if (bits.length < 2)
+                {
+                    throw new IOException("Malformed manifest: " + name + "; unable to separate line: " + line);
+                }
+                manifest.checksums.put(bits[1], bits[0]);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Get the checksum recorded for the given path
+     *
+     * @param path  path relative to the base directory of the Bag
+     * @return  the checksum, or null if the path is not in the manifest
+     */
+    public String getChecksum(String path)
+    {
+        return this.checksums.get(path);
+    }
+
+    /**
+     * Get all of the paths in the manifest, in the order in which they appear in the file
+     *
+     * @return
+     */
+    public Set<String> getPaths()
+    {
+        return this.checksums.keySet();
+    }
+}
@@ -4,11 +4,20 @@ import nu.xom.Attribute;
 import nu.xom.Document;
 import nu.xom.Element;
 import nu.xom.Elements;
-
+import nu.xom.ParentNode;
+import nu.xom.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class representing the metadata for StudentWeb/FS.  It deals with creating and parsing
@@ -150,8 +159,38 @@ public class Metadata
     /** wildcard parameter to match any language term */
     public static String ANY_LANGUAGE = "*";
 
+    /**
+     * The DUO/FS field names above (e.g. dcterms:title) already split into their local name and namespace.  This is
+     * filled in once and only read after that; any other field name is split each time it is used, so that names
+     * supplied by callers cannot make it grow.
+     */
+    private static final Map<String, String[]> FIELDS = new HashMap<String, String[]>();
+
+    static
+    {
+        for (String field : new String[] { NAME, GIVEN_NAME, FAMILY_NAME, STUDENT_NUMBER, UID, FOEDSELSNUMMER,
+                POSTAL_ADDRESS, EMAIL, TELEPHONE_NUMBER, SUBJECT, SUBJECT_CODE, SUBJECT_TITLE, UNITCODE, UNIT_NAME,
+                EMBARGO_TYPE, EMBARGO_END_DATE, GRADE, TITLE, LANGUAGE, ABSTRACT, TYPE })
+        {
+            FIELDS.put(field, Metadata.splitField(field));
+        }
+    }
+
     private Element metadata = null;
 
+    /**
+     * The values of each field, keyed by {@link #key(String, String, String)}.  Each field appears once under
+     * {@link #ANY_LANGUAGE} with all of its values, and once for each language that its values are in.  Built the
+     * first time a field is read, and kept up to date by addField and addSubject after that.
+     */
+    private Map<String, List<String>> index = null;
+
+    /** the subject code/title pairs, built alongside the index */
+    private List<String[]> subjects = null;
+
+    /** the UTF-8 serialisation of the metadata, kept until the next change to it */
+    private byte[] serialised = null;
+
     /**
      * Construct a new Metadata object from scratch
      */
@@ -194,7 +233,7 @@ public class Metadata
      * @param value value to add to the field
      * @param language  language of the field contents
      */
-    public void addField(String fieldName, String value, String language)
+    public synchronized void addField(String fieldName, String value, String language)
     {
         String namespace = fieldName.startsWith("fs:") ? FS_NAMESPACE : DC_NAMESPACE;
         Element field = new Element(fieldName, namespace);
@@ -205,6 +244,12 @@ public class Metadata
         }
         field.appendChild(value);
         this.metadata.appendChild(field);
+        this.serialised = null;
+
+        if (this.index != null)
+        {
+            this.indexField(field);
+        }
     }
 
     /**
@@ -213,7 +258,7 @@ public class Metadata
      * @param code  subject code
      * @param title subject title
      */
-    public void addSubject(String code, String title)
+    public synchronized void addSubject(String code, String title)
     {
         Element subject = new Element(SUBJECT, FS_NAMESPACE);
 
@@ -227,6 +272,12 @@ public class Metadata
         subject.appendChild(subjectTitle);
 
         this.metadata.appendChild(subject);
+        this.serialised = null;
+
+        if (this.index != null)
+        {
+            this.indexField(subject);
+        }
     }
 
     /**
@@ -265,22 +316,21 @@ public class Metadata
      */
     public List<String> getField(String fieldName, String language)
     {
-        String[] parts = this.interpretField(fieldName);
-        List<String> values = new ArrayList<String>();
-        Elements elements = this.metadata.getChildElements(parts[0], parts[1]);
-        for (int i = 0; i < elements.size(); i++)
+        String[] parts = Metadata.interpretField(fieldName);
+        if (language == null)
         {
-            Element element = elements.get(i);
-            Attribute lang = element.getAttribute("lang", XML_NAMESPACE);
-
-            if (    (language == null || ANY_LANGUAGE.equals(language)) || // if the language argument is null or set to * OR
-                    (language != null && !ANY_LANGUAGE.equals(language) && lang != null && language.equals(lang.getValue())) // if the language value is set and is equal to the xml:lang attribute (if it is not null)
-               )
+            language = ANY_LANGUAGE;
+        }
+        String key = Metadata.key(parts[1], parts[0], language);
+        synchronized (this)
+        {
+            List<String> values = this.getIndex().get(key);
+            if (values == null)
             {
-                values.add(element.getValue());
+                return new ArrayList<String>();
             }
+            return new ArrayList<String>(values);
         }
-        return values;
     }
 
     /**
@@ -292,17 +342,13 @@ public class Metadata
     public List<String[]> getSubjects()
     {
         List<String[]> subjects = new ArrayList<String[]>();
-        String[] parts = this.interpretField(SUBJECT);
-        Elements elements = this.metadata.getChildElements(parts[0], parts[1]);
-        for (int i = 0; i < elements.size(); i++)
+        synchronized (this)
         {
-            Element element = elements.get(i);
-            String[] codeParts = this.interpretField(SUBJECT_CODE);
-            Element codeElement = element.getFirstChildElement(codeParts[0], codeParts[1]);
-            String[] titleParts = this.interpretField(SUBJECT_TITLE);
-            Element titleElement = element.getFirstChildElement(titleParts[0], titleParts[1]);
-            String[] pair = { codeElement.getValue(), titleElement.getValue() };
-            subjects.add(pair);
+            this.getIndex();
+            for (String[] pair : this.subjects)
+            {
+                subjects.add(pair.clone());
+            }
         }
         return subjects;
     }
@@ -314,12 +360,41 @@ public class Metadata
      */
     public String toXML()
     {
-        Document doc = new Document(this.metadata);
-        return doc.toXML();
+        return this.getDocument().toXML();
+    }
+
+    /**
+     * Write the metadata to the given output stream as a UTF-8 encoded XML document.  The stream is not closed.
+     *
+     * The serialised form is kept until the metadata is next changed through this object, so writing the same
+     * metadata many times only serialises it once.
+     *
+     * @param out   OutputStream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        out.write(this.getBytes());
+    }
+
+    /**
+     * Get an input stream over the UTF-8 encoded XML document, as written by {@link #writeTo(OutputStream)}
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream()
+            throws IOException
+    {
+        return new ByteArrayInputStream(this.getBytes());
     }
 
     /**
-     * Get the root XML metadata element
+     * Get the root XML metadata element.  Changes made directly to the element are not seen by
+     * {@link #writeTo(OutputStream)} or {@link #getInputStream()} if the metadata has already been serialised
+     * since the last call to addField, addSubject or setEmbargo, nor by getField or getSubjects once either of them
+     * has been called.
      *
      * @return
      */
@@ -328,7 +403,123 @@ public class Metadata
         return this.metadata;
     }
 
-    private String[] interpretField(String fieldName)
+    /**
+     * Get the field index, building it from the metadata element if this is the first time it has been needed
+     *
+     * @return
+     */
+    private synchronized Map<String, List<String>> getIndex()
+    {
+        if (this.index == null)
+        {
+            this.index = new HashMap<String, List<String>>();
+            this.subjects = new ArrayList<String[]>();
+            Elements elements = this.metadata.getChildElements();
+            for (int i = 0; i < elements.size(); i++)
+            {
+                this.indexField(elements.get(i));
+            }
+        }
+        return this.index;
+    }
+
+    private void indexField(Element element)
+    {
+        String namespace = element.getNamespaceURI();
+        String local = element.getLocalName();
+        String value = element.getValue();
+
+        this.addToIndex(Metadata.key(namespace, local, ANY_LANGUAGE), value);
+        Attribute lang = element.getAttribute("lang", XML_NAMESPACE);
+        if (lang != null && !ANY_LANGUAGE.equals(lang.getValue()))
+        {
+            this.addToIndex(Metadata.key(namespace, local, lang.getValue()), value);
+        }
+
+        String[] subject = Metadata.interpretField(SUBJECT);
+        if (subject[0].equals(local) && subject[1].equals(namespace))
+        {
+            String[] codeParts = Metadata.interpretField(SUBJECT_CODE);
+            Element codeElement = element.getFirstChildElement(codeParts[0], codeParts[1]);
+            String[] titleParts = Metadata.interpretField(SUBJECT_TITLE);
+            Element titleElement = element.getFirstChildElement(titleParts[0], titleParts[1]);
+
+            // a subject without both its code and title is left out, rather than spoiling every other field
+            if (codeElement != null && titleElement != null)
+            {
+                String[] pair = { codeElement.getValue(), titleElement.getValue() };
+                this.subjects.add(pair);
+            }
+        }
+    }
+
+    private void addToIndex(String key, String value)
+    {
+        List<String> values = this.index.get(key);
+        if (values == null)
+        {
+            values = new ArrayList<String>(1);
+            this.index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static String key(String namespace, String local, String language)
+    {
+        return (namespace == null ? "" : namespace) + "\u0000" + local + "\u0000" + language;
+    }
+
+    private synchronized byte[] getBytes()
+            throws IOException
+    {
+        if (this.serialised == null)
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Serializer serializer = new Serializer(baos, "UTF-8");
+            serializer.write(this.getDocument());
+            serializer.flush();
+            this.serialised = baos.toByteArray();
+        }
+        return this.serialised;
+    }
+
+    /**
+     * Get the document the metadata element belongs to, creating one if it does not yet have a parent
+     *
+     * @return
+     */
+    private Document getDocument()
+    {
+        ParentNode parent = this.metadata.getParent();
+        if (parent == null)
+        {
+            return new Document(this.metadata);
+        }
+        if (parent instanceof Document)
+        {
+            return (Document) parent;
+        }
+        return new Document((Element) this.metadata.copy());
+    }
+
+    /**
+     * Split a field name (e.g. dcterms:title) into its local name and namespace
+     *
+     * @param fieldName
+     * @return  a two element array of the local name and the namespace (which is null if the field has no prefix),
+     *          or null if the field name cannot be interpreted
+     */
+    static String[] interpretField(String fieldName)
+    {
+        String[] parts = FIELDS.get(fieldName);
+        if (parts == null)
+        {
+            parts = Metadata.splitField(fieldName);
+        }
+        return parts;
+    }
+
+    private static String[] splitField(String fieldName)
     {
         String[] bits = fieldName.split(":");
         if (bits.length == 1)
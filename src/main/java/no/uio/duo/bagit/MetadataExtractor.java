@@ -0,0 +1,156 @@
+package no.uio.duo.bagit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pulls individual fields out of a serialised metadata document without building a XOM tree for it.
+ *
+ * This is intended for jobs which only need one or two fields from each of a great many Bags (for example, the
+ * embargo end date): the document is read with a StAX pull parser, only the text of the requested fields is kept,
+ * and reading stops as soon as every requested field has been found.  To work with the whole of the metadata, use
+ * {@link Metadata} instead.
+ */
+public class MetadataExtractor
+{
+    private static final XMLInputFactory FACTORY = MetadataExtractor.createFactory();
+
+    /**
+     * Read the first value of each of the given fields from the metadata document.  Fields are matched in the same
+     * way as {@link Metadata#getField(String)}, and values in any language are accepted.  The stream is closed
+     * afterwards.
+     *
+     * @param is    InputStream over the serialised metadata document
+     * @param fieldNames    the fields to read; recommended to use the static constants on {@link Metadata}
+     * @return  the value of each field which was found, keyed by the field name as given.  Fields which do not
+     *          appear in the document are absent from the map.
+     * @throws IOException  if the stream cannot be read or does not contain well-formed XML
+     */
+    public static Map<String, String> extract(InputStream is, String... fieldNames)
+            throws IOException
+    {
+        // index the requested fields by namespace and local name, so each element costs one lookup
+        Map<String, String> wanted = new HashMap<String, String>();
+        for (String fieldName : fieldNames)
+        {
+            String[] parts = Metadata.interpretField(fieldName);
+            if (parts == null)
+            {
+                throw new IllegalArgumentException("Unrecognised metadata field: " + fieldName);
+            }
+            wanted.put(MetadataExtractor.key(parts[1], parts[0]), fieldName);
+        }
+
+        Map<String, String> found = new LinkedHashMap<String, String>();
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = FACTORY.createXMLStreamReader(is);
+            int depth = 0;
+            while (found.size() < wanted.size() && reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                {
+                    continue;
+                }
+
+                depth++;
+                // fields are the children of the root element
+                if (depth != 2)
+                {
+                    continue;
+                }
+
+                String fieldName = wanted.get(MetadataExtractor.key(reader.getNamespaceURI(), reader.getLocalName()));
+                if (fieldName == null || found.containsKey(fieldName))
+                {
+                    continue;
+                }
+
+                found.put(fieldName, MetadataExtractor.readValue(reader));
+                depth--;
+            }
+            return found;
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Unable to read metadata: " + e.getMessage(), e);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    // we have what we came for
+                }
+            }
+            is.close();
+        }
+    }
+
+    /**
+     * Read all of the text within the current element, leaving the reader on its end tag
+     *
+     * @param reader    reader positioned on the start tag of the element
+     * @return  the text content of the element and its descendants, as given by XOM's Element.getValue()
+     * @throws XMLStreamException
+     */
+    private static String readValue(XMLStreamReader reader)
+            throws XMLStreamException
+    {
+        StringBuilder value = new StringBuilder();
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = reader.next();
+            switch (event)
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return value.toString();
+    }
+
+    private static String key(String namespace, String local)
+    {
+        return (namespace == null ? "" : namespace) + "\u0000" + local;
+    }
+
+    private static XMLInputFactory createFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+}
@@ -0,0 +1,18 @@
+package no.uio.duo.bagit;
+
+/**
+ * Interface for choosing which payload files of a Bag an operation such as
+ * {@link BagIt#extractTo(java.io.File, java.util.concurrent.ExecutorService, PayloadFilter)} applies to.
+ */
+public interface PayloadFilter
+{
+    /**
+     * Should the given payload file be included?
+     *
+     * @param path  the path of the file relative to the base directory of the Bag (e.g. data/final/MainArticle.pdf)
+     * @param type  the type of the file: "final", "supporting", "licence" or "metadata"
+     * @param access    the access condition of a supporting file ("open" or "closed"), or null
+     * @return
+     */
+    boolean accept(String path, String type, String access);
+}
@@ -0,0 +1,230 @@
+package no.uio.duo.bagit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip entry which has been compressed and digested ahead of time, so that it can later be written
+ * into a zip file as raw bytes by {@link ZipArchiveWriter#writePrepared(PreparedEntry)}.
+ *
+ * The data for the entry is either held in a buffer, or, for payload files which are stored without
+ * compression, is read from the original file again when the entry is written, so that large files are not
+ * copied to a temporary file first.  Entries copied unchanged from another zip file are read from that file as
+ * they were stored there.
+ *
+ * Preparing entries is independent of the zip file they will end up in, so many entries can be prepared
+ * concurrently on different threads, and then written to the zip file in a fixed order.
+ */
+class PreparedEntry
+{
+    /** entries whose compressed form is larger than this are held in a temporary file rather than in memory */
+    static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+    String name;
+    int method;
+    long crc;
+    long size;
+    Map<String, String> checksums;
+    Compression compression;
+    SpillBuffer data;
+    File file;
+    long modified;
+    ZipArchiveReader source;
+    ZipArchiveReader.Entry sourceEntry;
+
+    /**
+     * Read the source to the end, compressing it (if required) and computing its CRC and checksums
+     * in the same pass.  The source is closed afterwards.
+     *
+     * @param name  the path of the entry inside the zip file
+     * @param source    InputStream to read the uncompressed data from
+     * @param method    ZipEntry.DEFLATED or ZipEntry.STORED
+     * @param level the deflate level to use if the entry is DEFLATED
+     * @param algorithms    the BagIt names of the algorithms used to compute checksums of the uncompressed data
+     * @param bufferSize    the size of the buffer to read the source with
+     * @return  the prepared entry
+     * @throws IOException
+     */
+    public static PreparedEntry prepare(String name, InputStream source, int method, int level, List<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        PreparedEntry entry = new PreparedEntry();
+        entry.name = name;
+        entry.method = method;
+        entry.data = new SpillBuffer(MEMORY_THRESHOLD);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = method == ZipEntry.DEFLATED ? DeflaterPool.acquire(level) : null;
+        List<MessageDigest> digests = Digester.acquire(algorithms);
+        byte[] data = Digester.acquireBuffer(bufferSize);
+        byte[] compressed = Digester.acquireBuffer();
+        try
+        {
+            int count;
+            while ((count = source.read(data, 0, data.length)) != -1)
+            {
+                for (MessageDigest md : digests)
+                {
+                    md.update(data, 0, count);
+                }
+                crc.update(data, 0, count);
+                entry.size += count;
+
+                if (deflater == null)
+                {
+                    entry.data.write(data, 0, count);
+                    continue;
+                }
+
+                deflater.setInput(data, 0, count);
+                while (!deflater.needsInput())
+                {
+                    int len = deflater.deflate(compressed, 0, compressed.length);
+                    entry.data.write(compressed, 0, len);
+                }
+            }
+
+            if (deflater != null)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    int len = deflater.deflate(compressed, 0, compressed.length);
+                    entry.data.write(compressed, 0, len);
+                }
+            }
+            entry.data.close();
+
+            entry.crc = crc.getValue();
+            entry.checksums = Digester.complete(algorithms, digests);
+            return entry;
+        }
+        finally
+        {
+            if (entry.checksums == null)
+            {
+                Digester.release(digests);
+                entry.data.delete();
+            }
+            Digester.releaseBuffer(data);
+            Digester.releaseBuffer(compressed);
+            if (deflater != null)
+            {
+                DeflaterPool.release(deflater);
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * Prepare a file to be stored without compression, by computing its CRC and checksums.  The file is not copied;
+     * it is read again when the entry is written, and must not have changed in between.  See
+     * {@link FileSource#scan(File, List, int)}.
+     *
+     * @param name  the path of the entry inside the zip file
+     * @param file  the file to store
+     * @param algorithms    the BagIt names of the algorithms used to compute checksums of the file
+     * @param bufferSize    the size of the chunks in which the file is read
+     * @return  the prepared entry
+     * @throws IOException
+     */
+    public static PreparedEntry scan(String name, File file, List<String> algorithms, int bufferSize)
+            throws IOException
+    {
+        FileSource.Scan scan = FileSource.scan(file, algorithms, bufferSize);
+        PreparedEntry entry = new PreparedEntry();
+        entry.name = name;
+        entry.method = ZipEntry.STORED;
+        entry.file = file;
+        entry.crc = scan.crc;
+        entry.size = scan.size;
+        entry.modified = scan.modified;
+        entry.checksums = scan.checksums;
+        return entry;
+    }
+
+    /**
+     * Prepare an entry of another zip file to be copied across as it is, without being decompressed
+     *
+     * @param name  the path of the entry inside the zip file being written
+     * @param source    the zip file to copy the entry from
+     * @param entry the entry to copy
+     * @param checksums the checksums of the entry's uncompressed data, keyed by algorithm
+     * @return  the prepared entry
+     */
+    public static PreparedEntry copy(String name, ZipArchiveReader source, ZipArchiveReader.Entry entry, Map<String, String> checksums)
+    {
+        PreparedEntry prepared = new PreparedEntry();
+        prepared.name = name;
+        prepared.method = entry.method;
+        prepared.crc = entry.crc;
+        prepared.size = entry.size;
+        prepared.checksums = checksums;
+        prepared.source = source;
+        prepared.sourceEntry = entry;
+        return prepared;
+    }
+
+    /**
+     * Get an input stream over the entry's data as it will be stored in the zip file
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream()
+            throws IOException
+    {
+        if (this.file != null)
+        {
+            // the CRC and checksums were computed from the file as it was when it was scanned; a change in its
+            // length is also caught as the entry is written
+            if (this.file.lastModified() != this.modified)
+            {
+                throw new ZipException("Entry " + this.name + " has changed since it was prepared");
+            }
+            return new FileSource(this.file);
+        }
+        if (this.source != null)
+        {
+            return this.source.getRawInputStream(this.sourceEntry);
+        }
+        return this.data.getInputStream();
+    }
+
+    /**
+     * Get the size of the entry's data as it will be stored in the zip file
+     *
+     * @return
+     */
+    public long getCompressedSize()
+    {
+        if (this.file != null)
+        {
+            return this.size;
+        }
+        if (this.source != null)
+        {
+            return this.sourceEntry.compressedSize;
+        }
+        return this.data.size();
+    }
+
+    /**
+     * Discard the prepared data, once it has been written or is no longer needed
+     */
+    public void delete()
+    {
+        if (this.data != null)
+        {
+            this.data.delete();
+        }
+    }
+}
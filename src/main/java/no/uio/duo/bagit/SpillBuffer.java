@@ -0,0 +1,173 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * OutputStream which holds the data written to it in memory until it passes a size threshold,
+ * after which everything is moved to a temporary file.  This allows us to buffer data whose size
+ * we do not know in advance without risking the heap.
+ *
+ * Once the buffer has been closed its contents can be read back with {@link #getInputStream()}
+ * as many times as required.  Call {@link #delete()} when the data is no longer needed, to remove
+ * any temporary file.
+ */
+class SpillBuffer extends OutputStream
+{
+    private static final int BUFFER = 8192;
+
+    private int threshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file = null;
+    private OutputStream out = null;
+    private long size = 0;
+
+    /**
+     * Create a new buffer which will spill to disk once more than the given number of bytes have been written
+     *
+     * @param threshold maximum number of bytes to hold in memory
+     */
+    public SpillBuffer(int threshold)
+    {
+        this.threshold = threshold;
+        this.out = this.memory;
+    }
+
+    public void write(int b)
+            throws IOException
+    {
+        this.spillIfNeeded(1);
+        this.out.write(b);
+        this.size++;
+    }
+
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        this.spillIfNeeded(len);
+        this.out.write(b, off, len);
+        this.size += len;
+    }
+
+    public void flush()
+            throws IOException
+    {
+        this.out.flush();
+    }
+
+    public void close()
+            throws IOException
+    {
+        this.out.close();
+    }
+
+    /**
+     * Get the number of bytes which have been written to the buffer
+     *
+     * @return
+     */
+    public long size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Has the buffer moved its contents out to a temporary file?
+     *
+     * @return
+     */
+    public boolean isSpilled()
+    {
+        return this.file != null;
+    }
+
+    /**
+     * Get an input stream over the contents of the buffer.  The buffer should be closed first.
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream()
+            throws IOException
+    {
+        if (this.file != null)
+        {
+            return new BufferedInputStream(new FileInputStream(this.file), BUFFER);
+        }
+        return new ByteArrayInputStream(this.memory.toByteArray());
+    }
+
+    /**
+     * Copy the contents of the buffer to the given output stream.  The buffer should be closed first.
+     *
+     * @param os    OutputStream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream os)
+            throws IOException
+    {
+        if (this.file == null)
+        {
+            this.memory.writeTo(os);
+            return;
+        }
+
+        InputStream is = this.getInputStream();
+        try
+        {
+            int count;
+            byte data[] = new byte[BUFFER];
+            while ((count = is.read(data, 0, BUFFER)) != -1)
+            {
+                os.write(data, 0, count);
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Discard the contents of the buffer, removing any temporary file
+     */
+    public void delete()
+    {
+        try
+        {
+            this.out.close();
+        }
+        catch (IOException e)
+        {
+            // we are throwing the data away anyway
+        }
+        if (this.file != null)
+        {
+            this.file.delete();
+            this.file = null;
+        }
+        this.memory = new ByteArrayOutputStream();
+    }
+
+    private void spillIfNeeded(int len)
+            throws IOException
+    {
+        if (this.file != null || this.size + len <= this.threshold)
+        {
+            return;
+        }
+
+        this.file = File.createTempFile("bagit", ".spill");
+        this.out = new BufferedOutputStream(new FileOutputStream(this.file), BUFFER);
+        this.memory.writeTo(this.out);
+        this.memory = null;
+    }
+}
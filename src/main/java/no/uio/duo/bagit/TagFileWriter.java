@@ -0,0 +1,86 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Accumulates the lines of a tag file or manifest while a Bag is being written.
+ *
+ * Each line is a value (a format, sequence number, access condition or checksum) and a path in the Bag,
+ * separated by a tab.  Lines are encoded as UTF-8 as they are added, and held in memory until the file
+ * grows past a threshold, after which they go to a temporary file, so that Bags with very many files can be
+ * written in linear time and bounded memory.
+ */
+class TagFileWriter
+{
+    /** tag files larger than this are held in a temporary file rather than in memory */
+    static final int MEMORY_THRESHOLD = 256 * 1024;
+
+    private SpillBuffer buffer = new SpillBuffer(MEMORY_THRESHOLD);
+    private Writer writer;
+    private boolean empty = true;
+
+    public TagFileWriter()
+    {
+        try
+        {
+            this.writer = new BufferedWriter(new OutputStreamWriter(this.buffer, "UTF-8"));
+        }
+        catch (IOException e)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Add a line to the tag file
+     *
+     * @param value the value associated with the path
+     * @param path  path relative to the base directory of the Bag
+     * @throws IOException
+     */
+    public void addLine(String value, String path)
+            throws IOException
+    {
+        this.writer.write(value);
+        this.writer.write('\t');
+        this.writer.write(path);
+        this.writer.write('\n');
+        this.empty = false;
+    }
+
+    /**
+     * Have any lines been added to the tag file?
+     *
+     * @return
+     */
+    public boolean isEmpty()
+    {
+        return this.empty;
+    }
+
+    /**
+     * Finish the tag file and get an input stream over its UTF-8 encoded content
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream()
+            throws IOException
+    {
+        this.writer.close();
+        return this.buffer.getInputStream();
+    }
+
+    /**
+     * Discard the tag file, removing any temporary file
+     */
+    public void delete()
+    {
+        this.buffer.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package no.uio.duo.bagit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class representing the outcome of verifying a Bag against one of its manifests.
+ *
+ * Rather than a simple pass/fail, this records each of the ways in which the Bag
+ * may differ from what its manifest declares:
+ *
+ * <ul>
+ * <li>missing - paths listed in the manifest which are not present in the Bag</li>
+ * <li>extra - paths present in the Bag which are not listed in the manifest</li>
+ * <li>mismatched - paths whose checksum does not match the one in the manifest</li>
+ * <li>unverified - paths which could not be checked, because the manifests give no checksum for them</li>
+ * <li>errors - structural problems which prevented verification, such as a missing manifest</li>
+ * </ul>
+ *
+ * All paths are relative to the base directory of the Bag (e.g. data/final/MainArticle.pdf)
+ */
+public class VerificationResult
+{
+    private List<String> missing = new ArrayList<String>();
+    private List<String> extra = new ArrayList<String>();
+    private List<String> mismatched = new ArrayList<String>();
+    private List<String> unverified = new ArrayList<String>();
+    private List<String> errors = new ArrayList<String>();
+
+    /**
+     * Did the Bag verify successfully?
+     *
+     * @return  true if there were no missing, extra, mismatched or unverified entries and no errors, false otherwise
+     */
+    public boolean isValid()
+    {
+        return this.missing.isEmpty() && this.extra.isEmpty() && this.mismatched.isEmpty() &&
+                this.unverified.isEmpty() && this.errors.isEmpty();
+    }
+
+    /**
+     * Get the paths which are listed in the manifest but are not in the Bag
+     *
+     * @return
+     */
+    public List<String> getMissing()
+    {
+        return missing;
+    }
+
+    public void addMissing(String path)
+    {
+        this.missing.add(path);
+    }
+
+    /**
+     * Get the paths which are in the Bag but are not listed in the manifest
+     *
+     * @return
+     */
+    public List<String> getExtra()
+    {
+        return extra;
+    }
+
+    public void addExtra(String path)
+    {
+        this.extra.add(path);
+    }
+
+    /**
+     * Get the paths whose checksum does not match the value listed in the manifest
+     *
+     * @return
+     */
+    public List<String> getMismatched()
+    {
+        return mismatched;
+    }
+
+    public void addMismatched(String path)
+    {
+        this.mismatched.add(path);
+    }
+
+    /**
+     * Get the paths which could not be verified because there is no checksum for them in the manifests
+     *
+     * @return
+     */
+    public List<String> getUnverified()
+    {
+        return unverified;
+    }
+
+    public void addUnverified(String path)
+    {
+        this.unverified.add(path);
+    }
+
+    /**
+     * Get descriptions of any structural problems encountered during verification
+     *
+     * @return
+     */
+    public List<String> getErrors()
+    {
+        return errors;
+    }
+
+    public void addError(String error)
+    {
+        this.errors.add(error);
+    }
+
+    public String toString()
+    {
+        return "VerificationResult[valid=" + this.isValid() +
+                ", missing=" + this.missing +
+                ", extra=" + this.extra +
+                ", mismatched=" + this.mismatched +
+                ", unverified=" + this.unverified +
+                ", errors=" + this.errors + "]";
+    }
+}
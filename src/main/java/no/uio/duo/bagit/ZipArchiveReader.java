@@ -0,0 +1,337 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip file reader which gives access to the raw, still compressed, data of each entry.
+ *
+ * java.util.zip.ZipFile only hands out the uncompressed content of an entry.  When a Bag read from a zip file is
+ * written out again, the entries which have not changed can instead be copied across exactly as they are, along with
+ * their CRCs, without inflating and deflating them again.  This reads the central directory of the zip file to find
+ * where each entry's data starts, and then reads the data with positional reads on the file's channel, so several
+ * entries may be read at once.
+ *
+ * Zip files with the ZIP64 extensions (of 4GB or more, or with 65535 entries or more) are supported.  The central
+ * directory is read through a small buffer, so only the details of each entry are held in memory.
+ */
+class ZipArchiveReader
+{
+    private static final long LOCSIG = 0x04034b50L;
+    private static final long CENSIG = 0x02014b50L;
+    private static final long ENDSIG = 0x06054b50L;
+    private static final long ZIP64_ENDSIG = 0x06064b50L;
+    private static final long ZIP64_LOCSIG = 0x07064b50L;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES = 0xFFFF;
+
+    private static final int FLAG_ENCRYPTED = 0x0001;
+
+    /** the end of central directory record is 22 bytes, followed by a comment of up to 65535 bytes */
+    private static final int END_LENGTH = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    /** the ZIP64 end of central directory locator is 20 bytes, just before the end of central directory record */
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+
+    /**
+     * The details of an entry, from the central directory
+     */
+    static class Entry
+    {
+        String name;
+        int flags;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Open the given zip file and read its central directory
+     *
+     * @param zip
+     * @throws IOException
+     */
+    public ZipArchiveReader(File zip)
+            throws IOException
+    {
+        this.file = new RandomAccessFile(zip, "r");
+        this.channel = this.file.getChannel();
+        try
+        {
+            this.readCentralDirectory();
+        }
+        catch (IOException e)
+        {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the entry with the given name
+     *
+     * @param name  the full path of the entry inside the zip file
+     * @return  the entry, or null if there is no such entry
+     */
+    public Entry getEntry(String name)
+    {
+        return this.entries.get(name);
+    }
+
+    /**
+     * Get an input stream over the raw data of the given entry, exactly as it is stored in the zip file
+     *
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    public InputStream getRawInputStream(Entry entry)
+            throws IOException
+    {
+        if ((entry.flags & FLAG_ENCRYPTED) != 0)
+        {
+            throw new ZipException("Entry " + entry.name + " is encrypted");
+        }
+
+        ByteBuffer header = this.read(entry.offset, 30);
+        if ((header.getInt(0) & 0xFFFFFFFFL) != LOCSIG)
+        {
+            throw new ZipException("No local header for entry " + entry.name);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return new RegionInputStream(entry.offset + 30 + nameLength + extraLength, entry.compressedSize);
+    }
+
+    /**
+     * Close the zip file
+     */
+    public void close()
+    {
+        try
+        {
+            this.file.close();
+        }
+        catch (IOException e)
+        {
+            // we only read from the file
+        }
+    }
+
+    private void readCentralDirectory()
+            throws IOException
+    {
+        long length = this.channel.size();
+        int tail = (int) Math.min(length, END_LENGTH + MAX_COMMENT);
+        ByteBuffer buffer = this.read(length - tail, tail);
+
+        int end = -1;
+        for (int i = tail - END_LENGTH; i >= 0; i--)
+        {
+            if ((buffer.getInt(i) & 0xFFFFFFFFL) == ENDSIG)
+            {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1)
+        {
+            throw new ZipException("Not a zip file: no end of central directory record");
+        }
+
+        long count = buffer.getShort(end + 10) & 0xFFFF;
+        long size = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+        long start = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+
+        // a ZIP64 zip file gives the real values in the ZIP64 end of central directory record, which the locator
+        // just before the end of central directory record points to
+        long endPosition = length - tail + end;
+        if ((count == ZIP64_ENTRIES || size == ZIP64_LIMIT || start == ZIP64_LIMIT) && endPosition >= ZIP64_LOCATOR_LENGTH)
+        {
+            ByteBuffer locator = this.read(endPosition - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH);
+            if ((locator.getInt(0) & 0xFFFFFFFFL) == ZIP64_LOCSIG)
+            {
+                ByteBuffer record = this.read(locator.getLong(8), 56);
+                if ((record.getInt(0) & 0xFFFFFFFFL) != ZIP64_ENDSIG)
+                {
+                    throw new ZipException("Malformed zip file: no ZIP64 end of central directory record");
+                }
+                count = record.getLong(32);
+                size = record.getLong(40);
+                start = record.getLong(48);
+            }
+        }
+
+        InputStream directory = new BufferedInputStream(new RegionInputStream(start, size), 64 * 1024);
+        ByteBuffer header = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < count; i++)
+        {
+            this.readFully(directory, header.array(), 46);
+            if ((header.getInt(0) & 0xFFFFFFFFL) != CENSIG)
+            {
+                throw new ZipException("Malformed central directory at entry " + i);
+            }
+
+            Entry entry = new Entry();
+            entry.flags = header.getShort(8) & 0xFFFF;
+            entry.method = header.getShort(10) & 0xFFFF;
+            entry.crc = header.getInt(16) & 0xFFFFFFFFL;
+            entry.compressedSize = header.getInt(20) & 0xFFFFFFFFL;
+            entry.size = header.getInt(24) & 0xFFFFFFFFL;
+            int nameLength = header.getShort(28) & 0xFFFF;
+            int extraLength = header.getShort(30) & 0xFFFF;
+            int commentLength = header.getShort(32) & 0xFFFF;
+            entry.offset = header.getInt(42) & 0xFFFFFFFFL;
+
+            byte[] name = new byte[nameLength];
+            this.readFully(directory, name, nameLength);
+            entry.name = new String(name, "UTF-8");
+
+            byte[] extra = new byte[extraLength];
+            this.readFully(directory, extra, extraLength);
+            this.applyZip64Extra(entry, ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN));
+
+            this.readFully(directory, new byte[commentLength], commentLength);
+
+            if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+            {
+                throw new ZipException("Unsupported compression method " + entry.method + " for entry " + entry.name);
+            }
+
+            this.entries.put(entry.name, entry);
+        }
+    }
+
+    /**
+     * Take the sizes and offset of the entry which did not fit in its central directory header from its ZIP64 extra
+     * field.  Only the values which did not fit are in the field, in the order size, compressed size, offset.
+     *
+     * @param entry
+     * @param extra the extra fields of the entry's central directory header
+     * @throws ZipException
+     */
+    private void applyZip64Extra(Entry entry, ByteBuffer extra)
+            throws ZipException
+    {
+        while (extra.remaining() >= 4)
+        {
+            int id = extra.getShort() & 0xFFFF;
+            int length = extra.getShort() & 0xFFFF;
+            if (length > extra.remaining())
+            {
+                throw new ZipException("Malformed extra field for entry " + entry.name);
+            }
+            if (id != ZIP64_EXTRA)
+            {
+                extra.position(extra.position() + length);
+                continue;
+            }
+
+            int end = extra.position() + length;
+            if (entry.size == ZIP64_LIMIT && extra.position() + 8 <= end)
+            {
+                entry.size = extra.getLong();
+            }
+            if (entry.compressedSize == ZIP64_LIMIT && extra.position() + 8 <= end)
+            {
+                entry.compressedSize = extra.getLong();
+            }
+            if (entry.offset == ZIP64_LIMIT && extra.position() + 8 <= end)
+            {
+                entry.offset = extra.getLong();
+            }
+            extra.position(end);
+        }
+    }
+
+    private void readFully(InputStream is, byte[] b, int length)
+            throws IOException
+    {
+        int read = 0;
+        while (read < length)
+        {
+            int count = is.read(b, read, length - read);
+            if (count == -1)
+            {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            read += count;
+        }
+    }
+
+    private ByteBuffer read(long position, int length)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            int count = this.channel.read(buffer, position + buffer.position());
+            if (count == -1)
+            {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a region of the zip file with positional reads, so that it does not disturb other readers
+     */
+    private class RegionInputStream extends InputStream
+    {
+        private long position;
+        private long remaining;
+
+        RegionInputStream(long position, long length)
+        {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        public int read()
+                throws IOException
+        {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (this.remaining == 0)
+            {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, this.remaining));
+            int count = channel.read(buffer, this.position);
+            if (count == -1)
+            {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            this.position += count;
+            this.remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package no.uio.duo.bagit;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip file writer used to serialise Bags.
+ *
+ * Unlike java.util.zip.ZipOutputStream, this can write entries which have already been compressed
+ * elsewhere (see {@link PreparedEntry}), which is what allows the entries of a Bag to be compressed in
+ * parallel.  It can also stream entries in the same way as ZipOutputStream, with
+ * {@link #putNextEntry(String, int, int)}, {@link #write(byte[], int, int)} and {@link #closeEntry()}.
+ * Streamed entries must be DEFLATED, and are followed by a data descriptor giving their sizes and CRC.
+ *
+ * Zip files of 4GB or more, entries of 4GB or more and zip files of 65535 entries or more are written with the ZIP64
+ * extensions, which are only used where they are needed, so that small Bags can still be read by tools which do
+ * not support them.  The sizes of a streamed entry are only given in its data descriptor, which uses ZIP64 exactly
+ * when the sizes need it, as java.util.zip.ZipInputStream expects.
+ */
+class ZipArchiveWriter extends OutputStream
+{
+    private static final int BUFFER = 8192;
+
+    private static final long LOCSIG = 0x04034b50L;
+    private static final long EXTSIG = 0x08074b50L;
+    private static final long CENSIG = 0x02014b50L;
+    private static final long ENDSIG = 0x06054b50L;
+    private static final long ZIP64_ENDSIG = 0x06064b50L;
+    private static final long ZIP64_LOCSIG = 0x07064b50L;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    /** sizes and offsets of this value or more are given in a ZIP64 extra field instead */
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    /** zip files with this number of entries or more need a ZIP64 end of central directory record */
+    static final int ZIP64_ENTRIES = 0xFFFF;
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * The details of an entry which has been written, as required for the central directory
+     */
+    private static class EntryRecord
+    {
+        byte[] name;
+        int flags;
+        int method;
+        long time;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+        boolean zip64;
+    }
+
+    private OutputStream out;
+    private long written = 0;
+
+    private List<EntryRecord> entries = new ArrayList<EntryRecord>();
+    private EntryRecord current = null;
+    private long dataStart;
+    private boolean finished = false;
+    private int bufferSize = Digester.BUFFER;
+
+    private CRC32 crc = new CRC32();
+    private Deflater deflater = DeflaterPool.acquire(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed = Digester.acquireBuffer();
+    private byte[] single = new byte[1];
+
+    /**
+     * Create a writer over the given output stream
+     *
+     * @param out
+     */
+    public ZipArchiveWriter(OutputStream out)
+    {
+        this.out = new BufferedOutputStream(out, BUFFER);
+    }
+
+    /**
+     * Set the size of the buffer used to copy the data of prepared entries into the zip file
+     *
+     * @param bufferSize
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Begin a new streamed entry, closing the current one if necessary.  Data for the entry is then supplied
+     * with the write methods.
+     *
+     * @param name  path of the entry within the zip file
+     * @param method    ZipEntry.DEFLATED; STORED entries must be prepared with {@link PreparedEntry} instead
+     * @param level deflate level
+     * @throws IOException
+     */
+    public void putNextEntry(String name, int method, int level)
+            throws IOException
+    {
+        this.closeEntry();
+
+        if (method == ZipEntry.STORED)
+        {
+            throw new ZipException("Entry " + name + " cannot be streamed uncompressed to an OutputStream; prepare it first");
+        }
+
+        EntryRecord record = new EntryRecord();
+        record.name = name.getBytes("UTF-8");
+        record.method = method;
+        record.flags = FLAG_UTF8 | FLAG_DESCRIPTOR;
+        record.time = dosTime(System.currentTimeMillis());
+        record.offset = this.written;
+
+        this.writeLocalHeader(record);
+
+        this.current = record;
+        this.dataStart = this.written;
+        this.crc.reset();
+        this.deflater.setLevel(level);
+    }
+
+    public void write(int b)
+            throws IOException
+    {
+        this.single[0] = (byte) b;
+        this.write(this.single, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (this.current == null)
+        {
+            throw new ZipException("No current entry to write to");
+        }
+
+        this.crc.update(b, off, len);
+        this.current.size += len;
+
+        this.deflater.setInput(b, off, len);
+        while (!this.deflater.needsInput())
+        {
+            this.deflate();
+        }
+    }
+
+    /**
+     * Complete the current streamed entry, if there is one
+     *
+     * @throws IOException
+     */
+    public void closeEntry()
+            throws IOException
+    {
+        if (this.current == null)
+        {
+            return;
+        }
+
+        EntryRecord record = this.current;
+        this.current = null;
+
+        this.deflater.finish();
+        while (!this.deflater.finished())
+        {
+            this.deflate();
+        }
+        this.deflater.reset();
+
+        record.crc = this.crc.getValue();
+        record.compressedSize = this.written - this.dataStart;
+        record.zip64 = record.size >= ZIP64_LIMIT || record.compressedSize >= ZIP64_LIMIT;
+
+        ByteBuffer descriptor = this.buffer(record.zip64 ? 24 : 16);
+        descriptor.putInt((int) EXTSIG);
+        descriptor.putInt((int) record.crc);
+        if (record.zip64)
+        {
+            descriptor.putLong(record.compressedSize);
+            descriptor.putLong(record.size);
+        }
+        else
+        {
+            descriptor.putInt((int) record.compressedSize);
+            descriptor.putInt((int) record.size);
+        }
+        this.writeBuffer(descriptor);
+
+        this.entries.add(record);
+    }
+
+    /**
+     * Write an entry whose data has already been compressed and digested
+     *
+     * @param prepared  the prepared entry
+     * @throws IOException
+     */
+    public void writePrepared(PreparedEntry prepared)
+            throws IOException
+    {
+        this.closeEntry();
+
+        EntryRecord record = new EntryRecord();
+        record.name = prepared.name.getBytes("UTF-8");
+        record.method = prepared.method;
+        record.flags = FLAG_UTF8;
+        record.time = dosTime(System.currentTimeMillis());
+        record.offset = this.written;
+        record.crc = prepared.crc;
+        record.compressedSize = prepared.getCompressedSize();
+        record.size = prepared.size;
+        record.zip64 = record.size >= ZIP64_LIMIT || record.compressedSize >= ZIP64_LIMIT;
+
+        this.writeLocalHeader(record);
+
+        InputStream is = prepared.getInputStream();
+        byte[] data = Digester.acquireBuffer(this.bufferSize);
+        try
+        {
+            // copy exactly as much as the header says, in case a file has changed since it was prepared
+            long remaining = record.compressedSize;
+            while (remaining > 0)
+            {
+                int count = is.read(data, 0, (int) Math.min(data.length, remaining));
+                if (count == -1)
+                {
+                    throw new ZipException("Entry " + prepared.name + " is shorter than when it was prepared");
+                }
+                this.writeBytes(data, 0, count);
+                remaining -= count;
+            }
+            if (is.read() != -1)
+            {
+                throw new ZipException("Entry " + prepared.name + " is longer than when it was prepared");
+            }
+        }
+        finally
+        {
+            Digester.releaseBuffer(data);
+            is.close();
+        }
+
+        this.entries.add(record);
+    }
+
+    /**
+     * Complete the zip file by writing the central directory, and close the underlying output
+     *
+     * @throws IOException
+     */
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            this.finish();
+        }
+        finally
+        {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Complete the zip file by writing the central directory, and flush the underlying output without closing it
+     *
+     * @throws IOException
+     */
+    public void finish()
+            throws IOException
+    {
+        if (this.finished)
+        {
+            return;
+        }
+
+        try
+        {
+            this.closeEntry();
+
+            long start = this.written;
+            for (EntryRecord record : this.entries)
+            {
+                this.writeCentralHeader(record);
+            }
+            long length = this.written - start;
+
+            int count = this.entries.size();
+            boolean zip64 = count >= ZIP64_ENTRIES || start >= ZIP64_LIMIT || length >= ZIP64_LIMIT;
+            if (zip64)
+            {
+                long zip64End = this.written;
+                ByteBuffer record = this.buffer(56);
+                record.putInt((int) ZIP64_ENDSIG);
+                record.putLong(44);
+                record.putShort((short) VERSION_ZIP64);
+                record.putShort((short) VERSION_ZIP64);
+                record.putInt(0);
+                record.putInt(0);
+                record.putLong(count);
+                record.putLong(count);
+                record.putLong(length);
+                record.putLong(start);
+                this.writeBuffer(record);
+
+                ByteBuffer locator = this.buffer(20);
+                locator.putInt((int) ZIP64_LOCSIG);
+                locator.putInt(0);
+                locator.putLong(zip64End);
+                locator.putInt(1);
+                this.writeBuffer(locator);
+            }
+
+            ByteBuffer end = this.buffer(22);
+            end.putInt((int) ENDSIG);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) Math.min(count, ZIP64_ENTRIES));
+            end.putShort((short) Math.min(count, ZIP64_ENTRIES));
+            end.putInt((int) Math.min(length, ZIP64_LIMIT));
+            end.putInt((int) Math.min(start, ZIP64_LIMIT));
+            end.putShort((short) 0);
+            this.writeBuffer(end);
+
+            this.out.flush();
+        }
+        finally
+        {
+            this.finished = true;
+            this.release();
+        }
+    }
+
+    /**
+     * Give the Deflater and buffer this writer took from the pools back, without completing the zip file.  This is
+     * done by {@link #finish()}, so only needs to be called when a zip file is abandoned part way through; the
+     * Deflater holds native memory until it is released.  The writer cannot be used afterwards.
+     */
+    public void release()
+    {
+        if (this.deflater != null)
+        {
+            DeflaterPool.release(this.deflater);
+            Digester.releaseBuffer(this.compressed);
+            this.deflater = null;
+            this.compressed = null;
+        }
+    }
+
+    /**
+     * Write the local header of the entry.  A ZIP64 local header, for a prepared entry of 4GB or more, gives the
+     * sizes in an extra field.
+     *
+     * @param record
+     * @throws IOException
+     */
+    private void writeLocalHeader(EntryRecord record)
+            throws IOException
+    {
+        ByteBuffer header = this.buffer(30);
+        header.putInt((int) LOCSIG);
+        header.putShort((short) (record.zip64 ? VERSION_ZIP64 : VERSION));
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putInt((int) record.time);
+        header.putInt((int) record.crc);
+        header.putInt((int) (record.zip64 ? ZIP64_LIMIT : record.compressedSize));
+        header.putInt((int) (record.zip64 ? ZIP64_LIMIT : record.size));
+        header.putShort((short) record.name.length);
+        header.putShort((short) (record.zip64 ? 20 : 0));
+        this.writeBuffer(header);
+        this.writeBytes(record.name, 0, record.name.length);
+
+        if (record.zip64)
+        {
+            ByteBuffer extra = this.buffer(20);
+            extra.putShort((short) ZIP64_EXTRA);
+            extra.putShort((short) 16);
+            extra.putLong(record.size);
+            extra.putLong(record.compressedSize);
+            this.writeBuffer(extra);
+        }
+    }
+
+    /**
+     * Write the central directory header of the entry.  Any of its sizes and offset which do not fit in the header
+     * are given in a ZIP64 extra field, in that order.
+     *
+     * @param record
+     * @throws IOException
+     */
+    private void writeCentralHeader(EntryRecord record)
+            throws IOException
+    {
+        boolean bigSize = record.size >= ZIP64_LIMIT;
+        boolean bigCompressedSize = record.compressedSize >= ZIP64_LIMIT;
+        boolean bigOffset = record.offset >= ZIP64_LIMIT;
+        int extraLength = (bigSize ? 8 : 0) + (bigCompressedSize ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = record.zip64 || extraLength > 0;
+
+        ByteBuffer header = this.buffer(46);
+        header.putInt((int) CENSIG);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putInt((int) record.time);
+        header.putInt((int) record.crc);
+        header.putInt((int) (bigCompressedSize ? ZIP64_LIMIT : record.compressedSize));
+        header.putInt((int) (bigSize ? ZIP64_LIMIT : record.size));
+        header.putShort((short) record.name.length);
+        header.putShort((short) (extraLength > 0 ? extraLength + 4 : 0));
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) (bigOffset ? ZIP64_LIMIT : record.offset));
+        this.writeBuffer(header);
+        this.writeBytes(record.name, 0, record.name.length);
+
+        if (extraLength > 0)
+        {
+            ByteBuffer extra = this.buffer(extraLength + 4);
+            extra.putShort((short) ZIP64_EXTRA);
+            extra.putShort((short) extraLength);
+            if (bigSize)
+            {
+                extra.putLong(record.size);
+            }
+            if (bigCompressedSize)
+            {
+                extra.putLong(record.compressedSize);
+            }
+            if (bigOffset)
+            {
+                extra.putLong(record.offset);
+            }
+            this.writeBuffer(extra);
+        }
+    }
+
+    private void deflate()
+            throws IOException
+    {
+        int len = this.deflater.deflate(this.compressed, 0, this.compressed.length);
+        if (len > 0)
+        {
+            this.writeBytes(this.compressed, 0, len);
+        }
+    }
+
+    private ByteBuffer buffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeBuffer(ByteBuffer buffer)
+            throws IOException
+    {
+        this.writeBytes(buffer.array(), 0, buffer.position());
+    }
+
+    private void writeBytes(byte[] b, int off, int len)
+            throws IOException
+    {
+        this.out.write(b, off, len);
+        this.written += len;
+    }
+
+    /**
+     * Convert a Java timestamp into the MS-DOS date/time format used in zip headers
+     *
+     * @param millis
+     * @return
+     */
+    private static long dosTime(long millis)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(millis);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) | (cal.get(Calendar.DAY_OF_MONTH) << 16) |
+                (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+    }
+}
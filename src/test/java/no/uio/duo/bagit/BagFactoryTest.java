@@ -0,0 +1,121 @@
+package no.uio.duo.bagit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class BagFactoryTest
+{
+    private static String TEST_FILES = System.getProperty("user.dir") + "/src/test/resources/testbags/testfiles/";
+
+    @Test
+    public void testWriteAll() throws Exception
+    {
+        BagFactory factory = new BagFactory(4);
+        factory.setAlgorithms("md5", "sha256");
+        factory.setBagAlgorithms("sha1");
+
+        try
+        {
+            List<BagIt> bags = new ArrayList<BagIt>();
+            for (int i = 0; i < 12; i++)
+            {
+                BagIt bag = factory.newBag(tempBag("factory" + i));
+                bag.addFinalFile(new File(TEST_FILES + "MainArticle.pdf"), 1);
+                bag.addSupportingFile(new File(TEST_FILES + "MainArticle.odt"), 1, "open");
+                bag.addMetadataFile(new File(TEST_FILES + "metadata.xml"));
+                bag.addLicenceFile(new File(TEST_FILES + "licence.txt"));
+                bags.add(bag);
+            }
+
+            // one bag which cannot be written should not stop the others
+            BagIt broken = factory.newBag(tempBag("broken"));
+            broken.addFinalFile(new File(TEST_FILES + "doesnotexist.pdf"), 1);
+            bags.add(5, broken);
+
+            List<BagResult> results = factory.writeAll(bags);
+            assertEquals(13, results.size());
+            for (int i = 0; i < results.size(); i++)
+            {
+                BagResult result = results.get(i);
+                assertSame(bags.get(i), result.getBag());
+                if (i == 5)
+                {
+                    assertFalse(result.isSuccess());
+                    assertNotNull(result.getError());
+                    assertTrue(result.getChecksums().isEmpty());
+                    continue;
+                }
+
+                assertTrue(result.isSuccess());
+                assertEquals(Digester.checksum(new FileInputStream(result.getFile()), "md5"), result.getChecksums().get("md5"));
+                assertEquals(Digester.checksum(new FileInputStream(result.getFile()), "sha1"), result.getChecksums().get("sha1"));
+
+                BagIt read = new BagIt(result.getFile());
+                assertTrue(read.verifyPayload().isValid());
+                assertEquals(2, read.getAlgorithms().size());
+                assertEquals(1, read.getSequencedFinals().size());
+            }
+        }
+        finally
+        {
+            factory.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubmit() throws Exception
+    {
+        BagFactory factory = new BagFactory(2);
+        try
+        {
+            BagIt bag = factory.newBag(tempBag("submit"));
+            bag.addFinalFile(new File(TEST_FILES + "AppendixA.pdf"), 1);
+            Future<BagResult> future = factory.submit(bag);
+
+            BagResult result = future.get();
+            assertTrue(result.isSuccess());
+            assertTrue(result.getFile().exists());
+            assertEquals(bag.getMD5(), result.getChecksums().get("md5"));
+        }
+        finally
+        {
+            factory.shutdown();
+        }
+    }
+
+    @Test
+    public void testNewBagExisting() throws Exception
+    {
+        BagFactory factory = new BagFactory(1);
+        File existing = File.createTempFile("existing", ".zip");
+        existing.deleteOnExit();
+        try
+        {
+            factory.newBag(existing);
+            fail("a new Bag should not be created over an existing file");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        finally
+        {
+            factory.shutdown();
+        }
+    }
+
+    private File tempBag(String name) throws Exception
+    {
+        File out = File.createTempFile(name, ".zip");
+        out.delete();
+        out.deleteOnExit();
+        return out;
+    }
+}
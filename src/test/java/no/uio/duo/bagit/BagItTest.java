@@ -31,14 +31,36 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 import static org.junit.Assert.*;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.LineIterator;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class BagItTest {
 
@@ -219,4 +241,1311 @@ public class BagItTest {
         }
 
     }*/
+
+    private static String TEST_BAGS = System.getProperty("user.dir") + "/src/test/resources/testbags/";
+
+    /*
+        copy the full bag into a new zip, replacing the content of the entries in "replace", leaving
+        out the entries in "omit" and adding the entries in "add"
+     */
+    private File tamperedBag(Map<String, String> replace, Set<String> omit, Map<String, String> add) throws Exception {
+
+        File out = File.createTempFile("tampered", ".zip");
+        out.deleteOnExit();
+
+        ZipFile zip = new ZipFile(TEST_BAGS + "fullbag.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(out));
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (omit.contains(entry.getName())) {
+                    continue;
+                }
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                if (replace.containsKey(entry.getName())) {
+                    zos.write(replace.get(entry.getName()).getBytes("UTF-8"));
+                }
+                else {
+                    IOUtils.copy(zip.getInputStream(entry), zos);
+                }
+                zos.closeEntry();
+            }
+            for (String name : add.keySet()) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(add.get(name).getBytes("UTF-8"));
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+            zip.close();
+        }
+        return out;
+    }
+
+    @Test
+    public void testVerifyPayload() throws Exception {
+
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"));
+
+        VerificationResult result = bag.verifyPayload(4);
+        assertTrue(result.toString(), result.isValid());
+        assertTrue(bag.verifyPayloadManifest());
+    }
+
+    @Test
+    public void testVerifyPayloadDifferences() throws Exception {
+
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("fullbag/data/final/AppendixA.pdf", "not the original pdf");
+        Set<String> omit = new HashSet<String>();
+        omit.add("fullbag/data/supporting/UserData2.odt");
+        Map<String, String> add = new HashMap<String, String>();
+        add.put("fullbag/data/supporting/Unlisted.txt", "not in the manifest");
+
+        BagIt bag = new BagIt(tamperedBag(replace, omit, add));
+
+        VerificationResult result = bag.verifyPayload(2);
+        assertFalse(result.isValid());
+        assertEquals(Arrays.asList("data/final/AppendixA.pdf"), result.getMismatched());
+        assertEquals(Arrays.asList("data/supporting/UserData2.odt"), result.getMissing());
+        assertEquals(Arrays.asList("data/supporting/Unlisted.txt"), result.getExtra());
+        assertFalse(bag.verifyPayloadManifest());
+    }
+
+    @Test
+    public void testVerifyPayloadPartlyListed() throws Exception {
+
+        // a second manifest which leaves one file out, and an entry outside the base directory with a short name
+        StringBuilder sha1 = new StringBuilder();
+        ZipFile zip = new ZipFile(TEST_BAGS + "fullbag.zip");
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName().substring("fullbag/".length());
+                if (path.startsWith("data/") && !path.equals("data/final/AppendixA.pdf")) {
+                    sha1.append(Digester.checksum(zip.getInputStream(entry), "sha1")).append("  ").append(path).append("\n");
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        Map<String, String> add = new HashMap<String, String>();
+        add.put("fullbag/manifest-sha1.txt", sha1.toString());
+        add.put("x", "outside the bag");
+
+        BagIt bag = new BagIt(tamperedBag(new HashMap<String, String>(), new HashSet<String>(), add));
+        VerificationResult result = bag.verifyPayload(2);
+
+        // the file is reported once, as not matching the manifest it is missing from
+        assertEquals(Arrays.asList("data/final/AppendixA.pdf"), result.getMismatched());
+        assertTrue(result.getMissing().isEmpty());
+        assertTrue(result.getExtra().isEmpty());
+    }
+
+    @Test
+    public void testVerifyPayloadNoManifest() throws Exception {
+
+        Set<String> omit = new HashSet<String>();
+        omit.add("fullbag/manifest-md5.txt");
+
+        BagIt bag = new BagIt(tamperedBag(new HashMap<String, String>(), omit, new HashMap<String, String>()));
+
+        VerificationResult result = bag.verifyPayload();
+        assertFalse(result.isValid());
+        assertEquals(11, result.getExtra().size());
+    }
+
+    @Test
+    public void testVerifyTags() throws Exception {
+
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"));
+
+        VerificationResult result = bag.verifyTags();
+        assertTrue(result.toString(), result.isValid());
+        assertTrue(bag.verifyTagManifest());
+        assertTrue(bag.verify(Executors.newSingleThreadExecutor()).isValid());
+    }
+
+    @Test
+    public void testVerifyTagsDifferences() throws Exception {
+
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("fullbag/tagfiles/formats.txt", "text/plain\tdata/final/MainArticle.pdf\n");
+        replace.put("fullbag/data/final/AppendixA.pdf", "not the original pdf");
+        Map<String, String> add = new HashMap<String, String>();
+        add.put("fullbag/tagfiles/unlisted.txt", "open\tdata/final/MainArticle.pdf\n");
+
+        BagIt bag = new BagIt(tamperedBag(replace, new HashSet<String>(), add));
+
+        VerificationResult result = bag.verifyTags();
+        assertFalse(result.isValid());
+        assertEquals(Arrays.asList("tagfiles/formats.txt"), result.getMismatched());
+        assertEquals(Arrays.asList("tagfiles/unlisted.txt"), result.getExtra());
+        assertFalse(bag.verifyTagManifest());
+
+        // the tag failure is reported without going on to the payload
+        VerificationResult full = bag.verify(Executors.newSingleThreadExecutor());
+        assertEquals(Arrays.asList("tagfiles/formats.txt"), full.getMismatched());
+    }
+
+    @Test
+    public void testVerifyTagsBagItDeclaration() throws Exception {
+
+        Set<String> omit = new HashSet<String>();
+        omit.add("fullbag/bagit.txt");
+        BagIt missing = new BagIt(tamperedBag(new HashMap<String, String>(), omit, new HashMap<String, String>()));
+        assertEquals(1, missing.verifyTags().getErrors().size());
+
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("fullbag/bagit.txt", "BagIt-Version: latest\nTag-File-Character-Encoding: UTF-8");
+        BagIt malformed = new BagIt(tamperedBag(replace, new HashSet<String>(), new HashMap<String, String>()));
+        assertEquals(1, malformed.verifyTags().getErrors().size());
+        assertFalse(malformed.verifyTagManifest());
+    }
+
+    @Test
+    public void testVerifyEmptyBag() throws Exception {
+
+        File out = File.createTempFile("emptybag", ".zip");
+        out.delete();
+        out.deleteOnExit();
+
+        BagIt bag = new BagIt(out);
+        bag.writeToFile();
+
+        assertTrue(bag.verifyTagManifest());
+        assertTrue(bag.verifyPayloadManifest());
+    }
+
+    /*
+        make a bag in memory from the test files, which will be written to the given file
+     */
+    private BagIt makeBag(File out) throws Exception {
+
+        String fileBase = TEST_BAGS + "testfiles/";
+
+        BagIt bi = new BagIt(out);
+
+        bi.addFinalFile(new File(fileBase + "MainArticle.pdf"), "application/pdf", 1);
+        bi.addFinalFile(new File(fileBase + "AppendixA.pdf"), "application/pdf" , 2);
+        bi.addFinalFile(new File(fileBase + "AppendixB.pdf"), "application/pdf", 3);
+
+        bi.addSupportingFile(new File(fileBase + "MainArticle.odt"), "application/vnd.oasis.opendocument.text", 1, "open");
+        bi.addSupportingFile(new File(fileBase + "AppendixA.odt"), "application/vnd.oasis.opendocument.text", 2, "open");
+        bi.addSupportingFile(new File(fileBase + "bagitspec.pdf"), "application/pdf", 3, "open");
+
+        bi.addSupportingFile(new File(fileBase + "UserData1.odt"), "application/vnd.oasis.opendocument.text", 1, "closed");
+        bi.addSupportingFile(new File(fileBase + "UserData2.odt"), "application/vnd.oasis.opendocument.text", 2, "closed");
+
+        bi.addMetadataFile(new File(fileBase + "metadata.xml"));
+        bi.addLicenceFile(new File(fileBase + "licence.txt"));
+
+        return bi;
+    }
+
+    private File tempBag(String name) throws Exception {
+        File out = File.createTempFile(name, ".zip");
+        out.delete();
+        out.deleteOnExit();
+        return out;
+    }
+
+    /*
+        read the name and content of every entry in the zip, in order, using the streaming reader
+     */
+    private Map<String, String> readEntries(File file) throws Exception {
+        return readEntries(new FileInputStream(file));
+    }
+
+    private Map<String, String> readEntries(InputStream in) throws Exception {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(in);
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                String name = entry.getName().substring(entry.getName().indexOf("/") + 1);
+                entries.put(name, Digester.checksum(new CloseShieldInputStream(zis), "MD5"));
+            }
+        } finally {
+            zis.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void testWriteParallel() throws Exception {
+
+        File sequential = tempBag("sequential");
+        makeBag(sequential).writeToFile();
+
+        File parallel = tempBag("parallel");
+        makeBag(parallel).writeToFile(4);
+
+        Map<String, String> sequentialEntries = readEntries(sequential);
+        Map<String, String> parallelEntries = readEntries(parallel);
+        assertEquals(17, parallelEntries.size());
+        assertEquals(new ArrayList<String>(sequentialEntries.keySet()), new ArrayList<String>(parallelEntries.keySet()));
+        assertEquals(sequentialEntries, parallelEntries);
+
+        BagIt bag = new BagIt(parallel);
+        assertTrue(bag.verifyTagManifest());
+        assertTrue(bag.verifyPayloadManifest());
+        assertEquals(3, bag.getSequencedFinals().size());
+        assertEquals("closed", bag.getSupportingAccess("UserData2.odt"));
+    }
+
+    @Test
+    public void testWriteParallelWindow() throws Exception {
+        // with one thread, only two files are prepared ahead of the one being written, and each of the rest is only
+        // submitted once an earlier one has gone into the zip
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final List<Integer> submitted = Collections.synchronizedList(new ArrayList<Integer>());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+            public void execute(Runnable task) {
+                submitted.add(baos.size());
+                super.execute(task);
+            }
+        };
+        try {
+            makeBag(tempBag("window")).writeTo(baos, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(10, submitted.size());
+        assertEquals(Arrays.asList(0, 0), submitted.subList(0, 2));
+        for (int i = 2; i < submitted.size(); i++) {
+            assertTrue(submitted.get(i) > submitted.get(i - 1));
+        }
+
+        File sequential = tempBag("sequential");
+        makeBag(sequential).writeToFile();
+        assertEquals(readEntries(sequential), readEntries(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    @Test
+    public void testMultipleAlgorithms() throws Exception {
+
+        File sequential = tempBag("sequential");
+        BagIt bi = makeBag(sequential);
+        bi.setAlgorithms("md5", "sha256", "SHA512");
+        assertEquals(Arrays.asList("md5", "sha256", "sha512"), bi.getAlgorithms());
+        bi.writeToFile();
+
+        File parallel = tempBag("parallel");
+        bi = makeBag(parallel);
+        bi.setAlgorithms("md5", "sha256", "sha512");
+        bi.writeToFile(3);
+
+        for (File file : Arrays.asList(sequential, parallel)) {
+            Map<String, String> entries = readEntries(file);
+            assertTrue(entries.containsKey("manifest-md5.txt"));
+            assertTrue(entries.containsKey("manifest-sha256.txt"));
+            assertTrue(entries.containsKey("manifest-sha512.txt"));
+            assertTrue(entries.containsKey("tagmanifest-sha256.txt"));
+            assertTrue(entries.containsKey("tagmanifest-sha512.txt"));
+
+            BagIt bag = new BagIt(file);
+            assertTrue(bag.verifyTags().isValid());
+            assertTrue(bag.verifyPayload().isValid());
+        }
+
+        // check one of the sha256 values against an independent calculation
+        ZipFile zip = new ZipFile(parallel);
+        try {
+            String prefix = parallel.getName().split("\\.")[0] + "/";
+            String expected = Digester.checksum(new FileInputStream(TEST_BAGS + "testfiles/bagitspec.pdf"), "sha256");
+            String manifest = IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "manifest-sha256.txt")), "UTF-8");
+            assertTrue(manifest.contains(expected + "\tdata/supporting/bagitspec.pdf\n"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAlgorithm() throws Exception {
+        new BagIt(tempBag("unsupported")).setAlgorithms("md5", "crc64");
+    }
+
+    @Test
+    public void testTagFileContent() throws Exception {
+
+        File out = tempBag("tagfiles");
+        BagIt bag = makeBag(out);
+
+        // a supporting file without an access condition is left out of supporting.access.txt
+        bag.addSupportingFile(new File(TEST_BAGS + "testfiles/UserData3.odt"), "application/vnd.oasis.opendocument.text", 3, null);
+        bag.writeToFile();
+
+        ZipFile zip = new ZipFile(out);
+        try {
+            String prefix = out.getName().split("\\.")[0] + "/";
+            assertEquals("1\tdata/final/MainArticle.pdf\n2\tdata/final/AppendixA.pdf\n3\tdata/final/AppendixB.pdf\n",
+                    IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "tagfiles/final.sequence.txt")), "UTF-8"));
+            assertEquals("open\tdata/supporting/MainArticle.odt\nopen\tdata/supporting/AppendixA.odt\nopen\tdata/supporting/bagitspec.pdf\n" +
+                    "closed\tdata/supporting/UserData1.odt\nclosed\tdata/supporting/UserData2.odt\n",
+                    IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "tagfiles/supporting.access.txt")), "UTF-8"));
+            String formats = IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "tagfiles/formats.txt")), "UTF-8");
+            assertTrue(formats.contains("text/xml\tdata/metadata/metadata.xml\n"));
+            assertEquals(11, formats.split("\n").length);
+            assertTrue(IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "tagfiles/supporting.sequence.txt")), "UTF-8")
+                    .endsWith("3\tdata/supporting/UserData3.odt\n"));
+            assertNull(new BagIt(out).getSupportingAccess("UserData3.odt"));
+            assertEquals("BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8",
+                    IOUtils.toString(zip.getInputStream(zip.getEntry(prefix + "bagit.txt")), "UTF-8"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testLoadBagTagFiles() throws Exception {
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"));
+
+        TreeMap<Integer, BaggedItem> finals = bag.getSequencedFinals();
+        assertEquals(3, finals.size());
+        assertEquals("MainArticle.pdf", finals.get(1).getFilename());
+        assertEquals("AppendixB.pdf", finals.get(3).getFilename());
+        assertEquals("application/pdf", finals.get(2).getFormat());
+
+        TreeMap<Integer, BaggedItem> closed = bag.getSequencedSecondaries("closed");
+        assertEquals(3, closed.size());
+        assertEquals("UserData2.odt", closed.get(2).getFilename());
+        assertEquals("application/vnd.oasis.opendocument.text", closed.get(2).getFormat());
+        assertEquals("open", bag.getSupportingAccess("AppendixA.odt"));
+    }
+
+    @Test
+    public void testLoadBagManySupportingFiles() throws Exception {
+
+        // enough entries that comparing every tag file line against every entry would be very slow
+        int count = 20000;
+        File out = File.createTempFile("many", ".zip");
+        out.deleteOnExit();
+
+        StringBuilder access = new StringBuilder();
+        StringBuilder sequence = new StringBuilder();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(out));
+        try {
+            for (int i = 0; i < count; i++) {
+                String path = "data/supporting/file" + i + ".txt";
+                zos.putNextEntry(new ZipEntry("many/" + path));
+                zos.write(Integer.toString(i).getBytes("UTF-8"));
+                zos.closeEntry();
+                access.append(i % 2 == 0 ? "open" : "closed").append("\t").append(path).append("\n");
+                sequence.append(i).append("\t").append(path).append("\n");
+            }
+            zos.putNextEntry(new ZipEntry("many/tagfiles/supporting.access.txt"));
+            zos.write(access.toString().getBytes("UTF-8"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("many/tagfiles/supporting.sequence.txt"));
+            zos.write(sequence.toString().getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        BagIt bag = new BagIt(out);
+        TreeMap<Integer, BaggedItem> open = bag.getSequencedSecondaries("open");
+        assertEquals(count / 2, open.size());
+        assertEquals("file0.txt", open.get(0).getFilename());
+        assertEquals("file19998.txt", open.get(19998).getFilename());
+        assertEquals("closed", bag.getSupportingAccess("file12345.txt"));
+    }
+
+    @Test
+    public void testLazyLoadBag() throws Exception {
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"), true);
+        assertEquals(4, bag.pendingTagFiles.size());
+
+        // the metadata and licence do not need any tag files
+        assertNotNull(bag.getMetadataFile());
+        assertNotNull(bag.getLicenceFile());
+        assertEquals(4, bag.pendingTagFiles.size());
+
+        assertEquals("closed", bag.getSupportingAccess("UserData3.odt"));
+        assertEquals(3, bag.pendingTagFiles.size());
+
+        TreeMap<Integer, BaggedItem> finals = bag.getSequencedFinals();
+        assertEquals("AppendixA.pdf", finals.get(2).getFilename());
+        assertEquals("application/pdf", finals.get(2).getFormat());
+        assertEquals(1, bag.pendingTagFiles.size());
+
+        // only the supporting sequence is left, and the final sequence is not needed for the secondaries
+        assertEquals("UserData3.odt", bag.getSequencedSecondaries("closed").get(3).getFilename());
+        assertEquals(0, bag.pendingTagFiles.size());
+        bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"), true);
+        assertEquals("application/vnd.oasis.opendocument.text", bag.getSequencedSecondaries("open").get(3).getFormat());
+        assertEquals(1, bag.pendingTagFiles.size());
+    }
+
+    @Test
+    public void testGetMetadataFields() throws Exception {
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"), true);
+        Map<String, String> fields = bag.getMetadataFields(Metadata.STUDENT_NUMBER, Metadata.TITLE, Metadata.EMBARGO_END_DATE);
+        assertEquals("123456789", fields.get(Metadata.STUDENT_NUMBER));
+        assertEquals("101 days around some of the world", fields.get(Metadata.TITLE));
+        assertFalse(fields.containsKey(Metadata.EMBARGO_END_DATE));
+        assertEquals(4, bag.pendingTagFiles.size());
+
+        BagIt empty = new BagIt(new File(TEST_BAGS + "doesnotexist.zip"));
+        assertTrue(empty.getMetadataFields(Metadata.TITLE).isEmpty());
+    }
+
+    @Test
+    public void testGetMetadata() throws Exception {
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"), true);
+        Metadata metadata = bag.getMetadata();
+        assertEquals("Thor Heyerdahl", metadata.getField(Metadata.NAME).get(0));
+        assertEquals("AST3220", metadata.getSubjects().get(0)[0]);
+        assertSame(metadata, bag.getMetadata());
+        assertEquals(4, bag.pendingTagFiles.size());
+
+        // a Bag being built gives back the metadata it was given
+        BagIt building = new BagIt(new File(TEST_BAGS + "doesnotexist.zip"));
+        assertNull(building.getMetadata());
+        Metadata added = new Metadata();
+        added.addField(Metadata.TITLE, "A title");
+        building.addMetadata(added);
+        assertSame(added, building.getMetadata());
+
+        // and a metadata file added to it is parsed
+        BagIt fromFile = new BagIt(new File(TEST_BAGS + "doesnotexist.zip"));
+        fromFile.addMetadataFile(new File(TEST_BAGS + "testfiles/metadata.xml"));
+        assertEquals("Thor Heyerdahl", fromFile.getMetadata().getField(Metadata.NAME).get(0));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        File copy = File.createTempFile("update", ".zip");
+        copy.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_BAGS + "fullbag.zip"), copy);
+        Map<String, ZipEntry> before = readZipEntries(copy);
+
+        BagIt bag = new BagIt(copy, true);
+        Metadata metadata = bag.getMetadata();
+        metadata.addField(Metadata.TITLE, "A corrected title");
+        bag.addMetadata(metadata);
+        assertTrue(bag.removeFile("data/supporting/UserData3.odt"));
+        assertFalse(bag.removeFile("data/supporting/doesnotexist.odt"));
+        bag.update();
+
+        // the unchanged payload is copied across exactly as it was compressed
+        Map<String, ZipEntry> after = readZipEntries(copy);
+        for (String path : new String[] {"data/final/MainArticle.pdf", "data/supporting/AppendixA.odt", "data/licence/licence.txt"}) {
+            assertEquals(before.get(path).getCrc(), after.get(path).getCrc());
+            assertEquals(before.get(path).getCompressedSize(), after.get(path).getCompressedSize());
+            assertEquals("unchanged", bag.getCompressionDecisions().get(path).getReason());
+        }
+        assertFalse(after.containsKey("data/supporting/UserData3.odt"));
+        assertTrue(before.get("data/metadata/metadata.xml").getCrc() != after.get("data/metadata/metadata.xml").getCrc());
+
+        // and the bag has been read again from the updated zip file
+        assertTrue(bag.getMetadata().getField(Metadata.TITLE).contains("A corrected title"));
+        assertEquals(3, bag.getSequencedFinals().size());
+        assertNull(bag.getSupportingAccess("UserData3.odt"));
+
+        BagIt read = new BagIt(copy);
+        assertTrue(read.verifyPayloadManifest());
+        assertTrue(read.verifyPayload().isValid());
+        assertTrue(read.verifyTags().isValid());
+        assertTrue(read.getMetadata().getField(Metadata.TITLE).contains("A corrected title"));
+        assertEquals(read.getMD5(), bag.getMD5());
+    }
+
+    @Test
+    public void testAddDuplicatePath() throws Exception {
+        String fileBase = TEST_BAGS + "testfiles/";
+        File other = new File(tempDir("duplicate"), "MainArticle.pdf");
+        FileUtils.copyFile(new File(fileBase + "AppendixA.pdf"), other);
+
+        // two different files with the same name in a new bag are refused, rather than one being dropped
+        BagIt bag = new BagIt(tempBag("duplicate"));
+        bag.addFinalFile(new File(fileBase + "MainArticle.pdf"), "application/pdf", 1);
+        try {
+            bag.addFinalFile(other, "application/pdf", 2);
+            fail("the second file at the same path should have been refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        bag.addMetadata(new Metadata());
+        try {
+            bag.addMetadata(new Metadata());
+            fail("the second metadata should have been refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the first can be replaced explicitly
+        assertTrue(bag.removeFile("data/final/MainArticle.pdf"));
+        bag.addFinalFile(other, "application/pdf", 1);
+        bag.writeToFile();
+        assertEquals(Digester.checksum(new FileInputStream(other), "md5"), readEntries(bag.bagFile).get("data/final/MainArticle.pdf"));
+
+        // a file the bag was read with is replaced by one added at its path
+        BagIt read = new BagIt(bag.bagFile);
+        read.addFinalFile(new File(fileBase + "MainArticle.pdf"), "application/pdf", 1);
+        assertEquals(1, read.getSequencedFinals().size());
+        FileUtils.deleteDirectory(other.getParentFile());
+    }
+
+    @Test
+    public void testUpdateAddsAlgorithms() throws Exception {
+        File copy = File.createTempFile("update", ".zip");
+        copy.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_BAGS + "fullbag.zip"), copy);
+
+        // the md5 checksums are reused, and the sha256 ones computed from the raw entries
+        BagIt bag = new BagIt(copy);
+        bag.setAlgorithms("md5", "sha256");
+        bag.update();
+
+        BagIt read = new BagIt(copy);
+        assertEquals(Arrays.asList("md5", "sha256"), read.getAlgorithms());
+        assertTrue(read.verifyPayload().isValid());
+    }
+
+    @Test
+    public void testWriteZipBagToStream() throws Exception {
+        BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"));
+        bag.addLicenceFile(new File(TEST_BAGS + "testfiles/licence.txt"));
+
+        File out = tempBag("rewritten");
+        FileOutputStream fos = new FileOutputStream(out);
+        try {
+            bag.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+
+        BagIt read = new BagIt(out);
+        assertTrue(read.verifyPayload().isValid());
+        assertEquals(readEntries(new File(TEST_BAGS + "fullbag.zip")).keySet(), readEntries(out).keySet());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUpdateNewBag() throws Exception {
+        makeBag(tempBag("notread")).update();
+    }
+
+    @Test
+    public void testHoleyBag() throws Exception {
+        File store = tempDir("store");
+        try {
+            File dataset = new File(store, "1234/Data Set.odt");
+            FileUtils.copyFile(new File(TEST_BAGS + "testfiles/AppendixB.odt"), dataset);
+            Map<String, String> checksums = new HashMap<String, String>();
+            checksums.put("MD5", Digester.checksum(new FileInputStream(dataset), "md5"));
+
+            File out = tempBag("holey");
+            BagIt bag = new BagIt(out);
+            bag.addFinalFile(new File(TEST_BAGS + "testfiles/MainArticle.pdf"), "application/pdf", 1);
+            bag.addSupportingFileReference(new File(TEST_BAGS + "testfiles/AppendixA.odt"), null, 1, "open");
+            bag.addSupportingFileReference("http://data.example.org/theses/1234/Data%20Set.odt", dataset.length(), checksums, "Data Set.odt", null, 2, "closed");
+            bag.writeToFile();
+
+            // the referenced files are listed in fetch.txt and the manifest, but not held in the zip
+            Map<String, String> entries = readEntries(out);
+            assertTrue(entries.containsKey("fetch.txt"));
+            assertTrue(entries.containsKey("data/final/MainArticle.pdf"));
+            assertFalse(entries.containsKey("data/supporting/AppendixA.odt"));
+            assertFalse(entries.containsKey("data/supporting/Data Set.odt"));
+
+            BagIt read = new BagIt(out);
+            List<FetchItem> items = read.getFetchItems();
+            assertEquals(2, items.size());
+            assertEquals("data/supporting/Data Set.odt", items.get(1).getPath());
+            assertEquals(dataset.length(), items.get(1).getLength());
+            assertTrue(read.verifyPayload().isValid());
+            assertTrue(read.verifyTags().isValid());
+            BaggedItem closed = read.getSequencedSecondaries("closed").get(2);
+            assertEquals("Data Set.odt", closed.getFilename());
+            assertNotNull(closed.getFormat());
+            assertNull(closed.getInputStream());
+
+            // the http URL can only be resolved once its location is known
+            FetchResolver resolver = new FetchResolver();
+            VerificationResult unresolved = read.verifyFetched(resolver);
+            assertEquals(Arrays.asList("data/supporting/Data Set.odt"), unresolved.getMissing());
+            resolver.addLocation("http://data.example.org/theses/", store);
+            assertTrue(read.verifyFetched(resolver).isValid());
+
+            // a local copy which has changed is not used to complete the bag
+            byte[] original = FileUtils.readFileToByteArray(dataset);
+            byte[] changed = original.clone();
+            changed[100] ^= 1;
+            FileUtils.writeByteArrayToFile(dataset, changed);
+            VerificationResult result = read.complete(resolver);
+            assertEquals(Arrays.asList("data/supporting/Data Set.odt"), result.getMismatched());
+            assertEquals(2, read.getFetchItems().size());
+            FileUtils.writeByteArrayToFile(dataset, original);
+
+            assertTrue(read.complete(resolver).isValid());
+            assertTrue(read.getFetchItems().isEmpty());
+            read.update();
+
+            entries = readEntries(out);
+            assertFalse(entries.containsKey("fetch.txt"));
+            assertEquals(checksums.get("MD5"), entries.get("data/supporting/Data Set.odt"));
+            assertTrue(read.verifyPayload().isValid());
+            assertTrue(read.verifyTags().isValid());
+            assertEquals(2, read.getSequencedSecondaries("closed").size() + read.getSequencedSecondaries("open").size());
+        } finally {
+            FileUtils.deleteDirectory(store);
+        }
+    }
+
+    @Test
+    public void testVerifyFetchedWithoutChecksum() throws Exception {
+        File store = tempDir("store");
+        try {
+            File data = new File(store, "1234/data.tar");
+            FileUtils.copyFile(new File(TEST_BAGS + "testfiles/AppendixB.odt"), data);
+
+            // a local copy of the right size is not enough to verify a file which has no checksum
+            BagIt bag = new BagIt(tempBag("nochecksum"));
+            bag.addSupportingFileReference("http://data.example.org/theses/1234/data.tar", data.length(), null, "data.tar", null, 1, "closed");
+            FetchResolver resolver = new FetchResolver();
+            resolver.addLocation("http://data.example.org/theses/", store);
+
+            VerificationResult result = bag.verifyFetched(resolver);
+            assertFalse(result.isValid());
+            assertEquals(Arrays.asList("data/supporting/data.tar"), result.getUnverified());
+            assertTrue(result.getMismatched().isEmpty());
+
+            assertFalse(bag.complete(resolver).isValid());
+            assertEquals(1, bag.getFetchItems().size());
+        } finally {
+            FileUtils.deleteDirectory(store);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testHoleyBagWithoutChecksum() throws Exception {
+        BagIt bag = new BagIt(tempBag("nochecksum"));
+        bag.addSupportingFileReference("http://data.example.org/theses/1234/data.tar", -1, null, "data.tar", null, 1, "closed");
+        bag.writeToFile();
+    }
+
+    @Test
+    public void testFetchFile() throws Exception {
+        String content = "http://data.example.org/a.tar 1024 data/supporting/a.tar\n\nfile:/mnt/b%20c.tar\t-\tdata/supporting/b c.tar\n";
+        Fetch fetch = Fetch.parse(new ByteArrayInputStream(content.getBytes("UTF-8")), "fetch.txt");
+        assertEquals(2, fetch.getItems().size());
+        assertEquals(1024, fetch.getItem("data/supporting/a.tar").getLength());
+        assertEquals(-1, fetch.getItem("data/supporting/b c.tar").getLength());
+
+        FetchResolver resolver = new FetchResolver();
+        assertEquals(new File("/mnt/b c.tar"), resolver.resolve(fetch.getItem("data/supporting/b c.tar")));
+        assertNull(resolver.resolve(fetch.getItem("data/supporting/a.tar")));
+        resolver.addLocation("http://data.example.org/", new File("/mnt/store"));
+        assertEquals(new File("/mnt/store/a.tar"), resolver.resolve(fetch.getItem("data/supporting/a.tar")));
+        assertNull(resolver.resolve(new FetchItem("http://data.example.org/../etc/passwd", -1, "data/supporting/passwd")));
+    }
+
+    @Test
+    public void testLazyLoadMalformedTagFile() throws Exception {
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("fullbag/tagfiles/formats.txt", "application/pdf data/final/MainArticle.pdf\n");
+        File bagFile = tamperedBag(replace, new HashSet<String>(), new HashMap<String, String>());
+
+        try {
+            new BagIt(bagFile);
+            fail("Malformed tag file was not reported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // opened lazily the problem is only found when the formats are needed
+        BagIt bag = new BagIt(bagFile, true);
+        assertNotNull(bag.getMetadataFile());
+        try {
+            bag.getSequencedFinals();
+            fail("Malformed tag file was not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testBagChecksumsComputedOnWrite() throws Exception {
+        File out = tempBag("bagchecksum");
+        BagIt bag = makeBag(out);
+        bag.setBagAlgorithms("SHA256");
+        assertEquals(Arrays.asList("md5", "sha256"), bag.getBagAlgorithms());
+        bag.writeToFile();
+
+        assertNotNull(bag.bagChecksums);
+        assertEquals(Digester.checksum(new FileInputStream(out), "md5"), bag.getMD5());
+        assertEquals(Digester.checksum(new FileInputStream(out), "sha256"), bag.getChecksum("sha256"));
+
+        // not computed while writing, so read from the file
+        assertEquals(Digester.checksum(new FileInputStream(out), "sha1"), bag.getChecksum("sha1"));
+
+        // a bag which was read rather than written has to compute it from the file
+        BagIt read = new BagIt(out);
+        assertNull(read.bagChecksums);
+        assertEquals(bag.getMD5(), read.getMD5());
+
+        assertTrue(read.verifyTagManifest());
+        assertTrue(read.verifyPayloadManifest());
+    }
+
+    private Map<String, ZipEntry> readZipEntries(File file) throws Exception {
+        Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> all = zip.entries();
+            while (all.hasMoreElements()) {
+                ZipEntry entry = all.nextElement();
+                entries.put(entry.getName().substring(entry.getName().indexOf('/') + 1), entry);
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private Map<String, Integer> readMethods(File file) throws Exception {
+        Map<String, Integer> methods = new HashMap<String, Integer>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                methods.put(entry.getName().substring(entry.getName().indexOf('/') + 1), entry.getMethod());
+            }
+        } finally {
+            zip.close();
+        }
+        return methods;
+    }
+
+    @Test
+    public void testCompressionPolicy() throws Exception {
+        for (int threads : new int[] {0, 3}) {
+            File out = tempBag("compression");
+            BagIt bag = makeBag(out);
+            if (threads == 0) {
+                bag.writeToFile();
+            } else {
+                bag.writeToFile(threads);
+            }
+
+            Map<String, Compression> decisions = bag.getCompressionDecisions();
+            assertEquals(10, decisions.size());
+            assertTrue(decisions.get("data/final/MainArticle.pdf").isStored());
+            assertTrue(decisions.get("data/supporting/UserData1.odt").isStored());
+            assertFalse(decisions.get("data/metadata/metadata.xml").isStored());
+            assertFalse(decisions.get("data/licence/licence.txt").isStored());
+
+            Map<String, Integer> methods = readMethods(out);
+            assertEquals(ZipEntry.STORED, (int) methods.get("data/final/MainArticle.pdf"));
+            assertEquals(ZipEntry.DEFLATED, (int) methods.get("data/metadata/metadata.xml"));
+            assertEquals(ZipEntry.DEFLATED, (int) methods.get("manifest-md5.txt"));
+
+            // the content is unaffected by the way in which it is compressed
+            assertTrue(new BagIt(out).verifyPayloadManifest());
+            assertEquals(readEntries(out).get("data/final/MainArticle.pdf"),
+                    Digester.checksum(new FileInputStream(TEST_BAGS + "testfiles/MainArticle.pdf"), "md5"));
+        }
+    }
+
+    @Test
+    public void testBufferSize() throws Exception {
+        File empty = File.createTempFile("empty", ".pdf");
+        empty.deleteOnExit();
+
+        // store every file, including an empty one, read with large buffers
+        for (int threads : new int[] {0, 3}) {
+            File out = tempBag("buffered");
+            BagIt bag = makeBag(out);
+            bag.addSupportingFile(empty, 3, "closed");
+            bag.setBufferSize(1024 * 1024);
+            if (threads == 0) {
+                bag.writeToFile();
+            } else {
+                bag.writeToFile(threads);
+            }
+
+            assertTrue(bag.getCompressionDecisions().get("data/supporting/" + empty.getName()).isStored());
+            assertTrue(bag.getCompressionDecisions().get("data/final/MainArticle.pdf").isStored());
+            BagIt read = new BagIt(out);
+            assertTrue(read.verifyPayloadManifest());
+            assertTrue(read.verifyPayload().isValid());
+            assertEquals(readEntries(out).get("data/final/MainArticle.pdf"),
+                    Digester.checksum(new FileInputStream(TEST_BAGS + "testfiles/MainArticle.pdf"), "md5"));
+        }
+
+        try {
+            new BagIt(tempBag("small")).setBufferSize(16);
+            fail("A tiny buffer size was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStoredFileChangedBeforeWrite() throws Exception {
+        File file = File.createTempFile("changed", ".pdf");
+        file.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_BAGS + "testfiles/MainArticle.pdf"), file);
+        PreparedEntry entry = PreparedEntry.scan("changed.pdf", file, Arrays.asList("md5"), Digester.BUFFER);
+
+        // the same length, but not the same content as when the file was scanned
+        byte[] content = FileUtils.readFileToByteArray(file);
+        content[0] ^= 1;
+        FileUtils.writeByteArrayToFile(file, content);
+        file.setLastModified(entry.modified + 2000);
+
+        ZipArchiveWriter out = new ZipArchiveWriter(new ByteArrayOutputStream());
+        try {
+            out.writePrepared(entry);
+            fail("A file which changed after it was scanned was written");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCustomCompressionPolicy() throws Exception {
+        File out = tempBag("custompolicy");
+        BagIt bag = makeBag(out);
+        bag.setCompressionPolicy(new CompressionPolicy() {
+            public Compression choose(String path, String format, byte[] sample, int length) {
+                return Compression.deflated(Deflater.BEST_SPEED, "everything");
+            }
+        });
+        bag.writeToFile();
+
+        for (Compression compression : bag.getCompressionDecisions().values()) {
+            assertEquals(Deflater.BEST_SPEED, compression.getLevel());
+            assertEquals("everything", compression.getReason());
+        }
+        assertEquals(ZipEntry.DEFLATED, (int) readMethods(out).get("data/final/MainArticle.pdf"));
+        assertTrue(new BagIt(out).verifyPayloadManifest());
+    }
+
+    @Test
+    public void testDefaultCompressionPolicy() throws Exception {
+        DefaultCompressionPolicy policy = new DefaultCompressionPolicy();
+        byte[] text = new byte[4096];
+        Arrays.fill(text, (byte) 'a');
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+
+        assertTrue(policy.choose("data/final/x.bin", "application/pdf", text, text.length).isStored());
+        assertTrue(policy.choose("data/final/x.bin", "video/mp4", text, text.length).isStored());
+        assertTrue(policy.choose("data/final/x.bin", "application/vnd.oasis.opendocument.text", text, text.length).isStored());
+        assertTrue(policy.choose("data/final/photo.JPG", null, text, text.length).isStored());
+        assertTrue(policy.choose("data/final/x.bin", null, random, random.length).isStored());
+        assertFalse(policy.choose("data/final/x.bin", null, text, text.length).isStored());
+        assertFalse(policy.choose("data/final/x.txt", "text/plain; charset=UTF-8", text, text.length).isStored());
+
+        // too small a sample to judge
+        assertFalse(policy.choose("data/final/x.bin", null, random, 100).isStored());
+
+        policy.setEntropyThreshold(9);
+        policy.setLevel(Deflater.BEST_COMPRESSION);
+        Compression compression = policy.choose("data/final/x.bin", null, random, random.length);
+        assertFalse(compression.isStored());
+        assertEquals(Deflater.BEST_COMPRESSION, compression.getLevel());
+    }
+
+    @Test
+    public void testWriteToStream() throws Exception {
+        File file = tempBag("streamed");
+        BagIt written = makeBag(file);
+        written.writeToFile();
+        Map<String, String> expected = readEntries(file);
+
+        // the zip is written to the stream, and the stream is left open
+        BagIt streamed = makeBag(tempBag("streamed"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Map<String, String> checksums = streamed.writeTo(baos, Executors.newFixedThreadPool(2));
+        int length = baos.size();
+        baos.write(1);
+        byte[] bytes = Arrays.copyOf(baos.toByteArray(), length);
+        assertEquals(expected, readEntries(new ByteArrayInputStream(bytes)));
+        assertEquals(Digester.checksum(new ByteArrayInputStream(bytes), "md5"), checksums.get("md5"));
+
+        BagIt channelled = makeBag(tempBag("channelled"));
+        baos = new ByteArrayOutputStream();
+        checksums = channelled.writeTo(Channels.newChannel(baos));
+        assertEquals(expected, readEntries(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(Digester.checksum(new ByteArrayInputStream(baos.toByteArray()), "md5"), checksums.get("md5"));
+
+        // writing to a stream does not create the bag's own file
+        assertFalse(streamed.bagFile.exists());
+    }
+
+    @Test
+    public void testWriteToFailingStream() throws Exception {
+        File file = tempBag("failing");
+        BagIt written = makeBag(file);
+        written.writeToFile();
+        Map<String, String> expected = readEntries(file);
+
+        // a write which fails part way through, even with an unchecked exception, gives back its pooled Deflater,
+        // buffers and digests exactly once, so later writes on this thread still produce the same zip
+        OutputStream failing = new OutputStream() {
+            private int count = 0;
+            public void write(int b) {
+                if (++count > 1000) {
+                    throw new IllegalStateException("stream failed");
+                }
+            }
+        };
+        try {
+            makeBag(tempBag("failing")).writeTo(failing);
+            fail("the write should have failed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Map<String, String> checksums = makeBag(tempBag("failing")).writeTo(baos);
+            assertEquals(expected, readEntries(new ByteArrayInputStream(baos.toByteArray())));
+            assertEquals(Digester.checksum(new ByteArrayInputStream(baos.toByteArray()), "md5"), checksums.get("md5"));
+        }
+    }
+
+    @Test
+    public void testChecksumFollowsFile() throws Exception {
+        File file = tempBag("changed");
+        BagIt bag = makeBag(file);
+        bag.writeToFile();
+        assertEquals(Digester.checksum(new FileInputStream(file), "md5"), bag.getMD5());
+
+        // changing the bag forgets the checksum, which is read from the unchanged file again
+        bag.removeFile("data/final/AppendixA.pdf");
+        assertNull(bag.bagChecksums);
+        assertEquals(Digester.checksum(new FileInputStream(file), "md5"), bag.getMD5());
+
+        // and so does replacing the file behind the bag's back
+        bag.writeToFile();
+        assertNotNull(bag.bagChecksums);
+        FileUtils.writeStringToFile(file, "not a bag", "UTF-8");
+        assertEquals(Digester.checksum(new FileInputStream(file), "md5"), bag.getMD5());
+    }
+
+    @Test
+    public void testWriteToStreamKeepsFileChecksum() throws Exception {
+        File file = tempBag("kept");
+        makeBag(file).writeToFile();
+        String md5 = Digester.checksum(new FileInputStream(file), "md5");
+
+        // the loaded bag is written with a different metadata, so the stream differs from the file
+        BagIt bag = new BagIt(file);
+        Metadata metadata = new Metadata();
+        metadata.addField(Metadata.TITLE, "A different title");
+        bag.addMetadata(metadata);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Map<String, String> checksums = bag.writeTo(baos);
+        assertEquals(Digester.checksum(new ByteArrayInputStream(baos.toByteArray()), "md5"), checksums.get("md5"));
+        assertFalse(md5.equals(checksums.get("md5")));
+        assertEquals(md5, bag.getMD5());
+    }
+
+    private File tempDir(String name) throws Exception {
+        File dir = File.createTempFile(name, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private Map<String, String> readDirectory(File dir, String prefix) throws Exception {
+        Map<String, String> entries = new HashMap<String, String>();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                entries.putAll(readDirectory(file, prefix + file.getName() + "/"));
+            } else {
+                entries.put(prefix + file.getName(), Digester.checksum(new FileInputStream(file), "md5"));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testDirectoryBag() throws Exception {
+        File zip = tempBag("zipped");
+        makeBag(zip).writeToFile();
+
+        File dir = tempDir("unzipped");
+        try {
+            // the directory has exactly the same content as the zip
+            makeBag(tempBag("unzipped")).writeToDirectory(dir);
+            assertEquals(readEntries(zip), readDirectory(dir, ""));
+
+            BagIt bag = new BagIt(dir);
+            assertEquals(3, bag.getSequencedFinals().size());
+            assertEquals(3, bag.getSequencedSecondaries("open").size());
+            assertEquals("closed", bag.getSupportingAccess("UserData2.odt"));
+            assertEquals("text/plain", bag.getLicenceFile().getFormat());
+
+            // and zipping it again gives the same entries
+            File rezipped = tempBag("rezipped");
+            FileOutputStream fos = new FileOutputStream(rezipped);
+            try {
+                bag.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+            assertEquals(readEntries(zip), readEntries(rezipped));
+            assertTrue(new BagIt(rezipped).verifyPayloadManifest());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testVerifyDirectoryBag() throws Exception {
+        File dir = tempDir("verified");
+        try {
+            makeBag(tempBag("verified")).writeToDirectory(dir);
+            BagIt bag = new BagIt(dir);
+            assertTrue(bag.verifyPayloadManifest());
+            assertTrue(bag.verifyTagManifest());
+            assertTrue(bag.verify(Executors.newFixedThreadPool(2)).isValid());
+
+            FileUtils.writeStringToFile(new File(dir, "data/final/AppendixA.pdf"), "not the original pdf", "UTF-8");
+            FileUtils.writeStringToFile(new File(dir, "data/supporting/extra.txt"), "not in the manifest", "UTF-8");
+            new File(dir, "data/supporting/UserData1.odt").delete();
+            VerificationResult result = new BagIt(dir).verifyPayload();
+            assertEquals(Arrays.asList("data/final/AppendixA.pdf"), result.getMismatched());
+            assertEquals(Arrays.asList("data/supporting/extra.txt"), result.getExtra());
+            assertEquals(Arrays.asList("data/supporting/UserData1.odt"), result.getMissing());
+
+            FileUtils.writeStringToFile(new File(dir, "tagfiles/formats.txt"), "text/plain\tdata/final/AppendixA.pdf\n", "UTF-8");
+            result = new BagIt(dir).verifyTags();
+            assertEquals(Arrays.asList("tagfiles/formats.txt"), result.getMismatched());
+
+            new File(dir, "bagit.txt").delete();
+            assertFalse(new BagIt(dir).verifyTagManifest());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testConvertWithoutRecomputingChecksums() throws Exception {
+        File dir = tempDir("converted");
+        try {
+            // unpack a zip bag, whose manifest lists the checksums with two spaces
+            new BagIt(new File(TEST_BAGS + "fullbag.zip")).writeToDirectory(dir);
+            Manifest original = Manifest.parse(new FileInputStream(TEST_BAGS + "fullbag/manifest-md5.txt"), "manifest-md5.txt");
+            Manifest unpacked = Manifest.parse(new FileInputStream(new File(dir, "manifest-md5.txt")), "manifest-md5.txt");
+            assertEquals(new HashSet<String>(original.getPaths()), new HashSet<String>(unpacked.getPaths()));
+            for (String path : original.getPaths()) {
+                assertEquals(original.getChecksum(path), unpacked.getChecksum(path));
+            }
+
+            // the checksums in the manifest are trusted rather than computed again
+            String fake = "00000000000000000000000000000000";
+            String manifest = FileUtils.readFileToString(new File(dir, "manifest-md5.txt"), "UTF-8");
+            manifest = manifest.replace(unpacked.getChecksum("data/final/AppendixA.pdf"), fake);
+            FileUtils.writeStringToFile(new File(dir, "manifest-md5.txt"), manifest, "UTF-8");
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            new BagIt(dir).writeTo(baos);
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            ZipEntry entry;
+            Manifest zipped = null;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().endsWith("/manifest-md5.txt")) {
+                    zipped = Manifest.parse(new CloseShieldInputStream(zis), entry.getName());
+                }
+            }
+            zis.close();
+            assertEquals(fake, zipped.getChecksum("data/final/AppendixA.pdf"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testDirectoryBagLinked() throws Exception {
+        File source = tempDir("linksource");
+        File linked = tempDir("linked");
+        try {
+            makeBag(tempBag("linksource")).writeToDirectory(source);
+
+            // on the same file system the payload is linked rather than copied, and the bag is otherwise the same
+            BagIt bag = new BagIt(source);
+            bag.setLinkPayload(true);
+            bag.writeToDirectory(linked);
+            assertEquals(readDirectory(source, ""), readDirectory(linked, ""));
+            assertTrue(Files.isSameFile(new File(source, "data/final/MainArticle.pdf").toPath(),
+                    new File(linked, "data/final/MainArticle.pdf").toPath()));
+            assertFalse(Files.isSameFile(new File(source, "manifest-md5.txt").toPath(),
+                    new File(linked, "manifest-md5.txt").toPath()));
+            assertTrue(new BagIt(linked).verifyPayload().isValid());
+        } finally {
+            FileUtils.deleteDirectory(source);
+            FileUtils.deleteDirectory(linked);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDirectoryBagWriteToFile() throws Exception {
+        File dir = tempDir("notzip");
+        try {
+            makeBag(tempBag("notzip")).writeToDirectory(dir);
+            new BagIt(dir).writeToFile();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        // opened lazily, so that the threads also race to parse the tag files
+        final BagIt bag = new BagIt(new File(TEST_BAGS + "fullbag.zip"), true);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map<String, String>>> results = new ArrayList<Future<Map<String, String>>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<Map<String, String>>() {
+                    public Map<String, String> call() throws Exception {
+                        start.await();
+                        Map<String, String> read = new HashMap<String, String>();
+                        List<BaggedItem> items = new ArrayList<BaggedItem>();
+                        items.addAll(bag.getSequencedFinals().values());
+                        items.addAll(bag.getSequencedSecondaries("open").values());
+                        items.addAll(bag.getSequencedSecondaries("closed").values());
+                        items.add(bag.getMetadataFile());
+                        for (BaggedItem item : items) {
+                            read.put(item.getFilename() + " " + item.getFormat() + " " + item.getSequence(),
+                                    Digester.checksum(item.getInputStream(), "md5"));
+                        }
+                        return read;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Map<String, String> expected = null;
+            for (Future<Map<String, String>> result : results) {
+                Map<String, String> read = result.get();
+                assertEquals(10, read.size());
+                assertEquals(Digester.checksum(new FileInputStream(TEST_BAGS + "fullbag/data/supporting/UserData3.odt"), "md5"),
+                        read.get("UserData3.odt application/vnd.oasis.opendocument.text 3"));
+                if (expected == null) {
+                    expected = read;
+                }
+                assertEquals(expected, read);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExtractTo() throws Exception {
+        File dir = tempDir("extracted");
+        try {
+            VerificationResult result = new BagIt(new File(TEST_BAGS + "fullbag.zip")).extractTo(dir, 4);
+            assertTrue(result.toString(), result.isValid());
+
+            Map<String, String> extracted = readDirectory(dir, "");
+            assertEquals(11, extracted.size());
+            Map<String, String> expected = readDirectory(new File(TEST_BAGS + "fullbag/data"), "data/");
+            assertEquals(expected, extracted);
+
+            // and the same through a Path
+            FileUtils.deleteDirectory(dir);
+            assertTrue(new BagIt(new File(TEST_BAGS + "fullbag.zip")).extractTo(dir.toPath()).isValid());
+            assertEquals(expected, readDirectory(dir, ""));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testExtractToFiltered() throws Exception {
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("fullbag/data/supporting/UserData1.odt", "not what the manifest says");
+        BagIt bag = new BagIt(tamperedBag(replace, new HashSet<String>(), new HashMap<String, String>()), true);
+
+        File dir = tempDir("filtered");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            VerificationResult result = bag.extractTo(dir, executor, new PayloadFilter() {
+                public boolean accept(String path, String type, String access) {
+                    return "supporting".equals(type) && "closed".equals(access);
+                }
+            });
+            assertEquals(Arrays.asList("data/supporting/UserData1.odt"), result.getMismatched());
+            assertTrue(result.getMissing().isEmpty());
+            assertEquals(3, readDirectory(dir, "").size());
+            assertTrue(new File(dir, "data/supporting/UserData3.odt").exists());
+            assertFalse(new File(dir, "data/supporting/AppendixA.odt").exists());
+        } finally {
+            executor.shutdown();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testExtractMaliciousBag() throws Exception {
+        // a zip entry whose name climbs out of the payload directory must not be written outside the target
+        File out = File.createTempFile("malicious", ".zip");
+        out.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(out));
+        try {
+            zos.putNextEntry(new ZipEntry("malicious/data/final/MainArticle.pdf"));
+            zos.write("harmless".getBytes("UTF-8"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("malicious/data/final/../../../escaped.txt"));
+            zos.write("escaped".getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        File parent = tempDir("maliciousparent");
+        File dir = new File(parent, "extracted");
+        dir.mkdir();
+        try {
+            try {
+                new BagIt(out).extractTo(dir, 2);
+                fail("the escaping entry should have been refused");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                new BagIt(out).writeToDirectory(dir);
+                fail("the escaping entry should have been refused");
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(new File(parent, "escaped.txt").exists());
+            assertFalse(new File(dir, "escaped.txt").exists());
+            assertTrue(readDirectory(dir, "").isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(parent);
+        }
+    }
+
+    @Test
+    public void testExtractDirectoryBag() throws Exception {
+        File source = tempDir("sourcedir");
+        File dir = tempDir("extracteddir");
+        try {
+            new BagIt(new File(TEST_BAGS + "fullbag.zip")).writeToDirectory(source);
+            new File(source, "data/final/AppendixA.pdf").delete();
+
+            VerificationResult result = new BagIt(source).extractTo(dir, 2);
+            assertEquals(Arrays.asList("data/final/AppendixA.pdf"), result.getMissing());
+            assertEquals(10, readDirectory(dir, "").size());
+        } finally {
+            FileUtils.deleteDirectory(source);
+            FileUtils.deleteDirectory(dir);
+        }
+    }
 }
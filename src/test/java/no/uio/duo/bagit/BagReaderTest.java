@@ -0,0 +1,233 @@
+package no.uio.duo.bagit;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class BagReaderTest
+{
+    private static String TEST_BAGS = System.getProperty("user.dir") + "/src/test/resources/testbags/";
+
+    /*
+        records everything the reader delivers, keyed by type and filename
+     */
+    private static class Recorder implements BagItemHandler
+    {
+        CountingInputStream counter;
+        Map<String, String[]> items = new HashMap<String, String[]>();
+        List<Long> positions = new ArrayList<Long>();
+
+        public void handle(String type, String access, BaggedItem item) throws IOException
+        {
+            positions.add(counter == null ? 0 : counter.getByteCount());
+            String md5 = Digester.checksum(item.getInputStream(), "md5");
+            items.put(type + "/" + item.getFilename(),
+                    new String[] { item.getFormat(), String.valueOf(item.getSequence()), access, md5 });
+        }
+    }
+
+    private void assertItem(Recorder recorder, String key, String format, Integer sequence, String access) throws Exception
+    {
+        String[] item = recorder.items.get(key);
+        assertNotNull(key, item);
+        assertEquals(format, item[0]);
+        assertEquals(String.valueOf(sequence), item[1]);
+        assertEquals(access, item[2]);
+        String file = TEST_BAGS + "fullbag/data/" + key;
+        assertEquals(Digester.checksum(new FileInputStream(file), "md5"), item[3]);
+    }
+
+    private void assertFullBag(Recorder recorder) throws Exception
+    {
+        assertEquals(11, recorder.items.size());
+        assertItem(recorder, "final/MainArticle.pdf", "application/pdf", 1, null);
+        assertItem(recorder, "final/AppendixB.pdf", "application/pdf", 3, null);
+        assertItem(recorder, "supporting/AppendixB.odt", "application/vnd.oasis.opendocument.text", 3, "open");
+        assertItem(recorder, "supporting/UserData1.odt", "application/vnd.oasis.opendocument.text", 1, "closed");
+        assertItem(recorder, "metadata/metadata.xml", "text/xml", null, null);
+        assertItem(recorder, "licence/licence.txt", "text/plain", null, null);
+    }
+
+    @Test
+    public void testReadStream() throws Exception
+    {
+        File file = new File(TEST_BAGS + "fullbag.zip");
+        Recorder recorder = new Recorder();
+        recorder.counter = new CountingInputStream(new FileInputStream(file));
+        try
+        {
+            new BagReader(recorder.counter).read(recorder);
+        }
+        finally
+        {
+            recorder.counter.close();
+        }
+        assertFullBag(recorder);
+
+        // the tag files come first, so the payload is handed over while the zip is still being read
+        assertTrue(recorder.positions.get(0) < file.length() / 2);
+    }
+
+    @Test
+    public void testReadTagFilesLast() throws Exception
+    {
+        // move the tag files to the end, so that the payload has to be held back until they arrive
+        ZipFile zip = new ZipFile(TEST_BAGS + "fullbag.zip");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        try
+        {
+            for (boolean tags : new boolean[] { false, true })
+            {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements())
+                {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().contains("/tagfiles/") == tags)
+                    {
+                        zos.putNextEntry(new ZipEntry(entry.getName()));
+                        IOUtils.copy(zip.getInputStream(entry), zos);
+                        zos.closeEntry();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            zos.close();
+            zip.close();
+        }
+
+        // small enough that most of the held payload goes to temporary files
+        BagReader reader = new BagReader(new ByteArrayInputStream(baos.toByteArray()));
+        reader.setSpillMemory(20000);
+        Recorder recorder = new Recorder();
+        reader.read(recorder);
+        assertFullBag(recorder);
+    }
+
+    @Test
+    public void testReadWithoutFormats() throws Exception
+    {
+        // a bag whose files have no formats has no formats.txt, which the payload must not wait for
+        ZipFile zip = new ZipFile(TEST_BAGS + "fullbag.zip");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        try
+        {
+            for (boolean tags : new boolean[] { true, false })
+            {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements())
+                {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().contains("/tagfiles/") == tags && !entry.getName().endsWith("/formats.txt"))
+                    {
+                        zos.putNextEntry(new ZipEntry(entry.getName()));
+                        IOUtils.copy(zip.getInputStream(entry), zos);
+                        zos.closeEntry();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            zos.close();
+            zip.close();
+        }
+
+        byte[] bytes = baos.toByteArray();
+        Recorder recorder = new Recorder();
+        recorder.counter = new CountingInputStream(new ByteArrayInputStream(bytes));
+        BagReader reader = new BagReader(recorder.counter);
+        reader.setSpillMemory(0);
+        reader.read(recorder);
+
+        assertEquals(11, recorder.items.size());
+        assertItem(recorder, "final/MainArticle.pdf", null, 1, null);
+        assertItem(recorder, "supporting/UserData1.odt", null, 1, "closed");
+        assertTrue(recorder.positions.get(0) < bytes.length / 2);
+    }
+
+    @Test
+    public void testReadMalformedSequence() throws Exception
+    {
+        // a sequence which is not a number is reported as a malformed tag file
+        ZipFile zip = new ZipFile(TEST_BAGS + "fullbag.zip");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                if (entry.getName().endsWith("/final.sequence.txt"))
+                {
+                    String content = IOUtils.toString(zip.getInputStream(entry), "UTF-8");
+                    zos.write(content.replaceAll("(?m)^[^\t]*\t", "first\t").getBytes("UTF-8"));
+                }
+                else
+                {
+                    IOUtils.copy(zip.getInputStream(entry), zos);
+                }
+                zos.closeEntry();
+            }
+        }
+        finally
+        {
+            zos.close();
+            zip.close();
+        }
+
+        try
+        {
+            new BagReader(new ByteArrayInputStream(baos.toByteArray())).read(new Recorder());
+            fail("a malformed sequence should not be read");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("final.sequence.txt"));
+        }
+    }
+
+    @Test
+    public void testReadWrittenBag() throws Exception
+    {
+        File out = File.createTempFile("readwritten", ".zip");
+        out.delete();
+        out.deleteOnExit();
+
+        String fileBase = TEST_BAGS + "testfiles/";
+        BagIt bag = new BagIt(out);
+        bag.addFinalFile(new File(fileBase + "MainArticle.pdf"), "application/pdf", 1);
+        bag.addSupportingFile(new File(fileBase + "UserData1.odt"), "application/vnd.oasis.opendocument.text", 1, "closed");
+        bag.addMetadataFile(new File(fileBase + "metadata.xml"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bag.writeTo(baos);
+
+        Recorder recorder = new Recorder();
+        new BagReader(new ByteArrayInputStream(baos.toByteArray())).read(recorder);
+        assertEquals(3, recorder.items.size());
+        assertEquals("closed", recorder.items.get("supporting/UserData1.odt")[2]);
+        assertEquals(Digester.checksum(new FileInputStream(fileBase + "MainArticle.pdf"), "md5"),
+                recorder.items.get("final/MainArticle.pdf")[3]);
+    }
+}
@@ -0,0 +1,68 @@
+package no.uio.duo.bagit;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import javax.activation.MimetypesFileTypeMap;
+import java.io.File;
+
+public class DefaultFormatDetectorTest
+{
+    private static String TEST_FILES = System.getProperty("user.dir") + "/src/test/resources/testbags/testfiles/";
+
+    @Test
+    public void testExtension() throws Exception
+    {
+        DefaultFormatDetector detector = new DefaultFormatDetector();
+        MimetypesFileTypeMap mimeTypes = new MimetypesFileTypeMap();
+        for (String name : new String[] { "a.jpg", "B.JPG", "c.txt", "d.html", "e.pdf", "noextension" })
+        {
+            assertEquals(name, mimeTypes.getContentType(name), detector.detectByExtension(name));
+            // and again from the cache
+            assertEquals(name, mimeTypes.getContentType(name), detector.detectByExtension(name));
+        }
+
+        // without sniffing, files are identified by extension only
+        assertEquals(DefaultFormatDetector.UNKNOWN, detector.detect(new File(TEST_FILES + "MainArticle.pdf")));
+        assertEquals("text/plain", detector.detect(new File(TEST_FILES + "licence.txt")));
+    }
+
+    @Test
+    public void testSniffing() throws Exception
+    {
+        DefaultFormatDetector detector = new DefaultFormatDetector(true);
+        assertEquals("application/pdf", detector.detect(new File(TEST_FILES + "MainArticle.pdf")));
+        assertEquals("application/vnd.oasis.opendocument.text", detector.detect(new File(TEST_FILES + "UserData1.odt")));
+        assertEquals("text/xml", detector.detect(new File(TEST_FILES + "metadata.xml")));
+
+        // a recognised extension wins over the content
+        assertEquals("text/plain", detector.detect(new File(TEST_FILES + "licence.txt")));
+
+        assertEquals("image/png", DefaultFormatDetector.sniff(new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a }, 6));
+        assertEquals("application/zip", DefaultFormatDetector.sniff(new byte[] { 'P', 'K', 3, 4 }, 4));
+        assertNull(DefaultFormatDetector.sniff(new byte[] { 1, 2, 3 }, 3));
+    }
+
+    @Test
+    public void testSniffingMemoized() throws Exception
+    {
+        File file = File.createTempFile("sniffed", ".unknown");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, "%PDF-1.4 content", "ISO-8859-1");
+        long modified = file.lastModified();
+
+        DefaultFormatDetector detector = new DefaultFormatDetector(true);
+        assertEquals("application/pdf", detector.detect(file));
+
+        // the same path, size and modification time is not read again
+        FileUtils.writeStringToFile(file, "<?xml    content", "ISO-8859-1");
+        file.setLastModified(modified);
+        assertEquals("application/pdf", detector.detect(file));
+
+        // but a change to any of them is
+        file.setLastModified(modified - 10000);
+        assertEquals("text/xml", detector.detect(file));
+    }
+}
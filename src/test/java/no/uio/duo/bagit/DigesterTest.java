@@ -0,0 +1,71 @@
+package no.uio.duo.bagit;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+
+public class DigesterTest
+{
+    @Test
+    public void testChecksums() throws Exception
+    {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+
+        Map<String, String> checksums = Digester.checksums(new ByteArrayInputStream(data), Arrays.asList("md5", "sha1", "sha256"));
+        assertEquals("9e107d9d372bb6826bd81d3542a419d6", checksums.get("md5"));
+        assertEquals("2fd4e1c67a2d28fced849ee1bb76e7391b93eb12", checksums.get("sha1"));
+        assertEquals("d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592", checksums.get("sha256"));
+
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", Digester.checksum(new ByteArrayInputStream(new byte[0]), "md5"));
+    }
+
+    @Test
+    public void testHex()
+    {
+        byte[] b = { 0x00, 0x0f, (byte) 0xf0, (byte) 0xff, 0x7f, (byte) 0x80 };
+        assertEquals("000ff0ff7f80", Digester.hex(b));
+        assertEquals("", Digester.hex(new byte[0]));
+    }
+
+    @Test
+    public void testReuse() throws Exception
+    {
+        MessageDigest md = Digester.acquire("md5");
+        md.update("some state which must not leak".getBytes("UTF-8"));
+        Digester.release(md);
+
+        // the same instance is handed back out, without its previous state
+        MessageDigest again = Digester.acquire("md5");
+        assertSame(md, again);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", Digester.hex(again.digest()));
+
+        // while it is in use, another one is created
+        MessageDigest other = Digester.acquire("md5");
+        assertNotSame(again, other);
+        Digester.release(again);
+        Digester.release(other);
+
+        byte[] buffer = Digester.acquireBuffer();
+        assertEquals(Digester.BUFFER, buffer.length);
+        Digester.releaseBuffer(buffer);
+        assertSame(buffer, Digester.acquireBuffer());
+
+        // buffers of other sizes are pooled separately
+        byte[] large = Digester.acquireBuffer(65536);
+        assertEquals(65536, large.length);
+        Digester.releaseBuffer(large);
+        Digester.releaseBuffer(buffer);
+        assertSame(buffer, Digester.acquireBuffer());
+        assertSame(large, Digester.acquireBuffer(65536));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupported()
+    {
+        Digester.acquire("crc64");
+    }
+}
@@ -0,0 +1,312 @@
+package no.uio.duo.bagit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for zip files which need the ZIP64 extensions: more than 65535 entries, entries of 4GB or more, and zip
+ * files of 4GB or more.
+ *
+ * The tests with multi-GB files are only run with mvn test -P large-tests, which also limits the heap so that
+ * anything which holds a whole file in memory fails.  They use sparse files, so they need little disk space for
+ * their inputs, but do write zip files of more than 4GB.
+ */
+public class LargeBagTest
+{
+    private static final long FOUR_GB = 4L * 1024 * 1024 * 1024;
+    private static final int MANY = ZipArchiveWriter.ZIP64_ENTRIES + 500;
+
+    @Test
+    public void testManyEntries() throws Exception
+    {
+        File zip = tempFile("many");
+        FileOutputStream fos = new FileOutputStream(zip);
+        try
+        {
+            writeMany(new ZipArchiveWriter(fos));
+        }
+        finally
+        {
+            fos.close();
+        }
+        checkMany(zip);
+    }
+
+    @Test
+    public void testStreamedEntries() throws Exception
+    {
+        // streamed entries give their sizes only in a data descriptor, which every reader has to cope with
+        byte[] data = "Some data which is written without saying how long it is".getBytes("UTF-8");
+        File zip = tempFile("streamed");
+        FileOutputStream fos = new FileOutputStream(zip);
+        try
+        {
+            ZipArchiveWriter out = new ZipArchiveWriter(fos);
+            out.putNextEntry("streamed/first.txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+            out.write(data, 0, data.length);
+            out.putNextEntry("streamed/second.txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+            out.write(data, 0, data.length);
+            out.finish();
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        ZipFile zf = new ZipFile(zip);
+        try
+        {
+            for (String name : new String[] { "streamed/first.txt", "streamed/second.txt" })
+            {
+                assertEquals(data.length, zf.getEntry(name).getSize());
+                assertArrayEquals(data, IOUtils.toByteArray(zf.getInputStream(zf.getEntry(name))));
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zip));
+        try
+        {
+            assertEquals("streamed/first.txt", zis.getNextEntry().getName());
+            assertArrayEquals(data, IOUtils.toByteArray(zis));
+            assertEquals("streamed/second.txt", zis.getNextEntry().getName());
+            assertArrayEquals(data, IOUtils.toByteArray(zis));
+            assertNull(zis.getNextEntry());
+        }
+        finally
+        {
+            zis.close();
+        }
+
+        ZipArchiveReader reader = new ZipArchiveReader(zip);
+        try
+        {
+            assertEquals(data.length, reader.getEntry("streamed/first.txt").size);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testBagWithManyFiles() throws Exception
+    {
+        File dir = tempDir("manyfiles");
+        try
+        {
+            File out = tempFile("manyfiles");
+            out.delete();
+            BagIt bag = new BagIt(out);
+            for (int i = 1; i <= MANY; i++)
+            {
+                File file = new File(dir, "file" + i + ".txt");
+                FileUtils.writeStringToFile(file, "Supporting file " + i, "UTF-8");
+                bag.addSupportingFile(file, "text/plain", i, i % 2 == 0 ? "open" : "closed");
+            }
+            bag.writeToFile();
+
+            ZipFile zip = new ZipFile(out);
+            try
+            {
+                // the payload, the manifest, the tag manifest, bagit.txt and the 3 supporting tag files
+                assertEquals(MANY + 6, zip.size());
+            }
+            finally
+            {
+                zip.close();
+            }
+
+            BagIt read = new BagIt(out);
+            assertTrue(read.verifyPayload().isValid());
+            assertTrue(read.verifyTags().isValid());
+            assertEquals(Digester.checksum(new FileInputStream(out), "md5"), bag.getMD5());
+            assertEquals(MANY % 2 == 0 ? "open" : "closed", read.getSupportingAccess("file" + MANY + ".txt"));
+
+            // the bag can be updated in place, which reads its central directory with the ZIP64 extensions
+            Metadata metadata = new Metadata();
+            metadata.addField(Metadata.TITLE, "Many files");
+            read.addMetadata(metadata);
+            read.update();
+            assertEquals("Many files", new BagIt(out).getMetadata().getField(Metadata.TITLE).get(0));
+            assertTrue(new BagIt(out).verifyPayload().isValid());
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testLargeDeflatedFile() throws Exception
+    {
+        assumeTrue(Boolean.getBoolean("bagit.largeTests"));
+
+        // an entry of more than 4GB in a small zip file
+        File dir = tempDir("deflated");
+        try
+        {
+            File data = sparseFile(new File(dir, "data.csv"), FOUR_GB + 1024 * 1024);
+            File out = tempFile("deflated");
+            out.delete();
+            BagIt bag = new BagIt(out);
+            bag.addSupportingFile(data, "text/csv", 1, "open");
+            bag.writeToFile();
+            assertTrue(out.length() < FOUR_GB);
+
+            ZipFile zip = new ZipFile(out);
+            try
+            {
+                assertEquals(data.length(), zip.getEntry(zip.entries().nextElement().getName().split("/")[0] + "/data/supporting/data.csv").getSize());
+            }
+            finally
+            {
+                zip.close();
+            }
+
+            BagIt read = new BagIt(out);
+            assertTrue(read.verifyPayload().isValid());
+            assertEquals(Digester.checksum(new FileInputStream(out), "md5"), bag.getMD5());
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testLargeStoredFile() throws Exception
+    {
+        assumeTrue(Boolean.getBoolean("bagit.largeTests"));
+
+        // a zip file of more than 4GB, whose later entries and central directory start beyond 4GB
+        File dir = tempDir("stored");
+        File out = tempFile("stored");
+        try
+        {
+            File data = sparseFile(new File(dir, "data.zip"), FOUR_GB + 1024 * 1024);
+            out.delete();
+            BagIt bag = new BagIt(out);
+            bag.addSupportingFile(data, "application/zip", 1, "open");
+            bag.addFinalFile(new File(System.getProperty("user.dir") + "/src/test/resources/testbags/testfiles/MainArticle.pdf"), "application/pdf", 1);
+            bag.writeToFile();
+            assertTrue(out.length() > FOUR_GB);
+            assertTrue(bag.getCompressionDecisions().get("data/supporting/data.zip").isStored());
+
+            BagIt read = new BagIt(out);
+            assertEquals(1, read.getSequencedFinals().size());
+            assertTrue(read.verifyPayload().isValid());
+            assertEquals(Digester.checksum(new FileInputStream(out), "md5"), bag.getMD5());
+
+            // the large entry is copied across as it is when the bag is updated
+            Metadata metadata = new Metadata();
+            metadata.addField(Metadata.TITLE, "A large dataset");
+            read.addMetadata(metadata);
+            read.update();
+            assertEquals("unchanged", read.getCompressionDecisions().get("data/supporting/data.zip").getReason());
+            assertTrue(new BagIt(out).verifyPayload().isValid());
+        }
+        finally
+        {
+            out.delete();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private void writeMany(ZipArchiveWriter out) throws Exception
+    {
+        for (int i = 0; i < MANY; i++)
+        {
+            byte[] data = ("entry " + i).getBytes("UTF-8");
+            out.putNextEntry("many/" + i + ".txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+            out.write(data, 0, data.length);
+        }
+        out.finish();
+    }
+
+    private void checkMany(File zip) throws Exception
+    {
+        ZipFile zf = new ZipFile(zip);
+        try
+        {
+            assertEquals(MANY, zf.size());
+            ZipEntry last = zf.getEntry("many/" + (MANY - 1) + ".txt");
+            assertEquals("entry " + (MANY - 1), IOUtils.toString(zf.getInputStream(last), "UTF-8"));
+
+            ZipArchiveReader reader = new ZipArchiveReader(zip);
+            try
+            {
+                assertEquals(last.getCrc(), reader.getEntry(last.getName()).crc);
+                assertEquals(last.getCompressedSize(), reader.getEntry(last.getName()).compressedSize);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+
+        int count = 0;
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zip));
+        try
+        {
+            while (zis.getNextEntry() != null)
+            {
+                count++;
+            }
+        }
+        finally
+        {
+            zis.close();
+        }
+        assertEquals(MANY, count);
+    }
+
+    private File sparseFile(File file, long length) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+        return file;
+    }
+
+    private File tempFile(String name) throws Exception
+    {
+        File out = File.createTempFile(name, ".zip");
+        out.deleteOnExit();
+        return out;
+    }
+
+    private File tempDir(String name) throws Exception
+    {
+        File dir = File.createTempFile(name, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+}
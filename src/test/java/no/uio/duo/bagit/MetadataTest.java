@@ -62,9 +62,16 @@ package no.uio.duo.bagit;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import nu.xom.Builder;
+import nu.xom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public class MetadataTest
 {
@@ -161,4 +168,158 @@ public class MetadataTest
 
         assertEquals(metadata.getField(Metadata.TITLE, "nob").get(0), "101 days in the Pacific");
     }
+
+    @Test
+    public void testSerialisation()
+            throws Exception
+    {
+        Metadata metadata = new Metadata();
+        metadata.addField(Metadata.NAME, "Thor Heyerdahl");
+        metadata.addField(Metadata.ABSTRACT, "balsafl\u00e5te", "nob");
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        metadata.writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        metadata.writeTo(second);
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+
+        // the bytes are UTF-8 whatever the platform charset, and parse back to the same values
+        String xml = new String(first.toByteArray(), "UTF-8");
+        assertTrue(xml.contains("balsafl\u00e5te"));
+        Document doc = new Builder().build(metadata.getInputStream());
+        Metadata read = new Metadata(doc.getRootElement());
+        assertEquals("Thor Heyerdahl", read.getField(Metadata.NAME).get(0));
+        assertEquals("balsafl\u00e5te", read.getField(Metadata.ABSTRACT, "nob").get(0));
+
+        // changes made after serialising are seen the next time round
+        metadata.addSubject("AST3220", "Kosmologi I");
+        ByteArrayOutputStream third = new ByteArrayOutputStream();
+        metadata.writeTo(third);
+        assertTrue(new String(third.toByteArray(), "UTF-8").contains("AST3220"));
+
+        metadata.setEmbargo("5 years", new Date());
+        doc = new Builder().build(metadata.getInputStream());
+        assertEquals("5 years", new Metadata(doc.getRootElement()).getField(Metadata.EMBARGO_TYPE).get(0));
+
+        // toXML can be called repeatedly, including on metadata read from a document
+        assertEquals(metadata.toXML(), metadata.toXML());
+        assertEquals(read.toXML(), read.toXML());
+    }
+
+    @Test
+    public void testFieldIndex()
+            throws Exception
+    {
+        Metadata metadata = new Metadata();
+        metadata.addField(Metadata.TITLE, "101 days around some of the world");
+        metadata.addSubject("AST3220", "Kosmologi I");
+
+        // the first read builds the index from the element
+        assertEquals(1, metadata.getField(Metadata.TITLE).size());
+        assertEquals(0, metadata.getField(Metadata.TITLE, "nob").size());
+        assertEquals(0, metadata.getField(Metadata.GRADE).size());
+        assertEquals(1, metadata.getSubjects().size());
+
+        // later additions are seen straight away
+        metadata.addField(Metadata.TITLE, "101 days in the Pacific", "nob");
+        metadata.addField(Metadata.GRADE, "pass");
+        metadata.addSubject("AST4320", "Kosmologi II");
+
+        List<String> titles = metadata.getField(Metadata.TITLE);
+        assertEquals(2, titles.size());
+        assertEquals("101 days around some of the world", titles.get(0));
+        assertEquals("101 days in the Pacific", titles.get(1));
+        assertEquals("101 days in the Pacific", metadata.getField(Metadata.TITLE, "nob").get(0));
+        assertEquals(2, metadata.getField(Metadata.TITLE, null).size());
+        assertEquals(0, metadata.getField(Metadata.TITLE, "eng").size());
+        assertEquals("pass", metadata.getField(Metadata.GRADE).get(0));
+
+        List<String[]> subjects = metadata.getSubjects();
+        assertEquals(2, subjects.size());
+        assertEquals("AST4320", subjects.get(1)[0]);
+        assertEquals("Kosmologi II", subjects.get(1)[1]);
+
+        // changing the returned lists does not change the metadata
+        titles.clear();
+        subjects.get(0)[0] = "changed";
+        assertEquals(2, metadata.getField(Metadata.TITLE).size());
+        assertEquals("AST3220", metadata.getSubjects().get(0)[0]);
+
+        // metadata read from a document is indexed in the same way
+        Document doc = new Builder().build(metadata.getInputStream());
+        Metadata read = new Metadata(doc.getRootElement());
+        assertEquals("101 days in the Pacific", read.getField(Metadata.TITLE, "nob").get(0));
+        assertEquals(2, read.getSubjects().size());
+    }
+
+    @Test
+    public void testExtractFields()
+            throws Exception
+    {
+        Metadata metadata = new Metadata();
+        metadata.addField(Metadata.NAME, "Thor Heyerdahl");
+        metadata.addSubject("AST3220", "Kosmologi I");
+        metadata.addField(Metadata.TITLE, "101 days around some of the world");
+        metadata.addField(Metadata.TITLE, "101 days in the Pacific", "nob");
+        metadata.setEmbargo("5 years", new Date());
+        metadata.addField(Metadata.GRADE, "pass");
+
+        Map<String, String> fields = MetadataExtractor.extract(metadata.getInputStream(),
+                Metadata.TITLE, Metadata.EMBARGO_END_DATE, Metadata.STUDENT_NUMBER);
+        assertEquals(2, fields.size());
+        assertEquals("101 days around some of the world", fields.get(Metadata.TITLE));
+        assertEquals(metadata.getField(Metadata.EMBARGO_END_DATE).get(0), fields.get(Metadata.EMBARGO_END_DATE));
+        assertFalse(fields.containsKey(Metadata.STUDENT_NUMBER));
+
+        // only direct children of the root are fields, as for getField
+        fields = MetadataExtractor.extract(metadata.getInputStream(), Metadata.SUBJECT_CODE, Metadata.NAME);
+        assertEquals(1, fields.size());
+        assertEquals("Thor Heyerdahl", fields.get(Metadata.NAME));
+
+        // reading stops once everything has been found, so the rest of the document is never parsed
+        String xml = "<fs:metadata xmlns:fs=\"http://studentweb.no/terms/\">" +
+                "<fs:embargoEndDate>2015-01-01</fs:embargoEndDate><fs:grade>pass<broken";
+        fields = MetadataExtractor.extract(new ByteArrayInputStream(xml.getBytes("UTF-8")), Metadata.EMBARGO_END_DATE);
+        assertEquals("2015-01-01", fields.get(Metadata.EMBARGO_END_DATE));
+
+        try
+        {
+            MetadataExtractor.extract(new ByteArrayInputStream(xml.getBytes("UTF-8")), Metadata.UID);
+            fail("Malformed metadata was not reported");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIncompleteSubject() throws Exception
+    {
+        String xml = "<fs:metadata xmlns:fs=\"http://studentweb.no/terms/\" xmlns:dcterms=\"http://purl.org/dc/terms/\">" +
+                "<fs:subject><fs:subjectCode>AST3220</fs:subjectCode></fs:subject>" +
+                "<fs:subject><fs:subjectCode>AST3210</fs:subjectCode><fs:subjectTitle>Kosmologi II</fs:subjectTitle></fs:subject>" +
+                "<dcterms:title>101 days around some of the world</dcterms:title>" +
+                "</fs:metadata>";
+        Document doc = new Builder().build(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Metadata metadata = new Metadata(doc.getRootElement());
+
+        // the subject without a title is skipped, and the other fields can still be read
+        assertEquals("101 days around some of the world", metadata.getField(Metadata.TITLE).get(0));
+        assertEquals(1, metadata.getSubjects().size());
+        assertEquals("AST3210", metadata.getSubjects().get(0)[0]);
+        assertEquals("Kosmologi II", metadata.getSubjects().get(0)[1]);
+    }
+
+    @Test
+    public void testInterpretField()
+    {
+        // the known fields come from the table, and any other name is still split in the same way
+        assertSame(Metadata.interpretField(Metadata.TITLE), Metadata.interpretField(Metadata.TITLE));
+        assertArrayEquals(new String[] { "title", "http://purl.org/dc/terms/" }, Metadata.interpretField(Metadata.TITLE));
+        assertArrayEquals(new String[] { "grade", "http://studentweb.no/terms/" }, Metadata.interpretField(Metadata.GRADE));
+        assertArrayEquals(new String[] { "custom", "http://studentweb.no/terms/" }, Metadata.interpretField("fs:custom"));
+        assertArrayEquals(new String[] { "custom", null }, Metadata.interpretField("custom"));
+        assertNull(Metadata.interpretField("fs:custom:field"));
+    }
 }